@@ -0,0 +1,76 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// mail-merge style workload: one template rendered against a generated dataset, scaled from 1 to N cores.
+// Scores are renders per second (one benchmark operation renders the whole dataset).
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class BatchRenderBenchmark {
+    private static final int DATASET_SIZE = 20_000;
+
+    @Param({"full.blu", "small.blu"})
+    private String templateFileName;
+
+    @Param({"1", "2", "4", "8"})
+    private int parallelism;
+
+    private Blueprint.Template template;
+    private List<Map<String, Object>> contexts;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        template = engine.compile(SampleTemplateData.loadTemplate(templateFileName));
+        contexts = templateFileName.equals("full.blu")
+                ? SampleTemplateData.generateContextsForFullTemplate(DATASET_SIZE)
+                : SampleTemplateData.generateContextsForSmallTemplate(DATASET_SIZE);
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DATASET_SIZE)
+    public long batchUnordered() {
+        LongAdder chars = new LongAdder();
+        template.renderBatch(contexts, pool, false, (index, context, output) -> chars.add(output.length()));
+        return chars.sum();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DATASET_SIZE)
+    public long batchOrdered() {
+        long[] chars = new long[1];
+        template.renderBatch(contexts, pool, true, (index, context, output) -> chars[0] += output.length());
+        return chars[0];
+    }
+
+    // baseline: independent Template.render calls on the benchmark thread
+    @Benchmark
+    @OperationsPerInvocation(DATASET_SIZE)
+    public long sequentialRenderCalls() {
+        long chars = 0;
+        for (Map<String, Object> context : contexts) {
+            chars += template.render(context).length();
+        }
+        return chars;
+    }
+}
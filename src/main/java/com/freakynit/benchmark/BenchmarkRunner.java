@@ -4,13 +4,10 @@ import com.freakynit.blueprint.Blueprint;
 import com.freakynit.blueprint.StdUtils;
 import org.openjdk.jmh.annotations.*;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
+// end-to-end render of the sample templates. Scores are comparable with jmh_report_template_*.txt (see BenchmarkSuite).
 @BenchmarkMode(Mode.Throughput)
 @OutputTimeUnit(TimeUnit.SECONDS)
 @Fork(1)
@@ -18,17 +15,16 @@ import java.util.stream.Collectors;
 @Warmup(iterations = 1)
 @Measurement(iterations = 3)
 public class BenchmarkRunner {
+    @Param({"full.blu", "small.blu"})
+    private String templateFileName;
+
     private Blueprint engine;
     private Blueprint.Template template;
     private Map<String, Object> context;
 
     @Setup(Level.Trial)
     public void setup() throws Exception {
-        String templateFileName = "full.blu";  // or small.blu
-
-        String templateStr = new BufferedReader(new InputStreamReader(
-                BenchmarkRunner.class.getClassLoader().getResourceAsStream(templateFileName),
-                StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
+        String templateStr = SampleTemplateData.loadTemplate(templateFileName);
 
         context = templateFileName.equals("full.blu") ? SampleTemplateData.getContextForFullTemplate() : SampleTemplateData.getContextForSmallTemplate();
 
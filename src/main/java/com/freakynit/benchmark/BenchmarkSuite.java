@@ -0,0 +1,162 @@
+package com.freakynit.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks, optionally once per thread count, writes the results as JSON and compares
+ * BenchmarkRunner scores against the committed baselines (jmh_report_template_full.txt / _small.txt).
+ *
+ * java -cp target/blueprint-1.0.1.jar com.freakynit.benchmark.BenchmarkSuite [options]
+ *   --include REGEX      benchmarks to run (default: FeatureBenchmark|BenchmarkRunner|CollectionFilterBenchmark)
+ *   --threads 1,2,4,8    run everything once per thread count (default: the thread counts set on each benchmark)
+ *   --gc                 attach the GC profiler (allocation rate and bytes allocated per operation)
+ *   --quick              short warmup and measurement, for smoke runs
+ *   --out DIR            where the JSON results go (default: jmh-results)
+ *   --baseline-dir DIR   where the jmh_report_template_*.txt baselines are (default: current directory)
+ */
+public class BenchmarkSuite {
+    private static final Pattern BASELINE_HEADER = Pattern.compile("^# Benchmark: .*\\.(\\w+)$");
+    private static final Pattern BASELINE_THREADS = Pattern.compile("^# Threads: (\\d+) thread");
+    private static final Pattern BASELINE_SCORE = Pattern.compile("^BenchmarkRunner\\.(\\w+)\\s+thrpt\\s+\\d+\\s+([\\d.]+)");
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        String include = "FeatureBenchmark|BenchmarkRunner|CollectionFilterBenchmark";
+        List<Integer> threadCounts = new ArrayList<>();
+        boolean gc = false;
+        boolean quick = false;
+        String outDir = "jmh-results";
+        String baselineDir = ".";
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--include":
+                    include = args[++i];
+                    break;
+                case "--threads":
+                    for (String count : args[++i].split(",")) {
+                        threadCounts.add(Integer.parseInt(count.trim()));
+                    }
+                    break;
+                case "--gc":
+                    gc = true;
+                    break;
+                case "--quick":
+                    quick = true;
+                    break;
+                case "--out":
+                    outDir = args[++i];
+                    break;
+                case "--baseline-dir":
+                    baselineDir = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(0); // keep each benchmark's @Threads
+        }
+        Files.createDirectories(Paths.get(outDir));
+
+        List<RunResult> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            String resultFile = outDir + File.separator + (threads == 0 ? "jmh-results.json" : "jmh-results-t" + threads + ".json");
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(resultFile);
+            if (threads > 0) {
+                options.threads(threads);
+            }
+            if (gc) {
+                options.addProfiler(GCProfiler.class);
+            }
+            if (quick) {
+                options.warmupIterations(1).warmupTime(TimeValue.seconds(1))
+                        .measurementIterations(3).measurementTime(TimeValue.seconds(1));
+            }
+            results.addAll(new Runner(options.build()).run());
+            System.out.println("Results written to " + resultFile);
+        }
+
+        compareWithBaselines(results, Paths.get(baselineDir));
+    }
+
+    // prints the change of every BenchmarkRunner score against the baseline measured with the same template and thread count
+    private static void compareWithBaselines(List<RunResult> results, Path baselineDir) throws IOException {
+        List<String> rows = new ArrayList<>();
+        for (RunResult result : results) {
+            String benchmark = result.getParams().getBenchmark();
+            if (!benchmark.startsWith(BenchmarkRunner.class.getName() + ".")) {
+                continue;
+            }
+            String method = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+            String templateFileName = result.getParams().getParam("templateFileName");
+            Path baselineFile = baselineDir.resolve("jmh_report_template_" + templateFileName.replace(".blu", "") + ".txt");
+            if (!Files.exists(baselineFile)) {
+                continue;
+            }
+            Map<String, double[]> baseline = readBaseline(baselineFile);
+            double[] threadsAndScore = baseline.get(method);
+            if (threadsAndScore == null || (int) threadsAndScore[0] != result.getParams().getThreads()) {
+                continue;
+            }
+            double score = result.getPrimaryResult().getScore();
+            rows.add(String.format(Locale.ROOT, "%-24s %-10s %8d %16.1f %16.1f %+8.1f%%", method, templateFileName,
+                    result.getParams().getThreads(), threadsAndScore[1], score, (score / threadsAndScore[1] - 1) * 100));
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        System.out.println();
+        System.out.println("Comparison with baselines in " + baselineDir.toAbsolutePath().normalize()
+                + " (different hardware or JVM changes the absolute numbers)");
+        System.out.println(String.format("%-24s %-10s %8s %16s %16s %9s", "benchmark", "template", "threads", "baseline ops/s", "current ops/s", "change"));
+        rows.forEach(System.out::println);
+    }
+
+    // benchmark method -> {threads, score}, from a saved JMH text report
+    static Map<String, double[]> readBaseline(Path reportFile) throws IOException {
+        Map<String, Integer> threads = new HashMap<>();
+        Map<String, double[]> baseline = new HashMap<>();
+        Integer currentThreads = null;
+        for (String line : Files.readAllLines(reportFile, StandardCharsets.UTF_8)) {
+            Matcher matcher = BASELINE_THREADS.matcher(line);
+            if (matcher.find()) {
+                currentThreads = Integer.parseInt(matcher.group(1));
+                continue;
+            }
+            matcher = BASELINE_HEADER.matcher(line);
+            if (matcher.find() && currentThreads != null) {
+                threads.put(matcher.group(1), currentThreads);
+                continue;
+            }
+            matcher = BASELINE_SCORE.matcher(line);
+            if (matcher.find() && threads.containsKey(matcher.group(1))) {
+                baseline.put(matcher.group(1), new double[]{threads.get(matcher.group(1)), Double.parseDouble(matcher.group(2))});
+            }
+        }
+        return baseline;
+    }
+}
@@ -0,0 +1,93 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// the collection filters of StdUtils on large collections of different shapes: a List, a primitive int array and a Set
+// (an Iterable that is not a List). Every element occurs twice, so unique halves the collection.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class CollectionFilterBenchmark {
+    @Param({"1000", "100000"})
+    private int size;
+
+    @Param({"list", "intArray", "set"})
+    private String shape;
+
+    private Blueprint.Template join;
+    private Blueprint.Template sort;
+    private Blueprint.Template unique;
+    private Blueprint.Template length;
+    private Map<String, Object> context;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        join = engine.compile("{{ items | join(', ') }}");
+        sort = engine.compile("{% set sorted = items | sort %}{{ length(sorted) }}");
+        unique = engine.compile("{% set distinct = items | unique %}{{ length(distinct) }}");
+        length = engine.compile("{{ length(items) }}");
+
+        Object items;
+        switch (shape) {
+            case "list":
+                List<Integer> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add((i * 7919) % (size / 2));
+                }
+                items = list;
+                break;
+            case "intArray":
+                int[] array = new int[size];
+                for (int i = 0; i < size; i++) {
+                    array[i] = (i * 7919) % (size / 2);
+                }
+                items = array;
+                break;
+            case "set":
+                LinkedHashSet<Integer> set = new LinkedHashSet<>();
+                for (int i = 0; i < size; i++) {
+                    set.add(i);
+                }
+                items = set;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+        context = new HashMap<>();
+        context.put("items", items);
+    }
+
+    @Benchmark
+    public String join() {
+        return join.render(context);
+    }
+
+    @Benchmark
+    public String sort() {
+        return sort.render(context);
+    }
+
+    @Benchmark
+    public String unique() {
+        return unique.render(context);
+    }
+
+    @Benchmark
+    public String length() {
+        return length.render(context);
+    }
+}
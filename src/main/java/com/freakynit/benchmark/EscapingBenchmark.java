@@ -0,0 +1,65 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// cost of html escaping {{ }} output: built-in auto-escaping vs. the explicit escape filter vs. no escaping.
+// "clean" values contain nothing to escape (the common case), "dirty" ones contain markup on every few characters.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class EscapingBenchmark {
+    private static final String TEMPLATE = "<ul>{% for item in items %}<li title=\"{{ item.title }}\">{{ item.body }}</li>{% endfor %}</ul>";
+    private static final String FILTER_TEMPLATE = "<ul>{% for item in items %}<li title=\"{{ item.title | escape }}\">{{ item.body | escape }}</li>{% endfor %}</ul>";
+
+    @Param({"clean", "dirty"})
+    private String input;
+
+    private Blueprint.Template unescaped;
+    private Blueprint.Template autoEscaped;
+    private Blueprint.Template filterEscaped;
+    private Map<String, Object> context;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        unescaped = engine.compile(TEMPLATE);
+        autoEscaped = engine.compile(TEMPLATE, new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.HTML));
+        filterEscaped = engine.compile(FILTER_TEMPLATE);
+
+        boolean dirty = input.equals("dirty");
+        Object[] items = new Object[50];
+        for (int i = 0; i < items.length; i++) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("title", dirty ? "Tom & Jerry's \"show\" #" + i : "Tom and Jerry show number " + i);
+            item.put("body", dirty ? "<b>Episode</b> " + i + " <i>a < b && c > d</i>" : "Episode " + i + " where a is less than b and c is more than d");
+            items[i] = item;
+        }
+        context = new HashMap<>();
+        context.put("items", items);
+    }
+
+    @Benchmark
+    public String noEscaping() {
+        return unescaped.render(context);
+    }
+
+    @Benchmark
+    public String autoEscape() {
+        return autoEscaped.render(context);
+    }
+
+    @Benchmark
+    public String escapeFilter() {
+        return filterEscaped.render(context);
+    }
+}
@@ -0,0 +1,84 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// tree vs. flat execution (Blueprint.setExecutionMode) on the sample templates and synthetic workloads.
+// On setup, each trial also prints the heap retained per compiled template, measured over many compiled copies (which
+// share their text through the engine's TextPool), next to Template.estimateRetainedHeap().
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class ExecutionModeBenchmark {
+    private static final int RETAINED_COPIES = 500;
+
+    @Param({"TREE", "FLAT"})
+    private Blueprint.ExecutionMode mode;
+
+    @Param({"full.blu", "small.blu", "loop:1000", "macros:100"})
+    private String workload;
+
+    private Blueprint.Template template;
+    private Map<String, Object> context;
+    private final StringBuilder sb = new StringBuilder();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        engine.setExecutionMode(mode);
+        String source;
+        if (workload.endsWith(".blu")) {
+            source = SampleTemplateData.loadTemplate(workload);
+            context = workload.equals("full.blu") ? SampleTemplateData.getContextForFullTemplate() : SampleTemplateData.getContextForSmallTemplate();
+        } else {
+            SyntheticWorkloads.Workload generated = SyntheticWorkloads.generate(workload);
+            source = generated.getSource();
+            context = generated.getContext();
+        }
+        template = engine.compile(source);
+        context = new HashMap<>(context);
+        System.out.printf(Locale.ROOT, "%n%s %s: %d bytes retained per compiled template (estimated: %d, without pooled text)%n",
+                mode, workload, retainedBytes(engine, source), template.estimateRetainedHeap());
+    }
+
+    private static long retainedBytes(Blueprint engine, String source) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long before = usedHeapAfterGc(memory);
+        List<Blueprint.Template> templates = new ArrayList<>();
+        for (int i = 0; i < RETAINED_COPIES; i++) {
+            templates.add(engine.compile(source));
+        }
+        long after = usedHeapAfterGc(memory);
+        long perTemplate = (after - before) / templates.size();
+        templates.clear();
+        return perTemplate;
+    }
+
+    private static long usedHeapAfterGc(MemoryMXBean memory) {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    @Benchmark
+    public int render() {
+        sb.setLength(0);
+        template.render(context, sb);
+        return sb.length();
+    }
+}
@@ -0,0 +1,151 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// one small template per engine feature, measured separately for compiling and for rendering an already compiled template
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class FeatureBenchmark {
+    @Param({"interpolation", "mapProperty", "pojoProperty", "loop_10", "loop_100", "loop_1000", "macro", "filters", "arithmetic", "concatenation", "formatting"})
+    private String feature;
+
+    private Blueprint engine;
+    private String source;
+    private Blueprint.Template template;
+    private Map<String, Object> context;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        context = new HashMap<>();
+
+        if (feature.startsWith("loop_")) {
+            int size = Integer.parseInt(feature.substring("loop_".length()));
+            source = "{% for item in items %}{{ loop.index }}: {{ item.name }} {% endfor %}";
+            List<Map<String, Object>> items = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                Map<String, Object> item = new HashMap<>();
+                item.put("name", "item-" + i);
+                items.add(item);
+            }
+            context.put("items", items);
+        } else {
+            switch (feature) {
+                case "interpolation":
+                    source = "Hello {{ first }} {{ last }}, your code is {{ code }}.";
+                    context.put("first", "John");
+                    context.put("last", "Doe");
+                    context.put("code", "X-123");
+                    break;
+                case "mapProperty":
+                    source = "{{ user.name }} lives at {{ user.address.street }}, {{ user.address.city }}";
+                    Map<String, Object> address = new HashMap<>();
+                    address.put("street", "123 Main St");
+                    address.put("city", "Springfield");
+                    Map<String, Object> user = new HashMap<>();
+                    user.put("name", "John");
+                    user.put("address", address);
+                    context.put("user", user);
+                    break;
+                case "pojoProperty":
+                    source = "{{ user.name }} lives at {{ user.address.street }}, {{ user.address.city }}";
+                    context.put("user", new User("John", new Address("123 Main St", "Springfield")));
+                    break;
+                case "macro":
+                    source = "{% macro cell(label, value) %}<td>{{ label }}</td><td>{{ value }}</td>{% endmacro %}"
+                            + "<tr>{{ cell('name', name) }}{{ cell('city', city) }}</tr>";
+                    context.put("name", "John");
+                    context.put("city", "Springfield");
+                    break;
+                case "filters":
+                    source = "{{ name | upper }} {{ note | replace('please', 'kindly') | capitalize }} {{ title | truncate(12) }}";
+                    context.put("name", "john");
+                    context.put("note", "please review your order");
+                    context.put("title", "A rather long product title");
+                    break;
+                case "arithmetic":
+                    source = "{{ price * qty + shipping - discount }} {{ (price * 2) % 7 }} {{ qty ** 2 }} {% if price * qty >= 50 %}free{% endif %}";
+                    context.put("price", 19.99);
+                    context.put("qty", 3);
+                    context.put("shipping", 4.5);
+                    context.put("discount", 2);
+                    break;
+                case "concatenation":
+                    source = "<a title=\"{{ first + ' ' + last + ' (' + code + ')' }}\">{{ 'Order ' + code + ' for ' + first }}</a>";
+                    context.put("first", "John");
+                    context.put("last", "Doe");
+                    context.put("code", "X-123");
+                    break;
+                case "formatting":
+                    source = "Invoice of {{ issued | date('d MMMM yyyy', 'en-GB') }}: {{ total | currency('EUR', 'de-DE') }} ({{ weight | number('#,##0.0') }} kg) {{ now() }}";
+                    context.put("issued", LocalDate.of(2024, 3, 5));
+                    context.put("total", 1234.5);
+                    context.put("weight", 12.75);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown feature: " + feature);
+            }
+        }
+        template = engine.compile(source);
+    }
+
+    @Benchmark
+    public Blueprint.Template compileOnly() {
+        return engine.compile(source);
+    }
+
+    @Benchmark
+    public String renderOnly() {
+        return template.render(context);
+    }
+
+    public static class User {
+        private final String name;
+        private final Address address;
+
+        public User(String name, Address address) {
+            this.name = name;
+            this.address = address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+    }
+
+    public static class Address {
+        private final String street;
+        private final String city;
+
+        public Address(String street, String city) {
+            this.street = street;
+            this.city = city;
+        }
+
+        public String getStreet() {
+            return street;
+        }
+
+        public String getCity() {
+            return city;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// chains of 1, 3 and 5 text filters, fused into one pipeline vs. the same filters called one at a time
+// (registered behind plain functions, which the compiler doesn't fuse)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class FilterChainBenchmark {
+    @Param({"1", "3", "5"})
+    private int stages;
+
+    @Param({"true", "false"})
+    private boolean fused;
+
+    private Blueprint.Template template;
+    private Map<String, Object> context;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        if (!fused) {
+            Blueprint plain = new Blueprint();
+            for (String name : Arrays.asList("replace", "capitalize", "truncate", "upper", "lower")) {
+                Blueprint.TemplateFunction filter = engine.getFilter(name);
+                plain.registerFilter(name, filter::execute, new Blueprint.FunctionOptions().pure());
+            }
+            engine = plain;
+        }
+        engine.freeze();
+        String chain;
+        switch (stages) {
+            case 1:
+                chain = "replace('please', 'kindly')";
+                break;
+            case 3:
+                chain = "replace('please', 'kindly') | capitalize | truncate(40)";
+                break;
+            case 5:
+                chain = "lower | replace('please', 'kindly') | replace('order', 'purchase') | capitalize | truncate(40)";
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported number of stages: " + stages);
+        }
+        template = engine.compile("{% for note in notes %}<li>{{ note | " + chain + " }}</li>{% endfor %}");
+
+        String[] notes = new String[20];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = "please review your order #" + i + " and please confirm the delivery address";
+        }
+        context = new HashMap<>();
+        context.put("notes", notes);
+    }
+
+    @Benchmark
+    public String render() {
+        return template.render(context);
+    }
+}
@@ -0,0 +1,67 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// a dashboard of N panels (each a loop over 50 rows) where one panel's value changes between renders:
+// full render vs. an incremental RenderSession that re-renders only that panel
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class IncrementalRenderBenchmark {
+    @Param({"10", "50"})
+    private int panels;
+
+    private Blueprint.Template template;
+    private Map<String, Object> context;
+    private Blueprint.RenderSession session;
+    private int tick;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        StringBuilder source = new StringBuilder("<h1>{{ title | upper }}</h1>");
+        context = new HashMap<>();
+        context.put("title", "Dashboard");
+        for (int p = 0; p < panels; p++) {
+            source.append("<section><h2>Panel ").append(p).append(": {{ value").append(p).append(" }}</h2><table>")
+                    .append("{% for row in rows").append(p).append(" %}<tr><td>{{ loop.index }}</td><td>{{ row.name }}</td><td>{{ row.value }}</td></tr>{% endfor %}")
+                    .append("</table></section>");
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (int r = 0; r < 50; r++) {
+                Map<String, Object> row = new HashMap<>();
+                row.put("name", "metric-" + r);
+                row.put("value", r * 1.5);
+                rows.add(row);
+            }
+            context.put("rows" + p, rows);
+            context.put("value" + p, p);
+        }
+        template = engine.compile(source.toString());
+        session = template.session(context);
+        session.render();
+    }
+
+    @Benchmark
+    public String fullRender() {
+        context.put("value0", ++tick);
+        return template.render(context);
+    }
+
+    @Benchmark
+    public String incrementalRender() {
+        session.set("value0", ++tick);
+        return session.render();
+    }
+}
@@ -0,0 +1,276 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Closed-loop load test: N threads render a weighted mix of templates against one shared engine, each thread at an
+ * equal share of a target rate. Latency is recorded twice: from the actual start of a render ("uncorrected") and from
+ * the time it was scheduled to start ("corrected"). When renders fall behind schedule (GC pauses, contention), the
+ * corrected numbers include the time spent waiting, which is what a caller would have seen (coordinated omission).
+ *
+ * java -cp target/blueprint-1.0.1.jar com.freakynit.benchmark.LoadGenerator [options]
+ *   --threads N          worker threads (default 4)
+ *   --rate R             target renders per second over all threads; 0 renders as fast as possible (default 0)
+ *   --mix SPEC           weighted workloads, e.g. "full.blu=3,small.blu=1,loop:1000=1" (default "full.blu=1,small.blu=1").
+ *                        Names ending in .blu are the sample templates, others are SyntheticWorkloads specs.
+ *   --warmup SECONDS     warmup phase, not reported in detail (default 10)
+ *   --duration SECONDS   length of each measured phase (default 30)
+ *   --phases N           number of measured phases (default 3)
+ *   --metrics            enable engine metrics and print their snapshot at the end
+ */
+public class LoadGenerator {
+    private final int threads;
+    private final double rate;
+    private final List<Blueprint.Template> templates = new ArrayList<>();
+    private final List<Map<String, Object>> contexts = new ArrayList<>();
+    private final int[] cumulativeWeights;
+
+    // GC pause durations (ms) reported through GC notifications during the current phase
+    private volatile Blueprint.Histogram gcPauses = new Blueprint.Histogram();
+
+    LoadGenerator(Blueprint engine, String mix, int threads, double rate) {
+        this.threads = threads;
+        this.rate = rate;
+        String[] entries = mix.split(",");
+        this.cumulativeWeights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i].trim();
+            int eq = entry.lastIndexOf('=');
+            String name = eq == -1 ? entry : entry.substring(0, eq);
+            total += eq == -1 ? 1 : Integer.parseInt(entry.substring(eq + 1));
+            cumulativeWeights[i] = total;
+
+            String source;
+            Map<String, Object> context;
+            if (name.endsWith(".blu")) {
+                source = SampleTemplateData.loadTemplate(name);
+                context = name.equals("full.blu") ? SampleTemplateData.getContextForFullTemplate() : SampleTemplateData.getContextForSmallTemplate();
+            } else {
+                SyntheticWorkloads.Workload workload = SyntheticWorkloads.generate(name);
+                source = workload.getSource();
+                context = workload.getContext();
+            }
+            templates.add(engine.compile(source, new Blueprint.CompileOptions().name(name)));
+            contexts.add(context);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = 4;
+        double rate = 0;
+        String mix = "full.blu=1,small.blu=1";
+        int warmupSeconds = 10;
+        int durationSeconds = 30;
+        int phases = 3;
+        boolean metrics = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--mix":
+                    mix = args[++i];
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--duration":
+                    durationSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--phases":
+                    phases = Integer.parseInt(args[++i]);
+                    break;
+                case "--metrics":
+                    metrics = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        Blueprint engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        engine.setMetricsEnabled(metrics);
+        LoadGenerator generator = new LoadGenerator(engine, mix, threads, rate);
+        generator.listenForGcPauses();
+
+        System.out.printf(Locale.ROOT, "Load test: %d threads, target rate %s, mix %s%n", threads, rate > 0 ? rate + "/s" : "unbounded", mix);
+        generator.runPhase("warmup", warmupSeconds).print();
+        for (int phase = 1; phase <= phases; phase++) {
+            generator.runPhase("phase " + phase, durationSeconds).print();
+        }
+        if (metrics) {
+            System.out.println("Engine metrics: " + engine.getMetrics().snapshot());
+        }
+    }
+
+    private void listenForGcPauses() {
+        NotificationListener listener = (notification, handback) -> {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                gcPauses.record(info.getGcInfo().getDuration());
+            }
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+            }
+        }
+    }
+
+    PhaseResult runPhase(String name, int seconds) throws InterruptedException {
+        PhaseResult result = new PhaseResult(name, threads, rate);
+        gcPauses = result.gcPauses;
+        Map<String, long[]> gcBefore = gcCounters();
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        // each thread runs its own schedule at an equal share of the target rate, offset so the threads interleave
+        long intervalNanos = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long firstStart = start + (intervalNanos * t) / threads;
+            Thread worker = new Thread(() -> runWorker(result, firstStart, intervalNanos, end), "load-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.gcCounters = diff(gcCounters(), gcBefore);
+        return result;
+    }
+
+    private void runWorker(PhaseResult result, long firstStart, long intervalNanos, long end) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        // renders write loop and set variables into the top-level context map, so every thread needs its own copies
+        List<Map<String, Object>> threadContexts = new ArrayList<>();
+        for (Map<String, Object> context : contexts) {
+            threadContexts.add(new HashMap<>(context));
+        }
+        StringBuilder sb = new StringBuilder();
+        long intendedStart = firstStart;
+        while (true) {
+            long now = System.nanoTime();
+            if (intervalNanos > 0) {
+                while (now < intendedStart) {
+                    LockSupport.parkNanos(intendedStart - now);
+                    now = System.nanoTime();
+                }
+            } else {
+                intendedStart = now;
+            }
+            if (now >= end) {
+                break;
+            }
+            int workload = pickWorkload();
+            sb.setLength(0);
+            try {
+                templates.get(workload).render(threadContexts.get(workload), sb);
+            } catch (RuntimeException e) {
+                result.errors.increment();
+            }
+            long finished = System.nanoTime();
+            result.uncorrected.record(finished - now);
+            result.corrected.record(finished - intendedStart);
+            result.renders.increment();
+            intendedStart += intervalNanos;
+        }
+        result.allocatedBytes.add(threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore);
+    }
+
+    private int pickWorkload() {
+        int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return i;
+            }
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    // collector name -> {collection count, collection time ms}
+    private static Map<String, long[]> gcCounters() {
+        Map<String, long[]> counters = new HashMap<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            counters.put(gc.getName(), new long[]{gc.getCollectionCount(), gc.getCollectionTime()});
+        }
+        return counters;
+    }
+
+    private static Map<String, long[]> diff(Map<String, long[]> after, Map<String, long[]> before) {
+        Map<String, long[]> diff = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : after.entrySet()) {
+            long[] previous = before.getOrDefault(entry.getKey(), new long[2]);
+            diff.put(entry.getKey(), new long[]{entry.getValue()[0] - previous[0], entry.getValue()[1] - previous[1]});
+        }
+        return diff;
+    }
+
+    static class PhaseResult {
+        final String name;
+        final int threads;
+        final double rate;
+        final Blueprint.Histogram corrected = new Blueprint.Histogram();
+        final Blueprint.Histogram uncorrected = new Blueprint.Histogram();
+        final Blueprint.Histogram gcPauses = new Blueprint.Histogram();
+        final LongAdder renders = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+        long elapsedNanos;
+        Map<String, long[]> gcCounters;
+
+        PhaseResult(String name, int threads, double rate) {
+            this.name = name;
+            this.threads = threads;
+            this.rate = rate;
+        }
+
+        void print() {
+            double seconds = elapsedNanos / 1e9;
+            System.out.printf(Locale.ROOT, "%n%s: %.1f s, %d threads, target %s, achieved %.0f renders/s, %d errors%n", name, seconds,
+                    threads, rate > 0 ? String.format(Locale.ROOT, "%.0f/s", rate) : "unbounded", renders.sum() / seconds, errors.sum());
+            System.out.printf("  %-14s %10s %10s %10s %10s %10s %10s%n", "latency (us)", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+            printLatency("corrected", corrected.snapshot());
+            printLatency("uncorrected", uncorrected.snapshot());
+            for (Map.Entry<String, long[]> gc : gcCounters.entrySet()) {
+                System.out.printf(Locale.ROOT, "  gc %-24s %6d collections %8d ms%n", gc.getKey(), gc.getValue()[0], gc.getValue()[1]);
+            }
+            Blueprint.Histogram.Snapshot pauses = gcPauses.snapshot();
+            System.out.printf(Locale.ROOT, "  gc pauses (ms): count %d, p50 %d, p99 %d, max %d%n", pauses.getCount(),
+                    pauses.getValueAtPercentile(50), pauses.getValueAtPercentile(99), pauses.getMax());
+            System.out.printf(Locale.ROOT, "  allocation: %.1f MB/s, %.0f bytes per render (worker threads)%n",
+                    allocatedBytes.sum() / seconds / (1024 * 1024), renders.sum() == 0 ? 0.0 : (double) allocatedBytes.sum() / renders.sum());
+        }
+
+        private static void printLatency(String label, Blueprint.Histogram.Snapshot snapshot) {
+            System.out.printf(Locale.ROOT, "  %-14s %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", label,
+                    snapshot.getValueAtPercentile(50) / 1e3, snapshot.getValueAtPercentile(90) / 1e3,
+                    snapshot.getValueAtPercentile(99) / 1e3, snapshot.getValueAtPercentile(99.9) / 1e3,
+                    snapshot.getValueAtPercentile(99.99) / 1e3, snapshot.getMax() / 1e3);
+        }
+    }
+}
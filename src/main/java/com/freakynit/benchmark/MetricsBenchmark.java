@@ -0,0 +1,56 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// per-render cost of engine metrics: the same template rendered with metrics off and on, single- and multi-threaded
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class MetricsBenchmark {
+    @Param({"full.blu", "small.blu"})
+    private String templateFileName;
+
+    @Param({"false", "true"})
+    private boolean metricsEnabled;
+
+    private Blueprint.Template template;
+
+    @State(Scope.Thread)
+    public static class ThreadContext {
+        // renders write loop variables into the context, so each thread gets its own
+        Map<String, Object> context;
+
+        @Setup(Level.Trial)
+        public void setup(MetricsBenchmark benchmark) {
+            context = benchmark.templateFileName.equals("full.blu") ? SampleTemplateData.getContextForFullTemplate() : SampleTemplateData.getContextForSmallTemplate();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        engine.setMetricsEnabled(metricsEnabled);
+        template = engine.compile(SampleTemplateData.loadTemplate(templateFileName), new Blueprint.CompileOptions().name(templateFileName));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String renderSingleThread(ThreadContext threadContext) {
+        return template.render(threadContext.context);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String renderFourThreads(ThreadContext threadContext) {
+        return template.render(threadContext.context);
+    }
+}
@@ -0,0 +1,56 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// function and filter heavy rendering with a mutable (copy-on-write) registry vs. a frozen one whose call sites are
+// bound at compile time, on one and on four threads
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class RegistryBenchmark {
+    @Param({"false", "true"})
+    private boolean frozen;
+
+    private Blueprint.Template template;
+
+    @State(Scope.Thread)
+    public static class ThreadContext {
+        // renders write loop variables into the context, so each thread gets its own
+        Map<String, Object> context;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            context = SampleTemplateData.getContextForFullTemplate();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        if (frozen) {
+            engine.freeze();
+        }
+        template = engine.compile(SampleTemplateData.loadTemplate("full.blu"));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String renderSingleThread(ThreadContext threadContext) {
+        return template.render(threadContext.context);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String renderFourThreads(ThreadContext threadContext) {
+        return template.render(threadContext.context);
+    }
+}
@@ -0,0 +1,45 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// overhead of render limits on loops and macro calls: no limits vs. all four limits set (none of them reached)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class RenderLimitsBenchmark {
+    @Param({"loop:1000", "macros:100", "nesting:10"})
+    private String workload;
+
+    @Param({"false", "true"})
+    private boolean limited;
+
+    private Blueprint.Template template;
+    private Map<String, Object> context;
+    private Blueprint.RenderLimits limits;
+    private final StringBuilder sb = new StringBuilder();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        SyntheticWorkloads.Workload generated = SyntheticWorkloads.generate(workload);
+        template = engine.compile(generated.getSource());
+        context = generated.getContext();
+        limits = limited
+                ? new Blueprint.RenderLimits().maxOutputChars(100_000_000).maxIterations(1_000_000).maxMacroDepth(100).timeout(10, TimeUnit.SECONDS)
+                : null;
+    }
+
+    @Benchmark
+    public int render() {
+        sb.setLength(0);
+        template.render(context, sb, limits);
+        return sb.length();
+    }
+}
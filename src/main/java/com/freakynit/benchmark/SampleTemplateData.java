@@ -1,8 +1,19 @@
 package com.freakynit.benchmark;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.stream.Collectors;
 
 public class SampleTemplateData {
+    // loads a template from the classpath (src/main/resources)
+    public static String loadTemplate(String templateFileName) {
+        return new BufferedReader(new InputStreamReader(
+                SampleTemplateData.class.getClassLoader().getResourceAsStream(templateFileName),
+                StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
+    }
+
     // sample data... uses Map and Class, both kind of data for demonstration
     public static Map<String, Object> getContextForFullTemplate() {
         Map<String, Object> context = new HashMap<>();
@@ -59,6 +70,38 @@ public class SampleTemplateData {
         return context;
     }
 
+    // generated datasets for batch benchmarks: same shape as the sample contexts, with varying values
+    @SuppressWarnings("unchecked")
+    public static List<Map<String, Object>> generateContextsForFullTemplate(int count) {
+        Random random = new Random(42);
+        List<Map<String, Object>> contexts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> context = getContextForFullTemplate();
+            Map<String, Object> customer = (Map<String, Object>) context.get("customer");
+            customer.put("name", "customer " + i);
+            Map<String, Object> order = (Map<String, Object>) customer.get("order");
+            order.put("number", "A" + (100000 + i));
+            order.put("subtotal", 10 + random.nextInt(9000) / 100.0);
+            contexts.add(context);
+        }
+        return contexts;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<Map<String, Object>> generateContextsForSmallTemplate(int count) {
+        Random random = new Random(42);
+        List<Map<String, Object>> contexts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> context = getContextForSmallTemplate();
+            ((Map<String, Object>) context.get("customer")).put("name", "Customer " + i);
+            Map<String, Object> order = (Map<String, Object>) context.get("order");
+            order.put("number", String.valueOf(10000 + i));
+            order.put("total", random.nextInt(100));
+            contexts.add(context);
+        }
+        return contexts;
+    }
+
     public static class OrderItem {
         private String name;
         private Integer price;
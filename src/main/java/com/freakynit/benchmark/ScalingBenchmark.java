@@ -0,0 +1,54 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import com.freakynit.blueprint.StdUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// time per render and per compile against the size of a synthetic workload (see SyntheticWorkloads).
+// Scaling is linear where the time grows by the same factor as the size; run with -prof gc (or BenchmarkSuite --gc)
+// to see allocation per operation as well.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class ScalingBenchmark {
+    @Param({
+            "loop:10", "loop:100", "loop:1000", "loop:10000",
+            "depth:1", "depth:5", "depth:20",
+            "depthPojo:1", "depthPojo:5", "depthPojo:20",
+            "text:1k", "text:64k", "text:1m",
+            "macros:1", "macros:10", "macros:100", "macros:500",
+            "nesting:1", "nesting:10", "nesting:50"
+    })
+    private String workload;
+
+    private Blueprint engine;
+    private String source;
+    private Blueprint.Template template;
+    private Map<String, Object> context;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SyntheticWorkloads.Workload generated = SyntheticWorkloads.generate(workload);
+        engine = new Blueprint();
+        new StdUtils().registerAll(engine);
+        source = generated.getSource();
+        context = generated.getContext();
+        template = engine.compile(source);
+    }
+
+    @Benchmark
+    public String render() {
+        return template.render(context);
+    }
+
+    @Benchmark
+    public Blueprint.Template compile() {
+        return engine.compile(source);
+    }
+}
@@ -0,0 +1,135 @@
+package com.freakynit.benchmark;
+
+import com.freakynit.blueprint.Blueprint;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// property-heavy rendering against a HashMap context vs. a SlotContext of a typed ContextSchema, where variable roots
+// are array reads and POJO properties are getters resolved at compile time
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class SchemaBenchmark {
+    private static final String TEMPLATE = "{{ title }} for {{ customer.name }} ({{ customer.email }}), {{ customer.address.city }}\n"
+            + "{{ order.item.name }}: {{ order.item.price }} x {{ order.quantity }}, {{ order.status }} {{ order.item.name }}\n"
+            + "{{ customer.address.street }}, {{ customer.address.zip }} {{ customer.address.city }} {{ footer }}";
+
+    private Blueprint.Template mapTemplate;
+    private Blueprint.Template schemaTemplate;
+    private Map<String, Object> mapContext;
+    private Blueprint.SlotContext slotContext;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Blueprint engine = new Blueprint();
+        Blueprint.ContextSchema schema = Blueprint.ContextSchema.builder()
+                .key("title")
+                .key("footer")
+                .key("customer", Customer.class)
+                .key("order", Order.class)
+                .build();
+        mapTemplate = engine.compile(TEMPLATE);
+        schemaTemplate = engine.compile(TEMPLATE, new Blueprint.CompileOptions().schema(schema));
+
+        Customer customer = new Customer("Jane Doe", "jane@example.com", new Address("1 Main St", "12345", "Springfield"));
+        Order order = new Order(new SampleTemplateData.OrderItem("Widget", 25), 3, "shipped");
+        mapContext = new HashMap<>();
+        mapContext.put("title", "Invoice");
+        mapContext.put("footer", "Thank you");
+        mapContext.put("customer", customer);
+        mapContext.put("order", order);
+        slotContext = schema.newContext()
+                .set("title", "Invoice")
+                .set("footer", "Thank you")
+                .set("customer", customer)
+                .set("order", order);
+    }
+
+    @Benchmark
+    public String mapContext() {
+        return mapTemplate.render(mapContext);
+    }
+
+    @Benchmark
+    public String schemaContext() {
+        return schemaTemplate.render(slotContext);
+    }
+
+    public static class Customer {
+        private final String name;
+        private final String email;
+        private final Address address;
+
+        public Customer(String name, String email, Address address) {
+            this.name = name;
+            this.email = email;
+            this.address = address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+    }
+
+    public static class Address {
+        private final String street;
+        private final String zip;
+        private final String city;
+
+        public Address(String street, String zip, String city) {
+            this.street = street;
+            this.zip = zip;
+            this.city = city;
+        }
+
+        public String getStreet() {
+            return street;
+        }
+
+        public String getZip() {
+            return zip;
+        }
+
+        public String getCity() {
+            return city;
+        }
+    }
+
+    public static class Order {
+        private final SampleTemplateData.OrderItem item;
+        private final int quantity;
+        private final String status;
+
+        public Order(SampleTemplateData.OrderItem item, int quantity, String status) {
+            this.item = item;
+            this.quantity = quantity;
+            this.status = status;
+        }
+
+        public SampleTemplateData.OrderItem getItem() {
+            return item;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.freakynit.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates templates and matching contexts of a given shape and size, for scaling benchmarks and load tests.
+ * A workload is described as "shape:size", e.g. "loop:10000", "depth:20", "text:1m" or "macros:500":
+ * - loop:N       a loop over N items, each rendering three properties and a condition
+ * - depth:N      ten lookups of a property N levels deep in nested Maps
+ * - depthPojo:N  the same through nested POJOs (reflective getters)
+ * - text:N       N characters of static text (k/m suffixes allowed) with ten variables spread over it
+ * - macros:N     N macro definitions, each called once
+ * - nesting:N    N macros, each wrapping the output of the next one (component-style nesting N levels deep)
+ */
+public class SyntheticWorkloads {
+    public static Workload generate(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon == -1) {
+            throw new IllegalArgumentException("Workload must be given as shape:size, got: " + spec);
+        }
+        String shape = spec.substring(0, colon);
+        int size = parseSize(spec.substring(colon + 1));
+        switch (shape) {
+            case "loop":
+                return loop(spec, size);
+            case "depth":
+                return depth(spec, size, false);
+            case "depthPojo":
+                return depth(spec, size, true);
+            case "text":
+                return staticText(spec, size);
+            case "macros":
+                return macros(spec, size);
+            case "nesting":
+                return nesting(spec, size);
+            default:
+                throw new IllegalArgumentException("Unknown workload shape: " + shape);
+        }
+    }
+
+    private static int parseSize(String size) {
+        String lower = size.toLowerCase();
+        if (lower.endsWith("k")) {
+            return Integer.parseInt(lower.substring(0, lower.length() - 1)) * 1024;
+        }
+        if (lower.endsWith("m")) {
+            return Integer.parseInt(lower.substring(0, lower.length() - 1)) * 1024 * 1024;
+        }
+        return Integer.parseInt(lower);
+    }
+
+    private static Workload loop(String spec, int items) {
+        String source = "<ul>\n{% for item in items %}"
+                + "  <li id=\"{{ item.id }}\">{{ item.name }}: ${{ item.price }}{% if item.price > 50 %} (premium){% endif %}</li>\n"
+                + "{% endfor %}</ul>";
+        List<Map<String, Object>> list = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("id", i);
+            item.put("name", "item-" + i);
+            item.put("price", i % 100);
+            list.add(item);
+        }
+        Map<String, Object> context = new HashMap<>();
+        context.put("items", list);
+        return new Workload(spec, source, context);
+    }
+
+    private static Workload depth(String spec, int depth, boolean pojo) {
+        StringBuilder path = new StringBuilder("root");
+        for (int i = 0; i < depth; i++) {
+            path.append(".child");
+        }
+        path.append(".value");
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            source.append("{{ ").append(path).append(" }} ");
+        }
+
+        Object node = pojo ? new Link("leaf", null) : mapLink("leaf", null);
+        for (int i = 0; i < depth; i++) {
+            node = pojo ? new Link("level-" + i, (Link) node) : mapLink("level-" + i, node);
+        }
+        Map<String, Object> context = new HashMap<>();
+        context.put("root", node);
+        return new Workload(spec, source.toString(), context);
+    }
+
+    private static Map<String, Object> mapLink(String value, Object child) {
+        Map<String, Object> link = new HashMap<>();
+        link.put("value", value);
+        link.put("child", child);
+        return link;
+    }
+
+    private static Workload staticText(String spec, int chars) {
+        String filler = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore. ";
+        StringBuilder source = new StringBuilder(chars + 200);
+        Map<String, Object> context = new HashMap<>();
+        int chunk = Math.max(1, chars / 10);
+        for (int v = 0; v < 10; v++) {
+            int target = (v + 1) * chunk;
+            while (source.length() < target) {
+                source.append(filler, 0, Math.min(filler.length(), target - source.length()));
+            }
+            source.append("{{ var").append(v).append(" }}");
+            context.put("var" + v, "value-" + v);
+        }
+        return new Workload(spec, source.toString(), context);
+    }
+
+    private static Workload macros(String spec, int count) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            source.append("{% macro m").append(i).append("(label, value) %}<b>{{ label }}</b>={{ value }}{% endmacro %}\n");
+        }
+        for (int i = 0; i < count; i++) {
+            source.append("{{ m").append(i).append("('field").append(i).append("', value) }}\n");
+        }
+        Map<String, Object> context = new HashMap<>();
+        context.put("value", 42);
+        return new Workload(spec, source.toString(), context);
+    }
+
+    private static Workload nesting(String spec, int depth) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            String inner = i == depth - 1 ? "{{ body }}" : "{{ level" + (i + 1) + "(title) }}";
+            source.append("{% macro level").append(i).append("(title) %}<div class=\"level-").append(i).append("\"><h2>{{ title }}</h2>")
+                    .append(inner).append("</div>{% endmacro %}\n");
+        }
+        source.append("{{ level0(title) }}");
+        Map<String, Object> context = new HashMap<>();
+        context.put("title", "Section");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+        }
+        context.put("body", body.toString());
+        return new Workload(spec, source.toString(), context);
+    }
+
+    public static class Workload {
+        private final String name;
+        private final String source;
+        private final Map<String, Object> context;
+
+        public Workload(String name, String source, Map<String, Object> context) {
+            this.name = name;
+            this.source = source;
+            this.context = context;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public Map<String, Object> getContext() {
+            return context;
+        }
+    }
+
+    public static class Link {
+        private final String value;
+        private final Link child;
+
+        public Link(String value, Link child) {
+            this.value = value;
+            this.child = child;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public Link getChild() {
+            return child;
+        }
+    }
+}
@@ -1,759 +1,5312 @@
 package com.freakynit.blueprint;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.BaseStream;
 
 import static java.lang.Character.isDigit;
 
 public class Blueprint {
-    private final Map<String, TemplateFunction> functions = new HashMap<>();
-    private final Map<String, TemplateFunction> filters = new HashMap<>();
+    // registered functions and filters. Replaced as a whole on every registration (copy-on-write),
+    // so renders read a stable snapshot without locking.
+    private volatile Registry registry = Registry.EMPTY;
+    private final Object registryLock = new Object();
+
+    // escaping applied to {{ }} output of templates compiled without an explicit mode
+    private volatile EscapeMode defaultEscapeMode = EscapeMode.NONE;
+
+    // backs the {% cache %} tag. Shared by all templates compiled by this engine.
+    private volatile FragmentCache fragmentCache = new LocalFragmentCache(LocalFragmentCache.DEFAULT_MAX_ENTRIES);
+    // key prefixes of the {% cache %} blocks of live templates, so that invalidateFragment(key) reaches every one of them.
+    // Weak, so the prefixes go away with their templates.
+    private final Map<String, Boolean> fragmentNamespaces = Collections.synchronizedMap(new WeakHashMap<>());
+    private final AtomicLong compiledTemplates = new AtomicLong();
+
+    // compile/render counters and histograms; only updated while metrics are enabled
+    private final EngineMetrics metrics = new EngineMetrics();
+    private volatile boolean metricsEnabled;
+
+    // limits applied to every render of this engine's templates, unless a render passes its own; null for none
+    private volatile RenderLimits renderLimits;
+
+    // how templates compiled from now on are executed
+    private volatile ExecutionMode executionMode = ExecutionMode.TREE;
+
+    // static text of compiled templates, shared between all templates of this engine
+    private final TextPool textPool = new TextPool();
+    private volatile boolean textPoolEnabled = true;
 
     public void registerFunction(String name, TemplateFunction func) {
-        functions.put(name, func);
+        synchronized (registryLock) {
+            registry = registry.withFunction(name, func);
+        }
+    }
+
+    // register a function along with metadata (e.g. purity) that lets the engine optimize its calls
+    public void registerFunction(String name, TemplateFunction func, FunctionOptions options) {
+        registerFunction(name, options.wrap(name, func));
     }
+
     public TemplateFunction getFunction(String name) {
-        return functions.get(name);
+        return registry.functions.get(name);
     }
 
     //filters receive the “input” as the first argument.
     public void registerFilter(String name, TemplateFunction filter) {
-        filters.put(name, filter);
+        synchronized (registryLock) {
+            registry = registry.withFilter(name, filter);
+        }
     }
 
-    // Get a registered filter. If no filter is registered, try to fall back to functions.
-    public TemplateFunction getFilter(String name) {
-        TemplateFunction f = filters.get(name);
-        if (f != null) {
-            return f;
+    public void registerFilter(String name, TemplateFunction filter, FunctionOptions options) {
+        registerFilter(name, options.wrap(name, filter));
+    }
+
+    /**
+     * Locks the function/filter registry: further registrations throw an IllegalStateException.
+     * Templates compiled after freezing bind their function and filter calls once, at compile time,
+     * instead of looking them up by name on every call.
+     */
+    public void freeze() {
+        synchronized (registryLock) {
+            registry = registry.frozen();
         }
-        return getFunction(name);
     }
 
-    public Template compile(String templateSource) {
-        Parser parser = new Parser(templateSource, this);
-        List<Node> nodes = parser.parseNodes(Collections.emptySet());
-        return new Template(nodes, this);
+    public boolean isFrozen() {
+        return registry.frozen;
     }
 
-    public String render(String templateSource, Map<String, Object> context) {
-        Template template = compile(templateSource);
-        return template.render(context);
+    // number of calls to a memoized function that were answered from the per-render memo table
+    public long getFunctionSavedCalls(String name) {
+        return savedCalls(registry.functions.get(name));
     }
 
-    // an interface for custom functions that can be called from within templates.
-    public interface TemplateFunction {
-        Object execute(RenderContext context, List<Object> args);
+    public long getFilterSavedCalls(String name) {
+        return savedCalls(registry.filters.get(name));
     }
 
-    // --------------------------------------------------------------------------------
-    // Template and RenderContext classes
-    // --------------------------------------------------------------------------------
+    private static long savedCalls(TemplateFunction func) {
+        return func instanceof RegisteredFunction ? ((RegisteredFunction) func).getSavedCalls() : 0;
+    }
 
-    // holds compiled template
-    public static class Template {
-        private final List<Node> nodes;
-        private final Blueprint engine;
+    // Get a registered filter. If no filter is registered, try to fall back to functions.
+    public TemplateFunction getFilter(String name) {
+        Registry current = registry;
+        TemplateFunction f = current.filters.get(name);
+        if (f != null) {
+            return f;
+        }
+        return current.functions.get(name);
+    }
 
-        // local cache for getter methods, tied to the Template instance to optimize for faster lookups for recurring renderings
-        private final Map<Class<?>, Map<String, java.lang.reflect.Method>> getterCache = new ConcurrentHashMap<>();
+    // an immutable snapshot of the registered functions and filters. Its maps are never modified once published.
+    private static final class Registry {
+        static final Registry EMPTY = new Registry(new HashMap<>(), new HashMap<>(), false);
 
-        public Template(List<Node> nodes, Blueprint engine) {
-            this.nodes = nodes;
-            this.engine = engine;
+        final Map<String, TemplateFunction> functions;
+        final Map<String, TemplateFunction> filters;
+        final boolean frozen;
+
+        private Registry(Map<String, TemplateFunction> functions, Map<String, TemplateFunction> filters, boolean frozen) {
+            this.functions = functions;
+            this.filters = filters;
+            this.frozen = frozen;
         }
 
-        public String render(Map<String, Object> context) {
-            StringBuilder sb = new StringBuilder();
-            // We wrap the context in a RenderContext (which gives variable lookup and function/filter access)
-            RenderContext renderContext = new RenderContext(context, engine, getterCache);
-            for (Node node : nodes) {
-                node.render(renderContext, sb);
-            }
-            return sb.toString();
+        Registry withFunction(String name, TemplateFunction func) {
+            checkNotFrozen("function", name);
+            Map<String, TemplateFunction> copy = new HashMap<>(functions);
+            copy.put(name, func);
+            return new Registry(copy, filters, false);
         }
-    }
 
-    // holds the current context and a pointer to the engine (so that custom functions and filters may be looked up).
-    // Also holds a registry of macros defined in the template.
-    public static class RenderContext {
-        public final Map<String, Object> context;
-        public final Map<String, TemplateFunction> macros = new HashMap<>();
-        private final Blueprint engine;
+        Registry withFilter(String name, TemplateFunction filter) {
+            checkNotFrozen("filter", name);
+            Map<String, TemplateFunction> copy = new HashMap<>(filters);
+            copy.put(name, filter);
+            return new Registry(functions, copy, false);
+        }
 
-        private final Map<Class<?>, Map<String, java.lang.reflect.Method>> getterCache;
+        Registry frozen() {
+            return frozen ? this : new Registry(functions, filters, true);
+        }
 
-        public RenderContext(Map<String, Object> context, Blueprint engine, Map<Class<?>, Map<String, java.lang.reflect.Method>> getterCache) {
-            this.context = context;
-            this.engine = engine;
-            this.getterCache = getterCache;
+        private void checkNotFrozen(String kind, String name) {
+            if (frozen) {
+                throw new IllegalStateException("Engine is frozen: cannot register " + kind + " '" + name + "'");
+            }
         }
+    }
 
-        // resolve a variable name from the context. Supports “dot–notation” and array access using bracket–notation.
-        // Examples: "user.name" or "user.colors[0]" or "matrix[1][2]".
-        public Object resolve(String variable) {
-            // Check if the variable has a dot to separate into tokens.
-            int dotIndex = variable.indexOf('.');
-            String firstToken = (dotIndex == -1) ? variable : variable.substring(0, dotIndex);
-            Object value;
+    public Template compile(String templateSource) {
+        return compile(templateSource, new CompileOptions());
+    }
 
-            // If the first token contains a bracket, extract the base variable name.
-            int bracketIndex = firstToken.indexOf('[');
-            if (bracketIndex != -1) {
-                String baseVar = firstToken.substring(0, bracketIndex);
-                value = context.get(baseVar);
-                // Process the remaining bracket parts (e.g. "[1]").
-                String remaining = firstToken.substring(bracketIndex);
-                value = resolvePart(value, remaining);
-            } else {
-                value = context.get(firstToken);
-            }
+    public Template compile(String templateSource, CompileOptions options) {
+        if (!metricsEnabled) {
+            return new Template(parse(templateSource, options), this, options.getName());
+        }
+        long start = System.nanoTime();
+        try {
+            Template template = new Template(parse(templateSource, options), this, options.getName());
+            metrics.compiled(template, System.nanoTime() - start);
+            return template;
+        } catch (RuntimeException e) {
+            metrics.compileErrors.increment();
+            throw e;
+        }
+    }
 
-            // If there are additional dot-separated parts, process them.
-            if (dotIndex != -1) {
-                String[] parts = variable.substring(dotIndex + 1).split("\\.");
-                for (String part : parts) {
-                    value = resolvePart(value, part);
-                    if (value == null) {
-                        break;
-                    }
-                }
-            }
-            return value;
+    private List<Node> parse(String templateSource, CompileOptions options) {
+        Parser parser = new Parser(templateSource, this, options);
+        List<Node> nodes = parser.parseNodes(Collections.emptySet());
+        // profiled templates keep their instrumented tree
+        if (executionMode == ExecutionMode.FLAT && options.getProfiler() == null) {
+            return Collections.singletonList(FlatProgram.compile(nodes, this));
         }
+        return nodes;
+    }
 
-        // helper to support index lookups (e.g. "colors[0]")
-        private Object resolvePart(Object value, String part) {
-            int bracketIndex = part.indexOf('[');
-            if (bracketIndex == -1) {
-                return getProperty(value, part);
-            } else {
-                // first, resolve the property (if any) before the first '['
-                String propName = part.substring(0, bracketIndex);
-                if (!propName.isEmpty()) {
-                    value = getProperty(value, propName);
-                }
-                // process one or more indices (e.g. [0][1])
-                while (bracketIndex != -1) {
-                    int endBracket = part.indexOf(']', bracketIndex);
-                    if (endBracket == -1) {
-                        return null; // malformed
-                    }
-                    String indexStr = part.substring(bracketIndex + 1, endBracket).trim();
-                    int index;
-                    try {
-                        index = Integer.parseInt(indexStr);
-                    } catch (NumberFormatException e) {
-                        return null;
-                    }
-                    value = getIndexedValue(value, index);
-                    if (value == null) {
-                        return null;
-                    }
-                    bracketIndex = part.indexOf('[', endBracket);
-                }
-                return value;
-            }
+    /**
+     * Selects how templates compiled from now on are executed. TREE (the default) walks the compiled node tree;
+     * FLAT compiles each template into one instruction array (see FlatProgram), which takes less memory per template.
+     * Both produce the same output. Templates compiled with a profiler always use the tree.
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        if (executionMode == null) {
+            throw new IllegalArgumentException("Execution mode cannot be null");
         }
+        this.executionMode = executionMode;
+    }
 
-        // helper to retrieve a property value from an object. If the object is a map, then the property is
-        // fetched directly. Otherwise, we try to call a getter method with the camelCase name.
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
 
-        // For example, a property "name" is looked up as:
-        // - If value is a Map: map.get("name")
-        // - Otherwise: value.getClass().getMethod("getName") or, for booleans, value.getClass().getMethod("isName")
+    // identical static text of templates compiled from now on is stored once (on by default)
+    public void setTextPoolEnabled(boolean enabled) {
+        this.textPoolEnabled = enabled;
+    }
 
-        // This method uses the cache stored in the Template
-        private Object getProperty(Object value, String property) {
-            if (value instanceof Map) {
-                return ((Map<?, ?>) value).get(property);
-            }
-            if (value == null || property == null || property.isEmpty()) {
-                return null;
-            }
+    public boolean isTextPoolEnabled() {
+        return textPoolEnabled;
+    }
 
-            Class<?> cls = value.getClass();
-            Map<String, Method> classCache = getterCache.computeIfAbsent(cls, k -> new ConcurrentHashMap<>());
+    public TextPool getTextPool() {
+        return textPool;
+    }
 
-            if (classCache.containsKey(property)) {
-                Method cachedMethod = classCache.get(property);
-                return (cachedMethod != null) ? invokeGetter(value, cachedMethod) : null;
-            }
+    String pooledText(String text) {
+        return textPoolEnabled ? textPool.intern(text) : text;
+    }
 
-            // build the expected getter method name using camelCase conversion
-            String getterName = "get" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
-            Method method = null;
-            try {
-                method = cls.getMethod(getterName);
-            } catch (NoSuchMethodException e) {
-                // if not found, try the boolean "is" style getter
-                String isGetterName = "is" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
-                try {
-                    method = cls.getMethod(isGetterName);
-                } catch (NoSuchMethodException e2) {
-                    method = null;
-                }
-            }
-            // cache the result (even if null) so we don't repeat expensive reflection calls
-            classCache.put(property, method);
-            return (method != null) ? invokeGetter(value, method) : null;
-        }
+    // metrics are off by default. Enabling them costs two clock reads and a few striped counter updates per render.
+    public void setMetricsEnabled(boolean enabled) {
+        this.metricsEnabled = enabled;
+    }
 
-        private Object invokeGetter(Object value, Method method) {
-            try {
-                return method.invoke(value);
-            } catch (IllegalAccessException | InvocationTargetException e) {
-                return null;
-            }
-        }
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
 
-        // helper to retrieve an element from a List or array
-        private Object getIndexedValue(Object value, int index) {
-            if (value instanceof List) {
-                List<?> list = (List<?>) value;
-                if (index >= 0 && index < list.size()) {
-                    return list.get(index);
-                }
-            } else if (value != null && value.getClass().isArray()) {
-                int len = Array.getLength(value);
-                if (index >= 0 && index < len) {
-                    return Array.get(value, index);
-                }
-            }
-            return null;
+    public EngineMetrics getMetrics() {
+        return metrics;
+    }
+
+    // expose the metrics as an MXBean on the platform MBean server, e.g. for JConsole or a JMX exporter
+    public ObjectName registerMetricsMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.freakynit.blueprint:type=Blueprint,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new RuntimeException("Failed to register metrics MBean: " + name, e);
         }
+    }
 
-        // look up a custom function or macro.
-        // Macros (defined in the template) take precedence over engine–registered functions
-        public TemplateFunction getFunction(String name) {
-            if (macros.containsKey(name)) {
-                return macros.get(name);
-            }
-            return engine.getFunction(name);
+    public void unregisterMetricsMBean(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new RuntimeException("Failed to unregister metrics MBean: " + objectName, e);
         }
+    }
 
-        // look up a custom filter
-        public TemplateFunction getFilter(String name) {
-            TemplateFunction f = engine.getFilter(name);
-            if (f != null) {
-                return f;
-            }
-            return getFunction(name);
+    public void setDefaultEscapeMode(EscapeMode escapeMode) {
+        if (escapeMode == null) {
+            throw new IllegalArgumentException("Escape mode cannot be null");
         }
+        this.defaultEscapeMode = escapeMode;
     }
 
-    // --------------------------------------------------------------------------------
-    // Node types (AST)
-    // --------------------------------------------------------------------------------
+    public EscapeMode getDefaultEscapeMode() {
+        return defaultEscapeMode;
+    }
 
-    public static abstract class Node {
-        public abstract void render(RenderContext context, StringBuilder sb);
+    // limits for all renders of this engine's templates (including async and batch renders). null removes them.
+    public void setRenderLimits(RenderLimits renderLimits) {
+        this.renderLimits = renderLimits;
     }
 
-    // literal text node
-    public static class TextNode extends Node {
-        private final String text;
+    public RenderLimits getRenderLimits() {
+        return renderLimits;
+    }
 
-        public TextNode(String text) {
-            this.text = text;
-        }
+    public String render(String templateSource, Map<String, Object> context) {
+        Template template = compile(templateSource);
+        return template.render(context);
+    }
 
-        @Override
-        public void render(RenderContext context, StringBuilder sb) {
-            sb.append(text);
+    // plug in a custom fragment store (e.g. a distributed cache). Affects all templates of this engine.
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        if (fragmentCache == null) {
+            throw new IllegalArgumentException("Fragment cache cannot be null");
         }
+        this.fragmentCache = fragmentCache;
     }
 
-    // variable expression (e.g. {{ name }}) node
-    public static class VariableNode extends Node {
-        private final Expression expression;
+    public FragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
 
-        public VariableNode(Expression expression) {
-            this.expression = expression;
+    // drop the fragments cached under a key by any template, e.g. after the data behind them has changed
+    public void invalidateFragment(String key) {
+        List<String> namespaces;
+        synchronized (fragmentNamespaces) {
+            namespaces = new ArrayList<>(fragmentNamespaces.keySet());
         }
-
-        @Override
-        public void render(RenderContext context, StringBuilder sb) {
-            Object value = expression.evaluate(context);
-            if (value != null) {
-                sb.append(value.toString());
-            }
+        for (String namespace : namespaces) {
+            fragmentCache.invalidate(namespace + key);
         }
+        fragmentCache.invalidate(key);
     }
 
-    // if/else block node
-    public static class IfNode extends Node {
-        private final Expression condition;
-        private final List<Node> trueNodes;
-        private final List<Node> falseNodes;
+    // the key prefix of the {% cache %} blocks of one compiled template with one escape mode. Fragments are never
+    // shared between templates (not even two compilations of one source), nor between escape modes.
+    String fragmentNamespace(String templateName, long templateId, EscapeMode escapeMode) {
+        String namespace = (templateName != null ? templateName : "") + '#' + templateId + '|' + escapeMode + '|';
+        fragmentNamespaces.put(namespace, Boolean.TRUE);
+        return namespace;
+    }
 
-        public IfNode(Expression condition, List<Node> trueNodes, List<Node> falseNodes) {
-            this.condition = condition;
-            this.trueNodes = trueNodes;
-            this.falseNodes = falseNodes;
-        }
+    long nextTemplateId() {
+        return compiledTemplates.incrementAndGet();
+    }
+
+    public void invalidateAllFragments() {
+        fragmentCache.invalidateAll();
+    }
+
+    // an interface for custom functions that can be called from within templates.
+    public interface TemplateFunction {
+        Object execute(RenderContext context, List<Object> args);
+    }
+
+    /**
+     * A filter that maps text to text. Chains of pure text filters with constant arguments
+     * (e.g. {{ note | replace("please", "kindly") | capitalize }}) are fused at compile time: every stage writes into
+     * a reused buffer, the last one straight into the output, without intermediate Strings or argument lists.
+     * Used as a regular filter or function, null renders as "" and any other value is filtered as its text.
+     */
+    @FunctionalInterface
+    public interface TextFilter extends TemplateFunction {
+        // appends the filtered input to out. args are the filter's arguments, without the input.
+        void apply(CharSequence input, List<Object> args, StringBuilder out);
 
         @Override
-        public void render(RenderContext context, StringBuilder sb) {
-            Object cond = condition.evaluate(context);
-            boolean truth = isTrue(cond);
-            List<Node> nodesToRender = truth ? trueNodes : falseNodes;
-            if (nodesToRender != null) {
-                for (Node node : nodesToRender) {
-                    node.render(context, sb);
-                }
+        default Object execute(RenderContext context, List<Object> args) {
+            if (args.isEmpty() || args.get(0) == null) {
+                return "";
             }
+            Object value = args.get(0);
+            StringBuilder out = new StringBuilder();
+            apply(value instanceof CharSequence ? (CharSequence) value : value.toString(), args.subList(1, args.size()), out);
+            return out.toString();
         }
+    }
 
-        private boolean isTrue(Object cond) {
-            if (cond == null) return false;
-            if (cond instanceof Boolean) return (Boolean) cond;
-            if (cond instanceof Number) return ((Number) cond).doubleValue() != 0;
-            if (cond instanceof String) return !((String) cond).isEmpty();
-            return true;
+    /**
+     * A pure filter that can do part of its work when a template is compiled. If all arguments after the input are
+     * constants (e.g. {{ invoice.date | date("dd.MM.yyyy") }}), compile(args) is called once with their values, and the
+     * function it returns handles every render of that call site (here: with the pattern already parsed).
+     */
+    public interface CompilableFilter extends TemplateFunction {
+        // args are the constant arguments, without the input. Returns null if there is nothing to prepare.
+        TemplateFunction compile(List<Object> args);
+    }
+
+    /**
+     * A filter whose result is text that it can write piece by piece (e.g. joining the elements of a collection).
+     * As the last filter of an output expression ({{ items | join(", ") }}), it appends straight to the output and
+     * its result is never built as a value. Anywhere else it is called like any other filter.
+     */
+    @FunctionalInterface
+    public interface AppendingFilter extends TemplateFunction {
+        // appends the result for the given input (which may be null) to out. args are the filter's arguments, without the input.
+        void appendTo(Object input, List<Object> args, StringBuilder out);
+
+        @Override
+        default Object execute(RenderContext context, List<Object> args) {
+            StringBuilder out = new StringBuilder();
+            appendTo(args.isEmpty() ? null : args.get(0), args.isEmpty() ? args : args.subList(1, args.size()), out);
+            return out.toString();
         }
     }
 
-    // for–loop node
-    public static class ForNode extends Node {
-        private final String loopVar;
-        private final Expression listExpression;
-        private final List<Node> bodyNodes;
+    /**
+     * Registration metadata for functions and filters.
+     * - pure: the result depends only on the arguments (no randomness, clock, I/O or context lookups).
+     *   Calls to pure functions whose arguments are all constants are evaluated once, at compile time.
+     * - memoized: repeated calls with equal arguments within one render are answered from a per-render memo table.
+     *   Implies pure. Only worth it for expensive functions, as every call pays for hashing its arguments.
+     * - lazyArguments: non-constant arguments are passed as LazyValues that are evaluated on first
+     *   context.unwrap(...), so arguments the function doesn't look at are never computed (e.g. the fallback of
+     *   default(x, expensive())). Cannot be combined with memoized, which needs every argument to build its key.
+     */
+    public static class FunctionOptions {
+        private boolean pure;
+        private boolean memoized;
+        private boolean lazyArguments;
+
+        public FunctionOptions pure() {
+            this.pure = true;
+            return this;
+        }
 
-        public ForNode(String loopVar, Expression listExpression, List<Node> bodyNodes) {
-            this.loopVar = loopVar;
-            this.listExpression = listExpression;
-            this.bodyNodes = bodyNodes;
+        public FunctionOptions memoized() {
+            this.pure = true;
+            this.memoized = true;
+            return this;
         }
 
-        @Override
-        public void render(RenderContext context, StringBuilder sb) {
-            Object listVal = listExpression.evaluate(context);
-            if (listVal instanceof Iterable) {
-                // save any existing values for the "loop" meta key *and* the loop variable itself
-                Object originalLoopMeta = context.context.get("loop");
-                Object originalLoopVar = context.context.get(loopVar);
+        public FunctionOptions lazyArguments() {
+            this.lazyArguments = true;
+            return this;
+        }
 
-                int index = 0;
-                for (Object item : (Iterable<?>) listVal) {
-                    // set the loop variable for the current iteration
-                    context.context.put(loopVar, item);
+        public boolean isPure() {
+            return pure;
+        }
 
-                    // create a "loop" map with the current index and other meta info if needed
-                    Map<String, Object> loopInfo = new HashMap<>();
-                    loopInfo.put("index", index);
-                    context.context.put("loop", loopInfo);
+        public boolean isMemoized() {
+            return memoized;
+        }
 
-                    for (Node node : bodyNodes) {
-                        node.render(context, sb);
-                    }
-                    index++;
-                }
-                // restore the original loop variable if it existed; otherwise, remove it
-                if (originalLoopVar != null) {
-                    context.context.put(loopVar, originalLoopVar);
-                } else {
-                    context.context.remove(loopVar);
-                }
-                // restore the original "loop" meta key
-                if (originalLoopMeta != null) {
-                    context.context.put("loop", originalLoopMeta);
-                } else {
-                    context.context.remove("loop");
-                }
+        public boolean hasLazyArguments() {
+            return lazyArguments;
+        }
+
+        private TemplateFunction wrap(String name, TemplateFunction func) {
+            if (memoized && lazyArguments) {
+                throw new IllegalArgumentException("Function '" + name + "' cannot be both memoized and take lazy arguments");
             }
+            return new RegisteredFunction(name, func, pure, memoized, lazyArguments);
         }
     }
 
-    // set–assignment (e.g. {% set foo = "bar" %}) node
-    public static class SetNode extends Node {
-        private final String variableName;
-        private final Expression expression;
+    // per-template compilation settings. Unset options fall back to the engine's defaults.
+    public static class CompileOptions {
+        private String name;
+        private EscapeMode escapeMode;
+        private RenderProfiler profiler;
+        private ContextSchema schema;
 
-        public SetNode(String variableName, Expression expression) {
-            this.variableName = variableName;
-            this.expression = expression;
+        // templates with a name get their own render metrics; unnamed ones are reported together
+        public CompileOptions name(String name) {
+            this.name = name;
+            return this;
         }
 
-        @Override
-        public void render(RenderContext context, StringBuilder sb) {
-            Object value = expression.evaluate(context);
-            context.context.put(variableName, value);
+        public CompileOptions escapeMode(EscapeMode escapeMode) {
+            this.escapeMode = escapeMode;
+            return this;
+        }
+
+        // compile an instrumented node tree that reports into the given profiler. Templates compiled
+        // without a profiler carry no instrumentation at all.
+        public CompileOptions profiler(RenderProfiler profiler) {
+            this.profiler = profiler;
+            return this;
+        }
+
+        // compile variable access against the given context shape. Renders with a SlotContext of this schema
+        // read variables by slot index; any other context map still works, through regular lookups.
+        public CompileOptions schema(ContextSchema schema) {
+            this.schema = schema;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ContextSchema getSchema() {
+            return schema;
+        }
+
+        public EscapeMode getEscapeMode() {
+            return escapeMode;
+        }
+
+        public RenderProfiler getProfiler() {
+            return profiler;
         }
     }
 
     /**
-     * A node representing a macro definition.
-     * Example:
-     * {% macro shout(text) %}
-     *   {{ upper(text) }}!!!
-     * {% endmacro %}
+     * Bounds on the work a single render may do: characters of output, loop iterations (over all loops), nesting depth
+     * of macro calls and wall-clock time. Limits that are not set are unlimited. A render that exceeds a limit is
+     * aborted with a RenderLimitExceededException.
      *
-     * When rendered, the macro is registered in the RenderContext and produces no output.
+     * Limits are checked where renders can run away: on every loop iteration and macro call. The output size is
+     * compared there (and once more at the end), and the clock is only read every CLOCK_CHECK_INTERVAL of these
+     * steps, so a render may overshoot the time limit by that many steps.
      */
-    public static class MacroNode extends Node {
-        private final String name;
-        private final List<String> parameters;
-        private final List<Node> body;
+    public static class RenderLimits {
+        public static final int CLOCK_CHECK_INTERVAL = 1024;
 
-        public MacroNode(String name, List<String> parameters, List<Node> body) {
-            this.name = name;
-            this.parameters = parameters;
-            this.body = body;
+        private long maxOutputChars = Long.MAX_VALUE;
+        private long maxIterations = Long.MAX_VALUE;
+        private int maxMacroDepth = Integer.MAX_VALUE;
+        private long timeoutNanos = Long.MAX_VALUE;
+
+        public RenderLimits maxOutputChars(long maxOutputChars) {
+            this.maxOutputChars = positive("maxOutputChars", maxOutputChars);
+            return this;
         }
 
-        @Override
-        public void render(RenderContext context, StringBuilder sb) {
-            MacroFunction macroFunc = new MacroFunction(parameters, body, context);
-            context.macros.put(name, macroFunc);
-            // macro definitions produce no output... they are just holders
+        public RenderLimits maxIterations(long maxIterations) {
+            this.maxIterations = positive("maxIterations", maxIterations);
+            return this;
+        }
+
+        public RenderLimits maxMacroDepth(int maxMacroDepth) {
+            this.maxMacroDepth = (int) positive("maxMacroDepth", maxMacroDepth);
+            return this;
+        }
+
+        public RenderLimits timeout(long timeout, TimeUnit unit) {
+            this.timeoutNanos = unit.toNanos(positive("timeout", timeout));
+            return this;
+        }
+
+        private static long positive(String name, long value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return value;
+        }
+
+        public long getMaxOutputChars() {
+            return maxOutputChars;
+        }
+
+        public long getMaxIterations() {
+            return maxIterations;
+        }
+
+        public int getMaxMacroDepth() {
+            return maxMacroDepth;
+        }
+
+        public long getTimeoutNanos() {
+            return timeoutNanos;
+        }
+
+        boolean isUnlimited() {
+            return maxOutputChars == Long.MAX_VALUE && maxIterations == Long.MAX_VALUE
+                    && maxMacroDepth == Integer.MAX_VALUE && timeoutNanos == Long.MAX_VALUE;
         }
     }
 
-    // --------------------------------------------------------------------------------
-    // Expression classes
-    // --------------------------------------------------------------------------------
+    // thrown when a render exceeds one of its RenderLimits
+    public static class RenderLimitExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-    /**
-     * An expression can be evaluated to produce a value.
-     */
-    public static abstract class Expression {
-        public abstract Object evaluate(RenderContext context);
+        public enum Limit {
+            OUTPUT_CHARS, ITERATIONS, MACRO_DEPTH, TIME
+        }
+
+        private final Limit limit;
+        private final long maxValue;
+
+        public RenderLimitExceededException(Limit limit, long maxValue, String message) {
+            super(message);
+            this.limit = limit;
+            this.maxValue = maxValue;
+        }
+
+        public Limit getLimit() {
+            return limit;
+        }
+
+        // the configured maximum that was exceeded (nanoseconds for TIME)
+        public long getMaxValue() {
+            return maxValue;
+        }
     }
 
-    // literal value expression (number or string, e.g. {{ 5 }} or {{ "hello" }})
-    public static class LiteralExpression extends Expression {
-        private final Object value;
+    // a function or filter registered along with FunctionOptions
+    public static class RegisteredFunction implements TemplateFunction {
+        private final String name;
+        private final TemplateFunction delegate;
+        private final boolean pure;
+        private final boolean memoized;
+        private final boolean lazyArguments;
+        private final LongAdder savedCalls = new LongAdder();
+
+        public RegisteredFunction(String name, TemplateFunction delegate, boolean pure, boolean memoized) {
+            this(name, delegate, pure, memoized, false);
+        }
 
-        public LiteralExpression(Object value) {
-            this.value = value;
+        public RegisteredFunction(String name, TemplateFunction delegate, boolean pure, boolean memoized, boolean lazyArguments) {
+            this.name = name;
+            this.delegate = delegate;
+            this.pure = pure;
+            this.memoized = memoized;
+            this.lazyArguments = lazyArguments;
         }
 
         @Override
-        public Object evaluate(RenderContext context) {
+        public Object execute(RenderContext context, List<Object> args) {
+            if (!memoized || context == null) {
+                return delegate.execute(context, args);
+            }
+            Map<MemoKey, Object> memo = context.state.memoTable();
+            MemoKey key = new MemoKey(this, args);
+            Object value = memo.get(key);
+            if (value != null || memo.containsKey(key)) {
+                savedCalls.increment();
+                return value;
+            }
+            value = delegate.execute(context, args);
+            memo.put(key, value);
             return value;
         }
-    }
 
-    // object literal expression (e.g. { firstName: "alice", lastName: "smith", age: 30 })
-    public static class ObjectLiteralExpression extends Expression {
-        private final Map<String, Expression> entries;
+        public String getName() {
+            return name;
+        }
 
-        public ObjectLiteralExpression(Map<String, Expression> entries) {
-            this.entries = entries;
+        public TemplateFunction getDelegate() {
+            return delegate;
         }
 
-        @Override
-        public Object evaluate(RenderContext context) {
-            Map<String, Object> result = new HashMap<>();
-            for (Map.Entry<String, Expression> entry : entries.entrySet()) {
-                result.put(entry.getKey(), entry.getValue().evaluate(context));
+        public boolean isPure() {
+            return pure;
+        }
+
+        public boolean isMemoized() {
+            return memoized;
+        }
+
+        public boolean hasLazyArguments() {
+            return lazyArguments;
+        }
+
+        // the argument as passed to func: evaluated now, or on first unwrap for functions that take lazy arguments
+        static Object argument(TemplateFunction func, Expression argExp, RenderContext context) {
+            if (argExp instanceof LiteralExpression || !(func instanceof RegisteredFunction) || !((RegisteredFunction) func).lazyArguments) {
+                return argExp.evaluate(context);
             }
-            return result;
+            return LazyValue.of(() -> argExp.evaluate(context));
+        }
+
+        public long getSavedCalls() {
+            return savedCalls.sum();
         }
     }
 
-    // array literal expression (e.g. [ { name: "Bob", age: 22 }, { name: "Charlie", age: 27 } ])
-    public static class ArrayLiteralExpression extends Expression {
-        private final List<Expression> elements;
+    // key of the per-render memo table: function identity plus argument values
+    private static final class MemoKey {
+        private final TemplateFunction function;
+        private final List<Object> args;
+        private final int hash;
 
-        public ArrayLiteralExpression(List<Expression> elements) {
-            this.elements = elements;
+        MemoKey(TemplateFunction function, List<Object> args) {
+            this.function = function;
+            this.args = args;
+            this.hash = 31 * System.identityHashCode(function) + args.hashCode();
         }
 
         @Override
-        public Object evaluate(RenderContext context) {
-            List<Object> list = new ArrayList<>();
-            for (Expression expr : elements) {
-                list.add(expr.evaluate(context));
+        public boolean equals(Object o) {
+            if (!(o instanceof MemoKey)) {
+                return false;
             }
-            return list;
+            MemoKey other = (MemoKey) o;
+            return function == other.function && args.equals(other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
         }
     }
 
-    // variable expression (e.g. “user.name” or “user.colors[0]”)
-    public static class VariableExpression extends Expression {
+    // --------------------------------------------------------------------------------
+    // Template and RenderContext classes
+    // --------------------------------------------------------------------------------
+
+    // holds compiled template
+    public static class Template {
+        private final List<Node> nodes;
+        private final Blueprint engine;
         private final String name;
+        // looked up on the first render with metrics enabled, so templates that are never metered hold no counters
+        private volatile TemplateMetrics metrics;
 
-        public VariableExpression(String name) {
+        // local cache for getter methods, tied to the Template instance to optimize for faster lookups for recurring renderings
+        private final Map<Class<?>, Map<String, java.lang.reflect.Method>> getterCache = new ConcurrentHashMap<>();
+        // computed on first use; templates never change after compilation
+        private volatile TemplateAnalysis analysis;
+
+        public Template(List<Node> nodes, Blueprint engine) {
+            this(nodes, engine, null);
+        }
+
+        public Template(List<Node> nodes, Blueprint engine, String name) {
+            this.nodes = nodes;
+            this.engine = engine;
             this.name = name;
         }
 
-        @Override
-        public Object evaluate(RenderContext context) {
-            return context.resolve(name);
+        private TemplateMetrics metrics() {
+            TemplateMetrics result = metrics;
+            if (result == null) {
+                result = engine.metrics.template(name);
+                metrics = result;
+            }
+            return result;
         }
-    }
 
-    // function–call expression (e.g. {{ upper(name) }})
-    public static class FunctionCallExpression extends Expression {
-        private final String functionName;
-        private final List<Expression> arguments;
+        public String getName() {
+            return name;
+        }
 
-        public FunctionCallExpression(String functionName, List<Expression> arguments) {
-            this.functionName = functionName;
-            this.arguments = arguments;
+        /**
+         * Estimates the heap this template keeps alive, in bytes: its nodes, expressions, text and caches. Objects
+         * shared with other templates are not counted: the engine and its registered functions, text held by the
+         * engine's TextPool (see TextPool.estimateRetainedHeap()), classes and reflective methods. The estimate
+         * assumes compressed references and may be off by a few percent.
+         */
+        public long estimateRetainedHeap() {
+            return HeapEstimator.estimate(this, engine);
         }
 
-        @Override
-        public Object evaluate(RenderContext context) {
-            TemplateFunction func = context.getFunction(functionName);
-            if (func == null) {
-                throw new RuntimeException("Function not found: " + functionName);
-            }
-            List<Object> args = new ArrayList<>();
-            for (Expression argExp : arguments) {
-                args.add(argExp.evaluate(context));
-            }
-            return func.execute(context, args);
+        public String render(Map<String, Object> context) {
+            StringBuilder sb = new StringBuilder();
+            render(context, sb);
+            return sb.toString();
         }
-    }
 
-    // binary expression (e.g. a >= 18, foo and bar)
-    public static class BinaryExpression extends Expression {
-        private final Expression left;
-        private final Expression right;
-        private final String operator;
+        // render with the given limits instead of the engine's
+        public String render(Map<String, Object> context, RenderLimits limits) {
+            StringBuilder sb = new StringBuilder();
+            render(context, sb, limits);
+            return sb.toString();
+        }
 
-        public BinaryExpression(Expression left, String operator, Expression right) {
-            this.left = left;
-            this.operator = operator;
-            this.right = right;
+        // render by appending to an existing buffer, e.g. one that is reused across renders
+        public void render(Map<String, Object> context, StringBuilder sb) {
+            render(context, sb, engine.renderLimits);
         }
 
-        @Override
-        public Object evaluate(RenderContext context) {
-            Object leftVal = left.evaluate(context);
-            Object rightVal = right.evaluate(context);
-            switch (operator) {
-                case "or":
-                    return isTrue(leftVal) || isTrue(rightVal);
-                case "and":
-                    return isTrue(leftVal) && isTrue(rightVal);
-                case "==":
-                    return (leftVal == null && rightVal == null) || (leftVal != null && leftVal.equals(rightVal));
-                case "!=":
-                    return !((leftVal == null && rightVal == null) || (leftVal != null && leftVal.equals(rightVal)));
-                case ">":
-                    return compare(leftVal, rightVal) > 0;
-                case ">=":
-                    return compare(leftVal, rightVal) >= 0;
-                case "<":
-                    return compare(leftVal, rightVal) < 0;
-                case "<=":
-                    return compare(leftVal, rightVal) <= 0;
-                case "+":
-                    if (leftVal instanceof Number && rightVal instanceof Number) {
-                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
-                            return ((Integer) leftVal) + ((Integer) rightVal);
-                        } else {
-                            return ((Number) leftVal).doubleValue() + ((Number) rightVal).doubleValue();
-                        }
-                    }
-                    return String.valueOf(leftVal) + String.valueOf(rightVal);
-                case "-":
-                    if (leftVal instanceof Number && rightVal instanceof Number) {
-                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
-                            return ((Integer) leftVal) - ((Integer) rightVal);
-                        } else {
-                            return ((Number) leftVal).doubleValue() - ((Number) rightVal).doubleValue();
-                        }
-                    }
-                    throw new RuntimeException(String.format("Cannot subtract non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
-                case "*":
-                    if (leftVal instanceof Number && rightVal instanceof Number) {
-                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
-                            return ((Integer) leftVal) * ((Integer) rightVal);
-                        } else {
-                            return ((Number) leftVal).doubleValue() * ((Number) rightVal).doubleValue();
-                        }
+        public void render(Map<String, Object> context, StringBuilder sb, RenderLimits limits) {
+            if (!engine.metricsEnabled) {
+                renderNodes(context, sb, limits);
+                return;
+            }
+            long start = System.nanoTime();
+            int startLength = sb.length();
+            try {
+                renderNodes(context, sb, limits);
+            } catch (RuntimeException e) {
+                engine.metrics.renderFailed(metrics());
+                throw e;
+            }
+            engine.metrics.rendered(metrics(), System.nanoTime() - start, sb.length() - startLength);
+        }
+
+        private void renderNodes(Map<String, Object> context, StringBuilder sb, RenderLimits limits) {
+            // We wrap the context in a RenderContext (which gives variable lookup and function/filter access)
+            RenderContext renderContext = new RenderContext(context, engine, getterCache);
+            RenderBudget budget = RenderBudget.of(limits, sb);
+            renderContext.state.budget = budget;
+            for (Node node : nodes) {
+                node.render(renderContext, sb);
+            }
+            if (budget != null) {
+                budget.checkOutput(sb);
+            }
+        }
+
+        // number of getter methods cached for the classes seen by this template so far
+        int getterCacheSize() {
+            int size = 0;
+            for (Map<String, Method> getters : getterCache.values()) {
+                size += getters.size();
+            }
+            return size;
+        }
+
+        /**
+         * Renders asynchronously. Context values (and function results) that are futures are awaited only when an
+         * expression actually needs their value. A pending future in output position (e.g. {{ account.balance }}) does
+         * not block at all: its position is remembered, the rest of the template keeps rendering, and the value is
+         * spliced in once it completes. Futures in conditions, loops or arguments are awaited on the render thread.
+         *
+         * The render runs on the given executor. Blocking waits are cheap on virtual threads, so on Java 21+ pass
+         * Executors.newVirtualThreadPerTaskExecutor(), or use renderAsync(Map), which picks it when available.
+         */
+        public CompletableFuture<String> renderAsync(Map<String, Object> context, Executor executor) {
+            if (engine.metricsEnabled) {
+                // latency of an async render runs until its last pending value has been spliced in
+                long start = System.nanoTime();
+                return renderAsyncNodes(context, executor).whenComplete((output, error) -> {
+                    if (error != null) {
+                        engine.metrics.renderFailed(metrics());
+                    } else {
+                        engine.metrics.rendered(metrics(), System.nanoTime() - start, output.length());
                     }
-                    throw new RuntimeException(String.format("Cannot multiply non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
-                case "/":
-                    if (leftVal instanceof Number && rightVal instanceof Number) {
-                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
-                            int divisor = (Integer) rightVal;
-                            if (divisor == 0) {
-                                throw new RuntimeException("Division by zero");
-                            }
-                            return ((Integer) leftVal) / divisor;
-                        } else {
-                            double divisor = ((Number) rightVal).doubleValue();
-                            if (divisor == 0.0) {
-                                throw new RuntimeException("Division by zero");
-                            }
-                            return ((Number) leftVal).doubleValue() / divisor;
-                        }
+                });
+            }
+            return renderAsyncNodes(context, executor);
+        }
+
+        private CompletableFuture<String> renderAsyncNodes(Map<String, Object> context, Executor executor) {
+            return CompletableFuture.supplyAsync(() -> {
+                StringBuilder sb = new StringBuilder();
+                RenderContext renderContext = new RenderContext(context, engine, getterCache);
+                AsyncRender async = new AsyncRender(sb);
+                renderContext.state.async = async;
+                // limits cover the values spliced in later as well
+                RenderBudget budget = RenderBudget.of(engine.renderLimits, sb);
+                renderContext.state.budget = budget;
+                async.budget = budget;
+                for (Node node : nodes) {
+                    node.render(renderContext, sb);
+                }
+                if (budget != null) {
+                    budget.checkOutput(sb);
+                }
+                return async;
+            }, executor).thenCompose(AsyncRender::complete);
+        }
+
+        // the context paths, functions, filters and macros this template uses. See TemplateAnalysis.
+        public TemplateAnalysis analyze() {
+            TemplateAnalysis result = analysis;
+            if (result == null) {
+                result = TemplateAnalysis.of(nodes);
+                analysis = result;
+            }
+            return result;
+        }
+
+        // an incremental render session over the given context. See RenderSession.
+        public RenderSession session(Map<String, Object> context) {
+            return new RenderSession(this, context);
+        }
+
+        // renders on virtual threads when running on Java 21+, otherwise on the common fork-join pool
+        public CompletableFuture<String> renderAsync(Map<String, Object> context) {
+            return renderAsync(context, AsyncRender.DEFAULT_EXECUTOR);
+        }
+
+        // render every context in order on the common fork-join pool. See renderBatch(Spliterator, ForkJoinPool, boolean, BatchSink).
+        public long renderBatch(Iterable<? extends Map<String, Object>> contexts, BatchSink sink) {
+            return renderBatch(contexts.spliterator(), ForkJoinPool.commonPool(), true, sink);
+        }
+
+        public long renderBatch(Iterable<? extends Map<String, Object>> contexts, ForkJoinPool pool, boolean ordered, BatchSink sink) {
+            return renderBatch(contexts.spliterator(), pool, ordered, sink);
+        }
+
+        /**
+         * Renders this template once per context, spreading the renders over the given fork-join pool.
+         * Contexts are consumed in windows, so only a bounded number of contexts and outputs is held in memory at once.
+         * Each worker thread reuses its output buffer across renders; a buffer that grew past 16K chars is dropped
+         * after the chunk that grew it, so large outputs don't stay pinned to pool threads.
+         *
+         * @param ordered when true, the sink is called from the calling thread in encounter order. When false, it is
+         *                called from the worker threads as soon as each output is ready, and must be thread-safe.
+         * @return the number of rendered contexts
+         */
+        public long renderBatch(Spliterator<? extends Map<String, Object>> contexts, ForkJoinPool pool, boolean ordered, BatchSink sink) {
+            BatchWindow window = new BatchWindow(BATCH_CHUNK_SIZE * pool.getParallelism() * 8, ordered);
+            long rendered = 0;
+            while (window.fill(contexts)) {
+                pool.invoke(new BatchTask(this, window, rendered, 0, window.size, ordered ? null : sink));
+                if (ordered) {
+                    for (int i = 0; i < window.size; i++) {
+                        sink.accept(rendered + i, window.contexts[i], window.outputs[i]);
                     }
-                    throw new RuntimeException(String.format("Cannot divide non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
-                case "%":
-                    if (leftVal instanceof Number && rightVal instanceof Number) {
-                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
-                            return ((Integer) leftVal) % ((Integer) rightVal);
-                        } else {
-                            return ((Number) leftVal).doubleValue() % ((Number) rightVal).doubleValue();
-                        }
+                }
+                rendered += window.size;
+                window.clear();
+            }
+            return rendered;
+        }
+    }
+
+    /**
+     * Renders a template repeatedly over one context, re-rendering only what changed. The output of each top-level
+     * node (text, {{ }}, or a whole if/for/macro-call block) is kept along with the top-level context keys it read.
+     * After changes are reported through set(...) or changed(...), render() re-renders only the nodes that read a
+     * changed key and splices their new output between the kept outputs of the others:
+     *
+     *   RenderSession session = template.session(context);
+     *   String first = session.render();
+     *   session.set("cpu", 93).changed("orders.open");  // "orders.open" marks everything that read "orders"
+     *   String second = session.render();                // only the nodes that read cpu or orders are rendered again
+     *
+     * Dependencies are tracked per top-level key. Changes to values nested in the context (e.g. an item added to a
+     * list) must be reported with changed(...). Values written by {% set %} count as changes for the nodes after
+     * the writer, and for the nodes before it from the next render on, as in repeated full renders of one context.
+     * A node that changed a key it also read (e.g. {% set n = n + 1 %}) is rendered again on every render until its
+     * write leaves the value unchanged.
+     * Function results are not tracked: a node that calls e.g. now() keeps its output until one of its keys changes.
+     * A session is not thread-safe.
+     */
+    public static final class RenderSession {
+        private final Template template;
+        // the template's top-level nodes (the nodes of its program, for flat templates)
+        private final List<Node> nodes;
+        private final Map<String, Object> context;
+        private final DependencyTracker tracker;
+        private final String[] outputs;
+        // top-level keys each node read in its last render, null before its first
+        private final List<Set<String>> reads;
+        private final boolean[] readsAll;
+        // nodes whose last render changed a key they read, so their inputs differ on the next render
+        private final boolean[] selfChanging;
+        private final boolean[] stale;
+        private final Set<String> changedKeys = new HashSet<>();
+        private final StringBuilder scratch = new StringBuilder();
+        private int lastRenderedNodes;
+
+        RenderSession(Template template, Map<String, Object> context) {
+            this.template = template;
+            this.context = context;
+            this.tracker = new DependencyTracker(context);
+            this.nodes = FlatProgram.expand(template.nodes);
+            int size = nodes.size();
+            this.outputs = new String[size];
+            this.reads = new ArrayList<>(Collections.nCopies(size, null));
+            this.readsAll = new boolean[size];
+            this.selfChanging = new boolean[size];
+            this.stale = new boolean[size];
+            Arrays.fill(stale, true);
+        }
+
+        // sets a top-level context value and marks it changed
+        public RenderSession set(String key, Object value) {
+            context.put(key, value);
+            changedKeys.add(key);
+            return this;
+        }
+
+        // marks the value at a path changed. Only its top-level key counts: "order.items[0]" marks "order".
+        public RenderSession changed(String path) {
+            int end = path.length();
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                if (c == '.' || c == '[') {
+                    end = i;
+                    break;
+                }
+            }
+            changedKeys.add(path.substring(0, end));
+            return this;
+        }
+
+        // renders every node again on the next render()
+        public RenderSession invalidate() {
+            Arrays.fill(stale, true);
+            return this;
+        }
+
+        public String render() {
+            Set<String> changed = new HashSet<>(changedKeys);
+            RenderContext renderContext = new RenderContext(tracker, template.engine, template.getterCache);
+            RenderBudget budget = RenderBudget.of(template.engine.renderLimits, scratch);
+            renderContext.state.budget = budget;
+            int rendered = 0;
+            // output of the nodes before the current one, which limits count along with the current node's
+            long kept = 0;
+            for (int i = 0; i < outputs.length; i++) {
+                Node node = nodes.get(i);
+                // macro definitions are registered per render, so they are always rendered (they have no output)
+                if (!stale[i] && !readsAll[i] && !selfChanging[i] && !(node instanceof MacroNode) && !intersects(reads.get(i), changed)) {
+                    kept += outputs[i].length();
+                    continue;
+                }
+                if (budget != null) {
+                    budget.startSegment(kept);
+                }
+                Map<String, Object> writes = new HashMap<>();
+                Set<String> nodeReads = new HashSet<>();
+                reads.set(i, nodeReads);
+                tracker.record(nodeReads, writes);
+                scratch.setLength(0);
+                try {
+                    node.render(renderContext, scratch);
+                } finally {
+                    tracker.record(null, null);
+                }
+                outputs[i] = scratch.toString();
+                kept += outputs[i].length();
+                readsAll[i] = tracker.readAll;
+                tracker.readAll = false;
+                stale[i] = false;
+                rendered++;
+                Set<String> written = writes.isEmpty() ? Collections.emptySet() : tracker.changedKeys(writes);
+                selfChanging[i] = intersects(nodeReads, written);
+                if (!written.isEmpty()) {
+                    changed.addAll(written);
+                    for (int j = 0; j < i; j++) {
+                        stale[j] |= readsAll[j] || intersects(reads.get(j), written);
                     }
-                    throw new RuntimeException(String.format("Cannot apply modulo to non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
-                case "**":
-                    if (leftVal instanceof Number && rightVal instanceof Number) {
-                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
-                            int base = (Integer) leftVal;
-                            int exponent = (Integer) rightVal;
-                            // for negative exponents, fall back to double arithmetic
-                            if (exponent < 0) {
-                                return Math.pow(base, exponent);
-                            } else {
-                                int result = 1;
-                                for (int i = 0; i < exponent; i++) {
-                                    result *= base;
-                                }
-                                return result;
-                            }
-                        } else {
-                            return Math.pow(((Number) leftVal).doubleValue(), ((Number) rightVal).doubleValue());
-                        }
+                }
+            }
+            changedKeys.clear();
+            lastRenderedNodes = rendered;
+
+            int length = 0;
+            for (String output : outputs) {
+                length += output.length();
+            }
+            StringBuilder sb = new StringBuilder(length);
+            for (String output : outputs) {
+                sb.append(output);
+            }
+            if (budget != null) {
+                budget.checkWritten(sb.length());
+            }
+            return sb.toString();
+        }
+
+        private static boolean intersects(Set<String> keys, Set<String> changed) {
+            if (keys == null || changed.isEmpty()) {
+                return false;
+            }
+            Set<String> smaller = keys.size() <= changed.size() ? keys : changed;
+            Set<String> larger = smaller == keys ? changed : keys;
+            for (String key : smaller) {
+                if (larger.contains(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // number of top-level nodes of the template
+        public int getNodeCount() {
+            return outputs.length;
+        }
+
+        // number of top-level nodes the last render() actually rendered
+        public int getLastRenderedNodes() {
+            return lastRenderedNodes;
+        }
+    }
+
+    /**
+     * What a compiled template reads from its context, found by walking its node tree:
+     *   - the context paths it reads, with "[]" for the elements of a collection: "{% for item in order.items %}
+     *     {{ item.price }}" reads "order.items" and "order.items[].price". Numeric indexes are listed as "[]" too.
+     *   - the names of the functions, filters and macros it calls
+     * Loop variables, macro parameters and {% set %} variables are not context paths themselves. Their reads are
+     * listed under the path they come from, when that is a path (e.g. {% set c = order.customer %}{{ c.name }} reads
+     * "order.customer.name"). Macro bodies are followed into every call, with the parameters bound to the arguments.
+     *
+     * The analysis errs on the side of listing too much: a variable set in only one branch of an if is also listed
+     * as a context path. Function and filter calls folded at compile time (pure ones with constant arguments) are gone
+     * from the tree and are not listed.
+     */
+    public static final class TemplateAnalysis {
+        private final Set<String> variablePaths = new TreeSet<>();
+        private final Set<String> functions = new TreeSet<>();
+        private final Set<String> filters = new TreeSet<>();
+        private final Set<String> macros = new TreeSet<>();
+        // macro definitions by name, and the ones being expanded (recursive calls are not followed again)
+        private final Map<String, MacroNode> macroNodes = new HashMap<>();
+        private final Set<String> expanding = new HashSet<>();
+
+        private TemplateAnalysis() {
+        }
+
+        static TemplateAnalysis of(List<Node> nodes) {
+            TemplateAnalysis analysis = new TemplateAnalysis();
+            analysis.collectMacros(nodes);
+            analysis.nodes(nodes, new HashMap<>());
+            // bodies of macros that are never called still name functions, filters and context paths
+            for (MacroNode macro : analysis.macroNodes.values()) {
+                analysis.macroBody(macro, Collections.emptyList(), new HashMap<>());
+            }
+            return analysis;
+        }
+
+        public Set<String> getVariablePaths() {
+            return Collections.unmodifiableSet(variablePaths);
+        }
+
+        // the top-level context keys, e.g. "order" for "order.items[].price"
+        public Set<String> getRootVariables() {
+            Set<String> roots = new TreeSet<>();
+            for (String path : variablePaths) {
+                roots.add(path.substring(0, rootLength(path)));
+            }
+            return roots;
+        }
+
+        public Set<String> getFunctions() {
+            return Collections.unmodifiableSet(functions);
+        }
+
+        public Set<String> getFilters() {
+            return Collections.unmodifiableSet(filters);
+        }
+
+        // macros defined by the template (calls to them are not listed as functions)
+        public Set<String> getMacros() {
+            return Collections.unmodifiableSet(macros);
+        }
+
+        @Override
+        public String toString() {
+            return "TemplateAnalysis{variables=" + variablePaths + ", functions=" + functions + ", filters=" + filters + ", macros=" + macros + "}";
+        }
+
+        private void collectMacros(List<Node> nodes) {
+            if (nodes == null) {
+                return;
+            }
+            for (Node node : FlatProgram.expand(nodes)) {
+                node = unwrap(node);
+                if (node instanceof MacroNode) {
+                    macroNodes.put(((MacroNode) node).name, (MacroNode) node);
+                    macros.add(((MacroNode) node).name);
+                    collectMacros(((MacroNode) node).body);
+                } else if (node instanceof IfNode) {
+                    collectMacros(((IfNode) node).trueNodes);
+                    collectMacros(((IfNode) node).falseNodes);
+                } else if (node instanceof ForNode) {
+                    collectMacros(((ForNode) node).bodyNodes);
+                } else if (node instanceof CacheNode) {
+                    collectMacros(((CacheNode) node).body);
+                } else if (node instanceof AutoEscapeNode) {
+                    collectMacros(((AutoEscapeNode) node).body);
+                }
+            }
+        }
+
+        private static Node unwrap(Node node) {
+            return node instanceof ProfilingNode ? ((ProfilingNode) node).delegate : node;
+        }
+
+        // scope: variable name -> the context paths its value may come from. A name that is not in the scope is a
+        // context key; one mapped to an empty list holds a value of unknown origin (e.g. a computed set).
+        private void nodes(List<Node> nodes, Map<String, List<String>> scope) {
+            if (nodes == null) {
+                return;
+            }
+            for (Node node : FlatProgram.expand(nodes)) {
+                node(unwrap(node), scope);
+            }
+        }
+
+        private void node(Node node, Map<String, List<String>> scope) {
+            if (node instanceof VariableNode) {
+                expression(((VariableNode) node).expression, scope);
+            } else if (node instanceof IfNode) {
+                IfNode ifNode = (IfNode) node;
+                expression(ifNode.condition, scope);
+                block(ifNode.trueNodes, scope, new HashMap<>());
+                block(ifNode.falseNodes, scope, new HashMap<>());
+            } else if (node instanceof ForNode) {
+                ForNode forNode = (ForNode) node;
+                expression(forNode.listExpression, scope);
+                List<String> elements = new ArrayList<>();
+                for (String source : sources(forNode.listExpression, scope)) {
+                    elements.add(source + "[]");
+                }
+                Map<String, List<String>> loopVariables = new HashMap<>();
+                loopVariables.put("loop", Collections.emptyList());
+                if (forNode.valueVar == null) {
+                    loopVariables.put(forNode.loopVar, elements);
+                } else {
+                    loopVariables.put(forNode.loopVar, Collections.emptyList());
+                    loopVariables.put(forNode.valueVar, elements);
+                }
+                block(forNode.bodyNodes, scope, loopVariables);
+            } else if (node instanceof SetNode) {
+                SetNode setNode = (SetNode) node;
+                expression(setNode.expression, scope);
+                scope.put(setNode.variableName, sources(setNode.expression, scope));
+            } else if (node instanceof CacheNode) {
+                CacheNode cacheNode = (CacheNode) node;
+                expression(cacheNode.keyExpression, scope);
+                if (cacheNode.ttlExpression != null) {
+                    expression(cacheNode.ttlExpression, scope);
+                }
+                block(cacheNode.body, scope, new HashMap<>());
+            } else if (node instanceof AutoEscapeNode) {
+                nodes(((AutoEscapeNode) node).body, scope);
+            }
+            // text and macro definitions read nothing; macro bodies are followed from their calls
+        }
+
+        // a body that may run any number of times (or not at all). Its own variables (loop variables) end with it,
+        // variables it sets may or may not be set afterwards.
+        private void block(List<Node> body, Map<String, List<String>> scope, Map<String, List<String>> ownVariables) {
+            Map<String, List<String>> inner = new HashMap<>(scope);
+            inner.putAll(ownVariables);
+            nodes(body, inner);
+            for (Map.Entry<String, List<String>> entry : inner.entrySet()) {
+                String name = entry.getKey();
+                if (ownVariables.containsKey(name) || Objects.equals(entry.getValue(), scope.get(name))) {
+                    continue;
+                }
+                Set<String> merged = new LinkedHashSet<>(scope.containsKey(name) ? scope.get(name) : Collections.singletonList(name));
+                merged.addAll(entry.getValue());
+                scope.put(name, new ArrayList<>(merged));
+            }
+        }
+
+        private void macroBody(MacroNode macro, List<List<String>> arguments, Map<String, List<String>> callerScope) {
+            if (!expanding.add(macro.name)) {
+                return;
+            }
+            // the body reads through to the caller's variables; its own writes stay local
+            Map<String, List<String>> scope = new HashMap<>(callerScope);
+            for (int i = 0; i < macro.parameters.size(); i++) {
+                scope.put(macro.parameters.get(i), i < arguments.size() ? arguments.get(i) : Collections.emptyList());
+            }
+            nodes(macro.body, scope);
+            expanding.remove(macro.name);
+        }
+
+        private void expression(Expression expression, Map<String, List<String>> scope) {
+            if (expression instanceof ProfilingExpression) {
+                expression(((ProfilingExpression) expression).delegate, scope);
+            } else if (expression instanceof VariableExpression) {
+                for (String path : paths(((VariableExpression) expression).name, scope)) {
+                    variablePaths.add(path);
+                }
+            } else if (expression instanceof FunctionCallExpression) {
+                FunctionCallExpression call = (FunctionCallExpression) expression;
+                List<List<String>> arguments = new ArrayList<>();
+                for (Expression argument : call.arguments) {
+                    expression(argument, scope);
+                    arguments.add(sources(argument, scope));
+                }
+                MacroNode macro = macroNodes.get(call.functionName);
+                if (macro != null) {
+                    macroBody(macro, arguments, scope);
+                } else {
+                    functions.add(call.functionName);
+                }
+            } else if (expression instanceof FilteredExpression) {
+                FilteredExpression filtered = (FilteredExpression) expression;
+                expression(filtered.base, scope);
+                for (Filter filter : filtered.filters) {
+                    filters.add(filter.filterName);
+                    for (Expression argument : filter.arguments) {
+                        expression(argument, scope);
                     }
-                    throw new RuntimeException(String.format("Cannot apply power operator to non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
-                default:
-                    throw new RuntimeException(String.format("Unknown operator: %s", operator));
+                }
+            } else if (expression instanceof FusedFilterExpression) {
+                expression(((FusedFilterExpression) expression).unfused, scope);
+            } else if (expression instanceof BinaryExpression) {
+                expression(((BinaryExpression) expression).left, scope);
+                expression(((BinaryExpression) expression).right, scope);
+            } else if (expression instanceof ConcatExpression) {
+                for (Expression operand : ((ConcatExpression) expression).operands) {
+                    expression(operand, scope);
+                }
+            } else if (expression instanceof ConditionalExpression) {
+                ConditionalExpression conditional = (ConditionalExpression) expression;
+                expression(conditional.condition, scope);
+                expression(conditional.whenTrue, scope);
+                if (conditional.whenFalse != null) {
+                    expression(conditional.whenFalse, scope);
+                }
+            } else if (expression instanceof UnaryExpression) {
+                expression(((UnaryExpression) expression).operand, scope);
+            } else if (expression instanceof ObjectLiteralExpression) {
+                for (Expression value : ((ObjectLiteralExpression) expression).entries.values()) {
+                    expression(value, scope);
+                }
+            } else if (expression instanceof ArrayLiteralExpression) {
+                for (Expression element : ((ArrayLiteralExpression) expression).elements) {
+                    expression(element, scope);
+                }
             }
         }
 
-        private boolean isTrue(Object val) {
-            if (val == null) return false;
-            if (val instanceof Boolean) return (Boolean) val;
-            if (val instanceof Number) return ((Number) val).doubleValue() != 0;
-            if (val instanceof String) return !((String) val).isEmpty();
-            return true;
+        // the context paths the value of an expression may be (for aliasing by set, loops and macro arguments).
+        // Filters are looked through: the elements of "items | sort" are still the elements of "items".
+        private List<String> sources(Expression expression, Map<String, List<String>> scope) {
+            if (expression instanceof ProfilingExpression) {
+                return sources(((ProfilingExpression) expression).delegate, scope);
+            }
+            if (expression instanceof VariableExpression) {
+                return paths(((VariableExpression) expression).name, scope);
+            }
+            if (expression instanceof FilteredExpression) {
+                return sources(((FilteredExpression) expression).base, scope);
+            }
+            if (expression instanceof FusedFilterExpression) {
+                return sources(((FusedFilterExpression) expression).unfused, scope);
+            }
+            if (expression instanceof ConditionalExpression) {
+                ConditionalExpression conditional = (ConditionalExpression) expression;
+                List<String> sources = new ArrayList<>(sources(conditional.whenTrue, scope));
+                if (conditional.whenFalse != null) {
+                    sources.addAll(sources(conditional.whenFalse, scope));
+                }
+                return sources;
+            }
+            return Collections.emptyList();
         }
 
-        private int compare(Object leftVal, Object rightVal) {
-            if (leftVal instanceof Number && rightVal instanceof Number) {
-                // when both are integers, use integer arithmetic; otherwise, use double arithmetic
-                if (leftVal instanceof Integer && rightVal instanceof Integer) {
-                    return ((Integer) leftVal).compareTo((Integer) rightVal);
+        // the context paths a variable path stands for: itself, or rebased onto the sources of a local variable
+        private static List<String> paths(String name, Map<String, List<String>> scope) {
+            String path = normalize(name);
+            int rootLength = rootLength(path);
+            List<String> sources = scope.get(path.substring(0, rootLength));
+            if (sources == null) {
+                return Collections.singletonList(path);
+            }
+            List<String> paths = new ArrayList<>(sources.size());
+            for (String source : sources) {
+                paths.add(source + path.substring(rootLength));
+            }
+            return paths;
+        }
+
+        private static int rootLength(String path) {
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                if (c == '.' || c == '[') {
+                    return i;
+                }
+            }
+            return path.length();
+        }
+
+        // "items[0].tags[12]" -> "items[].tags[]"
+        private static String normalize(String name) {
+            if (name.indexOf('[') == -1) {
+                return name;
+            }
+            StringBuilder sb = new StringBuilder(name.length());
+            int i = 0;
+            while (i < name.length()) {
+                char c = name.charAt(i);
+                sb.append(c);
+                i++;
+                if (c == '[') {
+                    int end = name.indexOf(']', i);
+                    i = end == -1 ? name.length() : end;
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    // output of an async render: the rendered text plus the positions where pending values are to be spliced in
+    static final class AsyncRender {
+        static final Executor DEFAULT_EXECUTOR = defaultExecutor();
+
+        private final StringBuilder root;
+        private final List<Integer> offsets = new ArrayList<>();
+        private final List<CompletableFuture<?>> pending = new ArrayList<>();
+        private final List<EscapeMode> escapeModes = new ArrayList<>();
+        // > 0 while rendering output that is captured as it is written (e.g. a {% cache %} body)
+        private int captureDepth;
+        // the limits of the render, which also cover the values spliced in; null without limits
+        RenderBudget budget;
+
+        AsyncRender(StringBuilder root) {
+            this.root = root;
+        }
+
+        private static Executor defaultExecutor() {
+            try {
+                // Java 21+: Executors.newVirtualThreadPerTaskExecutor(), looked up reflectively to stay Java 8 compatible
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return ForkJoinPool.commonPool();
+            }
+        }
+
+        // returns true if the value is a pending future that will be written at the current position later.
+        // Only output going straight into the top-level buffer can be deferred (not e.g. a macro's own buffer),
+        // and not while that output is being captured.
+        boolean defer(StringBuilder sb, Object value, EscapeMode escapeMode) {
+            if (sb != root || captureDepth > 0 || !(value instanceof CompletableFuture) || ((CompletableFuture<?>) value).isDone()) {
+                return false;
+            }
+            offsets.add(sb.length());
+            pending.add((CompletableFuture<?>) value);
+            escapeModes.add(escapeMode);
+            return true;
+        }
+
+        void beginCapture() {
+            captureDepth++;
+        }
+
+        void endCapture() {
+            captureDepth--;
+        }
+
+        CompletableFuture<String> complete() {
+            if (pending.isEmpty()) {
+                return CompletableFuture.completedFuture(root.toString());
+            }
+            CompletableFuture<String> spliced = CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> splice());
+            long remaining = budget == null ? Long.MAX_VALUE : budget.remainingNanos();
+            if (remaining == Long.MAX_VALUE) {
+                return spliced;
+            }
+            // pending values that are not there by the deadline fail the render, as a sync render would fail
+            CompletableFuture<String> result = new CompletableFuture<>();
+            ScheduledFuture<?> timeout = Timeouts.SCHEDULER.schedule(() -> result.completeExceptionally(budget.timeExceeded()),
+                    Math.max(0, remaining), TimeUnit.NANOSECONDS);
+            spliced.whenComplete((output, error) -> {
+                timeout.cancel(false);
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(output);
+                }
+            });
+            return result;
+        }
+
+        // one daemon thread for all async render deadlines, started on first use
+        private static final class Timeouts {
+            static final ScheduledThreadPoolExecutor SCHEDULER = scheduler();
+
+            private static ScheduledThreadPoolExecutor scheduler() {
+                ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, task -> {
+                    Thread thread = new Thread(task, "blueprint-render-timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                // renders usually finish long before their deadline
+                scheduler.setRemoveOnCancelPolicy(true);
+                return scheduler;
+            }
+        }
+
+        private String splice() {
+            StringBuilder out = new StringBuilder(root.length() + 16 * pending.size());
+            int last = 0;
+            for (int i = 0; i < pending.size(); i++) {
+                int offset = offsets.get(i);
+                out.append(root, last, offset);
+                appendValue(pending.get(i).join(), out, escapeModes.get(i));
+                last = offset;
+            }
+            out.append(root, last, root.length());
+            if (budget != null) {
+                budget.checkWritten(out.length());
+            }
+            return out.toString();
+        }
+    }
+
+    // receives the output of each render of a batch. index is the position of the context in the input.
+    public interface BatchSink {
+        void accept(long index, Map<String, Object> context, String output);
+    }
+
+    private static final int BATCH_CHUNK_SIZE = 32;
+
+    // the slice of batch input (and, for ordered batches, output) currently being rendered
+    private static class BatchWindow implements java.util.function.Consumer<Map<String, Object>> {
+        private final Map<String, Object>[] contexts;
+        private final String[] outputs;
+        private int size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        BatchWindow(int capacity, boolean ordered) {
+            this.contexts = new Map[capacity];
+            this.outputs = ordered ? new String[capacity] : null;
+        }
+
+        // returns false when the input is exhausted
+        boolean fill(Spliterator<? extends Map<String, Object>> source) {
+            boolean more = true;
+            while (more && size < contexts.length) {
+                more = source.tryAdvance(this);
+            }
+            return size > 0;
+        }
+
+        @Override
+        public void accept(Map<String, Object> context) {
+            contexts[size++] = context;
+        }
+
+        void clear() {
+            Arrays.fill(contexts, 0, size, null);
+            if (outputs != null) {
+                Arrays.fill(outputs, 0, size, null);
+            }
+            size = 0;
+        }
+    }
+
+    private static class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+        // shared by all batches, so a pool thread holds at most one output buffer
+        private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
+        private final Template template;
+        private final BatchWindow window;
+        private final long base;
+        private final int from;
+        private final int to;
+        private final BatchSink unorderedSink;
+
+        BatchTask(Template template, BatchWindow window, long base, int from, int to, BatchSink unorderedSink) {
+            this.template = template;
+            this.window = window;
+            this.base = base;
+            this.from = from;
+            this.to = to;
+            this.unorderedSink = unorderedSink;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_CHUNK_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchTask(template, window, base, from, mid, unorderedSink),
+                        new BatchTask(template, window, base, mid, to, unorderedSink));
+                return;
+            }
+            StringBuilder sb = BUFFER.get();
+            try {
+                for (int i = from; i < to; i++) {
+                    sb.setLength(0);
+                    template.render(window.contexts[i], sb);
+                    String output = sb.toString();
+                    if (unorderedSink != null) {
+                        unorderedSink.accept(base + i, window.contexts[i], output);
+                    } else {
+                        window.outputs[i] = output;
+                    }
+                }
+            } finally {
+                if (sb.capacity() > MAX_RETAINED_BUFFER) {
+                    BUFFER.set(new StringBuilder());
+                } else {
+                    sb.setLength(0);
+                }
+            }
+        }
+    }
+
+    // holds the current context and a pointer to the engine (so that custom functions and filters may be looked up).
+    // Also holds a registry of macros defined in the template.
+    public static class RenderContext {
+        public final Map<String, Object> context;
+        public final Map<String, TemplateFunction> macros = new HashMap<>();
+        private final Blueprint engine;
+
+        private final Map<Class<?>, Map<String, java.lang.reflect.Method>> getterCache;
+
+        // state scoped to a single render call, shared with the nested contexts created for macro calls
+        final RenderState state;
+        // the enclosing context of a nested one, whose macros are visible in this one as well
+        private final RenderContext parent;
+
+        public RenderContext(Map<String, Object> context, Blueprint engine, Map<Class<?>, Map<String, java.lang.reflect.Method>> getterCache) {
+            this.context = context;
+            this.engine = engine;
+            this.getterCache = getterCache;
+            this.state = new RenderState();
+            this.parent = null;
+        }
+
+        // nested context (e.g. a macro body) that belongs to the same render as the parent
+        public RenderContext(Map<String, Object> context, RenderContext parent) {
+            this.context = context;
+            this.engine = parent.engine;
+            this.getterCache = parent.getterCache;
+            this.state = parent.state;
+            this.parent = parent;
+        }
+
+        // resolve a variable name from the context. Supports “dot–notation” and array access using bracket–notation.
+        // Examples: "user.name" or "user.colors[0]" or "matrix[1][2]".
+        // Future values met on the way are awaited (only the ones the path actually walks through).
+        public Object resolve(String variable) {
+            return resolve(variable, true);
+        }
+
+        // with awaitResult == false, a future found at the end of the path is returned as is
+        Object resolve(String variable, boolean awaitResult) {
+            // Check if the variable has a dot to separate into tokens.
+            int dotIndex = variable.indexOf('.');
+            String firstToken = (dotIndex == -1) ? variable : variable.substring(0, dotIndex);
+            Object value;
+
+            // If the first token contains a bracket, extract the base variable name.
+            int bracketIndex = firstToken.indexOf('[');
+            if (bracketIndex != -1) {
+                String baseVar = firstToken.substring(0, bracketIndex);
+                value = context.get(baseVar);
+                // Process the remaining bracket parts (e.g. "[1]").
+                String remaining = firstToken.substring(bracketIndex);
+                value = resolvePart(unwrap(value), remaining);
+            } else {
+                value = context.get(firstToken);
+            }
+
+            // If there are additional dot-separated parts, process them.
+            if (dotIndex != -1) {
+                String[] parts = variable.substring(dotIndex + 1).split("\\.");
+                for (String part : parts) {
+                    value = resolvePart(unwrap(value), part);
+                    if (value == null) {
+                        break;
+                    }
+                }
+            }
+            return awaitResult ? unwrap(value) : value;
+        }
+
+        // resolve() for a path already split at its dots, whose first part has no brackets
+        Object resolvePath(String[] path, boolean awaitResult) {
+            Object value = context.get(path[0]);
+            for (int i = 1; i < path.length; i++) {
+                value = resolvePart(unwrap(value), path[i]);
+                if (value == null) {
+                    break;
+                }
+            }
+            return awaitResult ? unwrap(value) : value;
+        }
+
+        // replaces lazy values by their (memoized) result and futures by their (awaited) result.
+        // Other values are returned unchanged.
+        public Object unwrap(Object value) {
+            if (value instanceof LazyValue) {
+                return unwrap(((LazyValue<?>) value).get());
+            }
+            if (value instanceof Supplier) {
+                return unwrap(state.supplied((Supplier<?>) value));
+            }
+            if (value instanceof Future) {
+                return await((Future<?>) value);
+            }
+            return value;
+        }
+
+        private static Object await(Future<?> future) {
+            if (future instanceof CompletableFuture) {
+                return ((CompletableFuture<?>) future).join();
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while awaiting a context value", e);
+            } catch (ExecutionException e) {
+                throw new CompletionException(e.getCause());
+            }
+        }
+
+        // helper to support index lookups (e.g. "colors[0]")
+        Object resolvePart(Object value, String part) {
+            int bracketIndex = part.indexOf('[');
+            if (bracketIndex == -1) {
+                return getProperty(value, part);
+            } else {
+                // first, resolve the property (if any) before the first '['
+                String propName = part.substring(0, bracketIndex);
+                if (!propName.isEmpty()) {
+                    value = getProperty(value, propName);
+                }
+                value = unwrap(value);
+                // process one or more indices (e.g. [0][1])
+                while (bracketIndex != -1) {
+                    int endBracket = part.indexOf(']', bracketIndex);
+                    if (endBracket == -1) {
+                        return null; // malformed
+                    }
+                    String indexStr = part.substring(bracketIndex + 1, endBracket).trim();
+                    int index;
+                    try {
+                        index = Integer.parseInt(indexStr);
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    value = getIndexedValue(value, index);
+                    if (value == null) {
+                        return null;
+                    }
+                    bracketIndex = part.indexOf('[', endBracket);
+                    if (bracketIndex != -1) {
+                        value = unwrap(value);
+                    }
+                }
+                return value;
+            }
+        }
+
+        // helper to retrieve a property value from an object. If the object is a map, then the property is
+        // fetched directly. Otherwise, we try to call a getter method with the camelCase name.
+
+        // For example, a property "name" is looked up as:
+        // - If value is a Map: map.get("name")
+        // - Otherwise: value.getClass().getMethod("getName") or, for booleans, value.getClass().getMethod("isName")
+
+        // This method uses the cache stored in the Template
+        private Object getProperty(Object value, String property) {
+            if (value instanceof Map) {
+                return ((Map<?, ?>) value).get(property);
+            }
+            // map entries (e.g. loop items when iterating a map) are often instances of non-public classes,
+            // which reflection cannot call into
+            if (value instanceof Map.Entry) {
+                if ("key".equals(property)) {
+                    return ((Map.Entry<?, ?>) value).getKey();
+                } else if ("value".equals(property)) {
+                    return ((Map.Entry<?, ?>) value).getValue();
+                }
+            }
+            if (value == null || property == null || property.isEmpty()) {
+                return null;
+            }
+
+            Class<?> cls = value.getClass();
+            Map<String, Method> classCache = getterCache.computeIfAbsent(cls, k -> new ConcurrentHashMap<>());
+
+            if (classCache.containsKey(property)) {
+                Method cachedMethod = classCache.get(property);
+                return (cachedMethod != null) ? invokeGetter(value, cachedMethod) : null;
+            }
+
+            // build the expected getter method name using camelCase conversion
+            String getterName = "get" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
+            Method method = null;
+            try {
+                method = cls.getMethod(getterName);
+            } catch (NoSuchMethodException e) {
+                // if not found, try the boolean "is" style getter
+                String isGetterName = "is" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
+                try {
+                    method = cls.getMethod(isGetterName);
+                } catch (NoSuchMethodException e2) {
+                    method = null;
+                }
+            }
+            // cache the result (even if null) so we don't repeat expensive reflection calls
+            classCache.put(property, method);
+            return (method != null) ? invokeGetter(value, method) : null;
+        }
+
+        Object invokeGetter(Object value, Method method) {
+            try {
+                return method.invoke(value);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                return null;
+            }
+        }
+
+        // helper to retrieve an element from a List or array
+        private Object getIndexedValue(Object value, int index) {
+            if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                if (index >= 0 && index < list.size()) {
+                    return list.get(index);
+                }
+            } else if (value != null && value.getClass().isArray()) {
+                int len = Array.getLength(value);
+                if (index >= 0 && index < len) {
+                    return Array.get(value, index);
+                }
+            }
+            return null;
+        }
+
+        // look up a custom function or macro.
+        // Macros (defined in the template) take precedence over engine–registered functions
+        public TemplateFunction getFunction(String name) {
+            for (RenderContext scope = this; scope != null; scope = scope.parent) {
+                TemplateFunction macro = scope.macros.get(name);
+                if (macro != null) {
+                    return macro;
+                }
+            }
+            return engine.getFunction(name);
+        }
+
+        // look up a custom filter
+        public TemplateFunction getFilter(String name) {
+            TemplateFunction f = engine.getFilter(name);
+            if (f != null) {
+                return f;
+            }
+            return getFunction(name);
+        }
+    }
+
+    /**
+     * A context value that is computed on first access and then reused for as long as the LazyValue lives
+     * (i.e. across renders and threads). Use it for expensive values that only some templates or branches read:
+     *   context.put("recommendations", LazyValue.of(() -> recommendationService.forUser(userId)));
+     * A plain java.util.function.Supplier in the context is lazy as well, but is computed once per render.
+     */
+    public static final class LazyValue<T> implements Supplier<T> {
+        private Supplier<? extends T> supplier;
+        private volatile boolean computed;
+        private T value;
+
+        private LazyValue(Supplier<? extends T> supplier) {
+            this.supplier = supplier;
+        }
+
+        public static <T> LazyValue<T> of(Supplier<? extends T> supplier) {
+            return new LazyValue<>(supplier);
+        }
+
+        @Override
+        public T get() {
+            if (!computed) {
+                synchronized (this) {
+                    if (!computed) {
+                        value = supplier.get();
+                        supplier = null; // release whatever the supplier captured
+                        computed = true;
+                    }
+                }
+            }
+            return value;
+        }
+
+        public boolean isComputed() {
+            return computed;
+        }
+    }
+
+    // per-render bookkeeping. Everything is created lazily, so renders that don't need it pay nothing.
+    static final class RenderState {
+        private Map<MemoKey, Object> memoTable;
+        // set for renders started by Template.renderAsync
+        AsyncRender async;
+        // results of Supplier context values, computed on first access
+        private Map<Supplier<?>, Object> suppliedValues;
+        // null for renders without limits
+        RenderBudget budget;
+
+        Object supplied(Supplier<?> supplier) {
+            if (suppliedValues == null) {
+                suppliedValues = new IdentityHashMap<>();
+            }
+            Object value = suppliedValues.get(supplier);
+            if (value == null && !suppliedValues.containsKey(supplier)) {
+                value = supplier.get();
+                suppliedValues.put(supplier, value);
+            }
+            return value;
+        }
+
+        Map<MemoKey, Object> memoTable() {
+            if (memoTable == null) {
+                memoTable = new HashMap<>();
+            }
+            return memoTable;
+        }
+    }
+
+    // what is left of a render's RenderLimits
+    static final class RenderBudget {
+        private final RenderLimits limits;
+        private final long deadline;
+        // output written before the render started (when appending to a reused buffer) does not count
+        private final StringBuilder root;
+        private final int rootStart;
+        // the innermost buffer that output is built in instead of the root (e.g. a macro result assigned with
+        // {% set %}), or null. Its output counts on top of everything written before it was started.
+        private NestedBuffer nested;
+        // output kept from segments rendered earlier into the reused root (see RenderSession)
+        private long kept;
+        private long iterations;
+        private int macroDepth;
+        private int steps;
+
+        private RenderBudget(RenderLimits limits, StringBuilder root) {
+            this.limits = limits;
+            this.deadline = limits.getTimeoutNanos() == Long.MAX_VALUE ? 0 : System.nanoTime() + limits.getTimeoutNanos();
+            this.root = root;
+            this.rootStart = root.length();
+        }
+
+        static RenderBudget of(RenderLimits limits, StringBuilder root) {
+            return limits == null || limits.isUnlimited() ? null : new RenderBudget(limits, root);
+        }
+
+        void iteration(StringBuilder sb) {
+            if (++iterations > limits.getMaxIterations()) {
+                throw new RenderLimitExceededException(RenderLimitExceededException.Limit.ITERATIONS, limits.getMaxIterations(),
+                        "Render exceeded the limit of " + limits.getMaxIterations() + " loop iterations");
+            }
+            step(sb);
+        }
+
+        void enterMacro(StringBuilder sb) {
+            if (++macroDepth > limits.getMaxMacroDepth()) {
+                throw new RenderLimitExceededException(RenderLimitExceededException.Limit.MACRO_DEPTH, limits.getMaxMacroDepth(),
+                        "Render exceeded the macro call depth limit of " + limits.getMaxMacroDepth());
+            }
+            step(sb);
+        }
+
+        void exitMacro() {
+            macroDepth--;
+        }
+
+        private void step(StringBuilder sb) {
+            checkOutput(sb);
+            if (deadline != 0 && (++steps & (RenderLimits.CLOCK_CHECK_INTERVAL - 1)) == 0 && System.nanoTime() - deadline > 0) {
+                throw timeExceeded();
+            }
+        }
+
+        RenderLimitExceededException timeExceeded() {
+            return new RenderLimitExceededException(RenderLimitExceededException.Limit.TIME, limits.getTimeoutNanos(),
+                    "Render exceeded the time limit of " + TimeUnit.NANOSECONDS.toMillis(limits.getTimeoutNanos()) + " ms");
+        }
+
+        // time left until the deadline (negative once it has passed), or Long.MAX_VALUE without a timeout
+        long remainingNanos() {
+            return deadline == 0 ? Long.MAX_VALUE : deadline - System.nanoTime();
+        }
+
+        // output goes to the given buffer until endNested(), e.g. while a macro result is built as a String
+        void beginNested(StringBuilder buffer) {
+            nested = new NestedBuffer(buffer, written(buffer), nested);
+        }
+
+        void endNested() {
+            nested = nested.parent;
+        }
+
+        // the root is about to be reused for the next segment of an output assembled from segments, after `kept` chars
+        void startSegment(long kept) {
+            this.kept = kept;
+        }
+
+        // output of this render so far, including nested buffers, when sb is being written
+        private long written(StringBuilder sb) {
+            if (nested == null) {
+                return kept + (sb == root ? sb.length() - rootStart : root.length() - rootStart + sb.length());
+            }
+            return sb == nested.buffer ? nested.before + sb.length() : nested.before + nested.buffer.length() + sb.length();
+        }
+
+        // sb is the render's output or a nested buffer (e.g. a macro result that is built as a String)
+        void checkOutput(StringBuilder sb) {
+            checkWritten(written(sb));
+        }
+
+        void checkWritten(long written) {
+            if (written > limits.getMaxOutputChars()) {
+                throw new RenderLimitExceededException(RenderLimitExceededException.Limit.OUTPUT_CHARS, limits.getMaxOutputChars(),
+                        "Render exceeded the output limit of " + limits.getMaxOutputChars() + " characters");
+            }
+        }
+
+        private static final class NestedBuffer {
+            private final StringBuilder buffer;
+            // output written before the buffer was started
+            private final long before;
+            private final NestedBuffer parent;
+
+            NestedBuffer(StringBuilder buffer, long before, NestedBuffer parent) {
+                this.buffer = buffer;
+                this.before = before;
+                this.parent = parent;
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // Node types (AST)
+    // --------------------------------------------------------------------------------
+
+    public static abstract class Node {
+        public abstract void render(RenderContext context, StringBuilder sb);
+    }
+
+    // literal text node
+    public static class TextNode extends Node {
+        private final String text;
+
+        public TextNode(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            sb.append(text);
+        }
+    }
+
+    // variable expression (e.g. {{ name }}) node
+    public static class VariableNode extends Node {
+        private final Expression expression;
+        private final EscapeMode escapeMode;
+
+        public VariableNode(Expression expression) {
+            this(expression, EscapeMode.NONE);
+        }
+
+        public VariableNode(Expression expression, EscapeMode escapeMode) {
+            this.expression = expression;
+            this.escapeMode = escapeMode;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            output(context, sb, expression, escapeMode);
+        }
+
+        static void output(RenderContext context, StringBuilder sb, Expression expression, EscapeMode escapeMode) {
+            AsyncRender async = context.state.async;
+            if (async != null) {
+                Object value = expression.evaluateLazy(context);
+                if (async.defer(sb, value, escapeMode)) {
+                    return;
+                }
+                appendValue(context.unwrap(value), sb, escapeMode);
+                return;
+            }
+            expression.appendTo(context, sb, escapeMode);
+        }
+    }
+
+    // if/else block node
+    public static class IfNode extends Node {
+        private final Expression condition;
+        private final List<Node> trueNodes;
+        private final List<Node> falseNodes;
+
+        public IfNode(Expression condition, List<Node> trueNodes, List<Node> falseNodes) {
+            this.condition = condition;
+            this.trueNodes = trueNodes;
+            this.falseNodes = falseNodes;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            Object cond = condition.evaluate(context);
+            boolean truth = isTrue(cond);
+            List<Node> nodesToRender = truth ? trueNodes : falseNodes;
+            if (nodesToRender != null) {
+                for (Node node : nodesToRender) {
+                    node.render(context, sb);
+                }
+            }
+        }
+
+        static boolean isTrue(Object cond) {
+            if (cond == null) return false;
+            if (cond instanceof Boolean) return (Boolean) cond;
+            if (cond instanceof Number) return ((Number) cond).doubleValue() != 0;
+            if (cond instanceof String) return !((String) cond).isEmpty();
+            return true;
+        }
+    }
+
+    // for–loop node. Iterates Iterables, Iterators, Streams, Maps (entries) and object or primitive arrays
+    // without copying them. With two loop variables (e.g. "for key, value in map"), each item is unpacked.
+    public static class ForNode extends Node {
+        private final String loopVar;
+        private final String valueVar; // null for single-variable loops
+        private final Expression listExpression;
+        private final List<Node> bodyNodes;
+
+        public ForNode(String loopVar, Expression listExpression, List<Node> bodyNodes) {
+            this(loopVar, null, listExpression, bodyNodes);
+        }
+
+        public ForNode(String loopVar, String valueVar, Expression listExpression, List<Node> bodyNodes) {
+            this.loopVar = loopVar;
+            this.valueVar = valueVar;
+            this.listExpression = listExpression;
+            this.bodyNodes = bodyNodes;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            Object listVal = listExpression.evaluate(context);
+            Iterator<?> items = iteratorOf(listVal);
+            if (items == null) {
+                return;
+            }
+            // save any existing values for the "loop" meta key *and* the loop variable(s) themselves
+            Object originalLoopMeta = context.context.get("loop");
+            Object originalLoopVar = context.context.get(loopVar);
+            Object originalValueVar = valueVar != null ? context.context.get(valueVar) : null;
+
+            // the "loop" map with the current index and other meta info if needed. Updated in place on each iteration.
+            Map<String, Object> loopInfo = new HashMap<>();
+            context.context.put("loop", loopInfo);
+            RenderBudget budget = context.state.budget;
+            try {
+                int index = 0;
+                while (items.hasNext()) {
+                    if (budget != null) {
+                        budget.iteration(sb);
+                    }
+                    Object item = items.next();
+                    // set the loop variable(s) for the current iteration
+                    if (valueVar == null) {
+                        context.context.put(loopVar, item);
+                    } else {
+                        context.context.put(loopVar, unpack(item, 0));
+                        context.context.put(valueVar, unpack(item, 1));
+                    }
+                    loopInfo.put("index", index);
+
+                    for (Node node : bodyNodes) {
+                        node.render(context, sb);
+                    }
+                    index++;
+                }
+            } finally {
+                if (listVal instanceof BaseStream) {
+                    ((BaseStream<?, ?>) listVal).close();
+                }
+            }
+            // restore the original loop variable(s) if they existed; otherwise, remove them
+            restore(context, loopVar, originalLoopVar);
+            if (valueVar != null) {
+                restore(context, valueVar, originalValueVar);
+            }
+            // restore the original "loop" meta key
+            restore(context, "loop", originalLoopMeta);
+        }
+
+        private static void restore(RenderContext context, String name, Object originalValue) {
+            if (originalValue != null) {
+                context.context.put(name, originalValue);
+            } else {
+                context.context.remove(name);
+            }
+        }
+
+        // part 0 (key) or 1 (value) of a map entry or a two-element list/array
+        private static Object unpack(Object item, int part) {
+            if (item instanceof Map.Entry) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) item;
+                return part == 0 ? entry.getKey() : entry.getValue();
+            }
+            if (item instanceof List) {
+                List<?> list = (List<?>) item;
+                return part < list.size() ? list.get(part) : null;
+            }
+            if (item != null && item.getClass().isArray()) {
+                return part < Array.getLength(item) ? Array.get(item, part) : null;
+            }
+            throw new RuntimeException(String.format("Cannot unpack loop item into two variables. Item: %s", item));
+        }
+    }
+
+    /**
+     * Returns an iterator over any iterable shape: Iterable, Iterator, Stream, Map (its entries), object arrays and
+     * primitive arrays. Nothing is copied; primitive elements are boxed one at a time as they are visited.
+     * Returns null if the value is not iterable.
+     */
+    public static Iterator<?> iteratorOf(Object value) {
+        if (value instanceof Iterable) {
+            return ((Iterable<?>) value).iterator();
+        }
+        if (value instanceof Map) {
+            return ((Map<?, ?>) value).entrySet().iterator();
+        }
+        if (value instanceof Iterator) {
+            return (Iterator<?>) value;
+        }
+        if (value instanceof BaseStream) {
+            return ((BaseStream<?, ?>) value).iterator();
+        }
+        if (value instanceof Object[]) {
+            return Arrays.asList((Object[]) value).iterator();
+        }
+        if (value != null && value.getClass().isArray()) {
+            return new PrimitiveArrayIterator(value);
+        }
+        return null;
+    }
+
+    private static final class PrimitiveArrayIterator implements Iterator<Object> {
+        private final Object array;
+        private final int length;
+        private int index;
+
+        PrimitiveArrayIterator(Object array) {
+            this.array = array;
+            this.length = Array.getLength(array);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < length;
+        }
+
+        @Override
+        public Object next() {
+            if (index >= length) {
+                throw new NoSuchElementException();
+            }
+            int i = index++;
+            // the common element types avoid the reflective Array.get call
+            if (array instanceof int[]) {
+                return ((int[]) array)[i];
+            } else if (array instanceof long[]) {
+                return ((long[]) array)[i];
+            } else if (array instanceof double[]) {
+                return ((double[]) array)[i];
+            }
+            return Array.get(array, i);
+        }
+    }
+
+    // set–assignment (e.g. {% set foo = "bar" %}) node
+    public static class SetNode extends Node {
+        private final String variableName;
+        private final Expression expression;
+
+        public SetNode(String variableName, Expression expression) {
+            this.variableName = variableName;
+            this.expression = expression;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            Object value = expression.evaluate(context);
+            context.context.put(variableName, value);
+        }
+    }
+
+    /**
+     * A node representing a macro definition.
+     * Example:
+     * {% macro shout(text) %}
+     *   {{ upper(text) }}!!!
+     * {% endmacro %}
+     *
+     * When rendered, the macro is registered in the RenderContext and produces no output.
+     */
+    public static class MacroNode extends Node {
+        private final String name;
+        private final List<String> parameters;
+        private final List<Node> body;
+        // the escape mode the body was compiled with, i.e. the mode its output is already escaped for
+        private final EscapeMode outputMode;
+
+        public MacroNode(String name, List<String> parameters, List<Node> body) {
+            this(name, parameters, body, EscapeMode.NONE);
+        }
+
+        public MacroNode(String name, List<String> parameters, List<Node> body, EscapeMode outputMode) {
+            this.name = name;
+            this.parameters = parameters;
+            this.body = body;
+            this.outputMode = outputMode;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            MacroFunction macroFunc = new MacroFunction(parameters, body, context, outputMode);
+            context.macros.put(name, macroFunc);
+            // macro definitions produce no output... they are just holders
+        }
+    }
+
+    /**
+     * A node representing a cached fragment.
+     * Example:
+     * {% cache "nav-" + user.id 300 %}
+     *   ...expensive markup...
+     * {% endcache %}
+     *
+     * The key expression is evaluated on every render; the body is rendered only on a cache miss and its output
+     * is stored in the engine's FragmentCache for ttl seconds (no ttl, or ttl <= 0, means no expiry).
+     * Keys are scoped to the compiled template and the escape mode of the block, so a key used by two templates
+     * caches two fragments. Note that side effects of the body (e.g. set tags) are skipped on a cache hit.
+     */
+    public static class CacheNode extends Node {
+        private final Expression keyExpression;
+        private final Expression ttlExpression;
+        private final List<Node> body;
+        // prefix of the keys this block stores its fragments under (see Blueprint.fragmentNamespace)
+        private final String namespace;
+
+        public CacheNode(Expression keyExpression, Expression ttlExpression, List<Node> body) {
+            this(keyExpression, ttlExpression, body, "");
+        }
+
+        public CacheNode(Expression keyExpression, Expression ttlExpression, List<Node> body, String namespace) {
+            this.keyExpression = keyExpression;
+            this.ttlExpression = ttlExpression;
+            this.body = body;
+            this.namespace = namespace;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            String key = namespace + keyExpression.evaluate(context);
+            FragmentCache cache = context.engine.fragmentCache;
+            String cached = cache.get(key);
+            if (cached != null) {
+                sb.append(cached);
+                return;
+            }
+
+            // render straight into the caller's buffer and capture the fragment afterwards. An async render
+            // awaits pending values here, as a deferred one would be missing from the cached text.
+            int start = sb.length();
+            AsyncRender async = context.state.async;
+            if (async != null) {
+                async.beginCapture();
+            }
+            try {
+                for (Node node : body) {
+                    node.render(context, sb);
+                }
+            } finally {
+                if (async != null) {
+                    async.endCapture();
+                }
+            }
+            cache.put(key, sb.substring(start), ttlMillis(context));
+        }
+
+        private long ttlMillis(RenderContext context) {
+            if (ttlExpression == null) {
+                return 0;
+            }
+            Object ttl = ttlExpression.evaluate(context);
+            if (!(ttl instanceof Number)) {
+                throw new RuntimeException(String.format("Cache ttl must be a number of seconds. Value: %s", ttl));
+            }
+            return (long) (((Number) ttl).doubleValue() * 1000);
+        }
+    }
+
+    /**
+     * A node representing an autoescape block.
+     * Example:
+     * {% autoescape "js" %}
+     *   var name = '{{ user.name }}';
+     * {% endautoescape %}
+     *
+     * The escape mode is applied to the {{ }} nodes of the body at compile time; this node only renders the body.
+     */
+    public static class AutoEscapeNode extends Node {
+        private final EscapeMode escapeMode;
+        private final List<Node> body;
+
+        public AutoEscapeNode(EscapeMode escapeMode, List<Node> body) {
+            this.escapeMode = escapeMode;
+            this.body = body;
+        }
+
+        public EscapeMode getEscapeMode() {
+            return escapeMode;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            for (Node node : body) {
+                node.render(context, sb);
+            }
+        }
+    }
+
+    // how compiled templates are executed: by walking the node tree, or as a flat instruction stream (FlatProgram)
+    public enum ExecutionMode {
+        TREE, FLAT
+    }
+
+    /**
+     * A node list compiled into one int[] instruction stream plus a constant pool, run by a single interpreter loop
+     * instead of walking a tree of node objects and their child lists. Adjacent text is merged into one constant,
+     * and if/else becomes conditional jumps. Instructions (opcode followed by its operands):
+     *   TEXT   text               append constants[text]
+     *   OUTPUT expr escapeMode    {{ expr }}
+     *   PATH   path escapeMode    {{ a.b.c }}: a plain variable path, split into its parts (String[]) at compile time
+     *   IF     cond else end      continue if cond is true, otherwise jump to else. The true branch ends with JUMP end.
+     *   JUMP   target
+     *   SET    expr name          {% set name = expr %}
+     *   NODE   node next          render constants[node], then continue at next
+     * Loops, macros and cache blocks are NODEs: the original node with its body replaced by a FlatProgram over the
+     * instructions between the NODE and next. Other expressions are kept as they are, in the constant pool.
+     */
+    static final class FlatProgram extends Node {
+        static final int TEXT = 0;
+        static final int OUTPUT = 1;
+        static final int IF = 2;
+        static final int JUMP = 3;
+        static final int SET = 4;
+        static final int NODE = 5;
+        static final int PATH = 6;
+
+        private static final EscapeMode[] ESCAPE_MODES = EscapeMode.values();
+
+        // shared by a program and all of its sections; set once, when the program has been assembled
+        private int[] code;
+        private Object[] constants;
+        private final int start;
+        private final int end;
+
+        private FlatProgram(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        static FlatProgram compile(List<Node> nodes, Blueprint engine) {
+            Assembler assembler = new Assembler(engine);
+            assembler.nodes(nodes);
+            assembler.flushText();
+            FlatProgram program = assembler.section(0);
+            assembler.finish();
+            return program;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            final int[] code = this.code;
+            final Object[] constants = this.constants;
+            int pc = start;
+            while (pc < end) {
+                switch (code[pc]) {
+                    case TEXT:
+                        sb.append((String) constants[code[pc + 1]]);
+                        pc += 2;
+                        break;
+                    case OUTPUT:
+                        VariableNode.output(context, sb, (Expression) constants[code[pc + 1]], ESCAPE_MODES[code[pc + 2]]);
+                        pc += 3;
+                        break;
+                    case PATH:
+                        outputPath(context, sb, (String[]) constants[code[pc + 1]], ESCAPE_MODES[code[pc + 2]]);
+                        pc += 3;
+                        break;
+                    case IF:
+                        pc = IfNode.isTrue(((Expression) constants[code[pc + 1]]).evaluate(context)) ? pc + 4 : code[pc + 2];
+                        break;
+                    case JUMP:
+                        pc = code[pc + 1];
+                        break;
+                    case SET:
+                        context.context.put((String) constants[code[pc + 2]], ((Expression) constants[code[pc + 1]]).evaluate(context));
+                        pc += 3;
+                        break;
+                    case NODE:
+                        ((Node) constants[code[pc + 1]]).render(context, sb);
+                        pc = code[pc + 2];
+                        break;
+                    default:
+                        throw new IllegalStateException("Invalid instruction " + code[pc] + " at " + pc);
+                }
+            }
+        }
+
+        // VariableNode.output for a VariableExpression without a schema
+        private static void outputPath(RenderContext context, StringBuilder sb, String[] path, EscapeMode escapeMode) {
+            AsyncRender async = context.state.async;
+            if (async == null) {
+                appendValue(context.resolvePath(path, true), sb, escapeMode);
+                return;
+            }
+            Object value = context.resolvePath(path, false);
+            if (!async.defer(sb, value, escapeMode)) {
+                appendValue(context.unwrap(value), sb, escapeMode);
+            }
+        }
+
+        int codeSize() {
+            return code.length;
+        }
+
+        int constantCount() {
+            return constants.length;
+        }
+
+        // node lists with programs replaced by equivalent (transient) node trees, for code that inspects nodes
+        static List<Node> expand(List<Node> nodes) {
+            if (nodes == null) {
+                return null;
+            }
+            List<Node> expanded = null;
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node = nodes.get(i);
+                if (node instanceof FlatProgram && expanded == null) {
+                    expanded = new ArrayList<>(nodes.subList(0, i));
+                }
+                if (expanded != null) {
+                    if (node instanceof FlatProgram) {
+                        expanded.addAll(((FlatProgram) node).toNodes());
+                    } else {
+                        expanded.add(node);
+                    }
+                }
+            }
+            return expanded != null ? expanded : nodes;
+        }
+
+        // one node per top-level instruction: TEXT, OUTPUT, SET, NODE, or a whole IF
+        List<Node> toNodes() {
+            return decode(start, end);
+        }
+
+        private List<Node> decode(int from, int to) {
+            List<Node> nodes = new ArrayList<>();
+            int pc = from;
+            while (pc < to) {
+                switch (code[pc]) {
+                    case TEXT:
+                        nodes.add(new TextNode((String) constants[code[pc + 1]]));
+                        pc += 2;
+                        break;
+                    case OUTPUT:
+                        nodes.add(new VariableNode((Expression) constants[code[pc + 1]], ESCAPE_MODES[code[pc + 2]]));
+                        pc += 3;
+                        break;
+                    case PATH:
+                        String name = String.join(".", (String[]) constants[code[pc + 1]]);
+                        nodes.add(new VariableNode(new VariableExpression(name), ESCAPE_MODES[code[pc + 2]]));
+                        pc += 3;
+                        break;
+                    case IF:
+                        int elseStart = code[pc + 2];
+                        int endPc = code[pc + 3];
+                        nodes.add(new IfNode((Expression) constants[code[pc + 1]], decode(pc + 4, elseStart - 2),
+                                elseStart == endPc ? null : decode(elseStart, endPc)));
+                        pc = endPc;
+                        break;
+                    case SET:
+                        nodes.add(new SetNode((String) constants[code[pc + 2]], (Expression) constants[code[pc + 1]]));
+                        pc += 3;
+                        break;
+                    case NODE:
+                        nodes.add((Node) constants[code[pc + 1]]);
+                        pc = code[pc + 2];
+                        break;
+                    default:
+                        throw new IllegalStateException("Invalid instruction " + code[pc] + " at " + pc);
+                }
+            }
+            return nodes;
+        }
+
+        private static final class Assembler {
+            private final Blueprint engine;
+            private int[] code = new int[64];
+            private int size;
+            private final List<Object> constants = new ArrayList<>();
+            private final Map<String, Integer> stringConstants = new HashMap<>();
+            private final List<FlatProgram> sections = new ArrayList<>();
+            private final StringBuilder pendingText = new StringBuilder();
+
+            Assembler(Blueprint engine) {
+                this.engine = engine;
+            }
+
+            void nodes(List<Node> nodes) {
+                if (nodes == null) {
+                    return;
+                }
+                for (Node node : nodes) {
+                    node(node);
+                }
+            }
+
+            private void node(Node node) {
+                if (node instanceof TextNode) {
+                    pendingText.append(((TextNode) node).text);
+                    return;
+                }
+                if (node instanceof AutoEscapeNode) {
+                    // the escape mode is already applied to the {{ }} nodes of the body
+                    nodes(((AutoEscapeNode) node).body);
+                    return;
+                }
+                flushText();
+                if (node instanceof VariableNode) {
+                    VariableNode variableNode = (VariableNode) node;
+                    String[] path = path(variableNode.expression);
+                    if (path != null) {
+                        emit(PATH, constant(path), variableNode.escapeMode.ordinal());
+                    } else {
+                        emit(OUTPUT, constant(variableNode.expression), variableNode.escapeMode.ordinal());
+                    }
+                } else if (node instanceof IfNode) {
+                    IfNode ifNode = (IfNode) node;
+                    int instruction = emit(IF, constant(ifNode.condition), 0, 0);
+                    nodes(ifNode.trueNodes);
+                    flushText();
+                    int jump = emit(JUMP, 0);
+                    code[instruction + 2] = size;
+                    nodes(ifNode.falseNodes);
+                    flushText();
+                    code[instruction + 3] = size;
+                    code[jump + 1] = size;
+                } else if (node instanceof SetNode) {
+                    SetNode setNode = (SetNode) node;
+                    emit(SET, constant(setNode.expression), constant(setNode.variableName));
+                } else if (node instanceof ForNode) {
+                    ForNode forNode = (ForNode) node;
+                    int instruction = emit(NODE, 0, 0);
+                    List<Node> body = body(forNode.bodyNodes);
+                    patchNode(instruction, new ForNode(forNode.loopVar, forNode.valueVar, forNode.listExpression, body));
+                } else if (node instanceof MacroNode) {
+                    MacroNode macroNode = (MacroNode) node;
+                    int instruction = emit(NODE, 0, 0);
+                    List<Node> body = body(macroNode.body);
+                    patchNode(instruction, new MacroNode(macroNode.name, macroNode.parameters, body, macroNode.outputMode));
+                } else if (node instanceof CacheNode) {
+                    CacheNode cacheNode = (CacheNode) node;
+                    int instruction = emit(NODE, 0, 0);
+                    List<Node> body = body(cacheNode.body);
+                    patchNode(instruction, new CacheNode(cacheNode.keyExpression, cacheNode.ttlExpression, body, cacheNode.namespace));
+                } else {
+                    // any other node is run as is
+                    emit(NODE, constant(node), size + 3);
+                }
+            }
+
+            // the parts of a plain variable path, or null. Parts are interned: the same names recur across templates.
+            private static String[] path(Expression expression) {
+                if (!(expression instanceof VariableExpression) || ((VariableExpression) expression).schema != null) {
+                    return null;
+                }
+                String name = ((VariableExpression) expression).name;
+                int dot = name.indexOf('.');
+                if (name.substring(0, dot == -1 ? name.length() : dot).indexOf('[') != -1) {
+                    return null;
+                }
+                String[] parts = name.split("\\.");
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = parts[i].intern();
+                }
+                return parts;
+            }
+
+            // assembles a body in place, as a section of the program
+            private List<Node> body(List<Node> nodes) {
+                int bodyStart = size;
+                nodes(nodes);
+                flushText();
+                return Collections.singletonList(section(bodyStart));
+            }
+
+            private void patchNode(int instruction, Node node) {
+                code[instruction + 1] = constant(node);
+                code[instruction + 2] = size;
+            }
+
+            FlatProgram section(int sectionStart) {
+                FlatProgram section = new FlatProgram(sectionStart, size);
+                sections.add(section);
+                return section;
+            }
+
+            void flushText() {
+                if (pendingText.length() > 0) {
+                    emit(TEXT, constant(engine.pooledText(pendingText.toString())));
+                    pendingText.setLength(0);
+                }
+            }
+
+            private int constant(Object value) {
+                if (value instanceof String) {
+                    Integer index = stringConstants.get(value);
+                    if (index == null) {
+                        index = constants.size();
+                        constants.add(value);
+                        stringConstants.put((String) value, index);
+                    }
+                    return index;
+                }
+                constants.add(value);
+                return constants.size() - 1;
+            }
+
+            private int emit(int... instruction) {
+                if (size + instruction.length > code.length) {
+                    code = Arrays.copyOf(code, Math.max(code.length * 2, size + instruction.length));
+                }
+                int position = size;
+                System.arraycopy(instruction, 0, code, size, instruction.length);
+                size += instruction.length;
+                return position;
+            }
+
+            void finish() {
+                int[] finalCode = Arrays.copyOf(code, size);
+                Object[] finalConstants = constants.toArray();
+                for (FlatProgram section : sections) {
+                    section.code = finalCode;
+                    section.constants = finalConstants;
+                }
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // Expression classes
+    // --------------------------------------------------------------------------------
+
+    /**
+     * An expression can be evaluated to produce a value.
+     */
+    public static abstract class Expression {
+        public abstract Object evaluate(RenderContext context);
+
+        // like evaluate, but a future result is returned without awaiting it. Used where the value
+        // is only written to the output, so that an async render can keep going in the meantime.
+        public Object evaluateLazy(RenderContext context) {
+            return evaluate(context);
+        }
+
+        // writes the value to the output, as {{ expression }} does. Expressions that can produce their text
+        // piecewise override this to skip building the complete value first.
+        public void appendTo(RenderContext context, StringBuilder sb, EscapeMode escapeMode) {
+            appendValue(evaluate(context), sb, escapeMode);
+        }
+    }
+
+    // literal value expression (number or string, e.g. {{ 5 }} or {{ "hello" }})
+    public static class LiteralExpression extends Expression {
+        private final Object value;
+
+        public LiteralExpression(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            return value;
+        }
+    }
+
+    // object literal expression (e.g. { firstName: "alice", lastName: "smith", age: 30 })
+    public static class ObjectLiteralExpression extends Expression {
+        private final Map<String, Expression> entries;
+
+        public ObjectLiteralExpression(Map<String, Expression> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            Map<String, Object> result = new HashMap<>();
+            for (Map.Entry<String, Expression> entry : entries.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().evaluate(context));
+            }
+            return result;
+        }
+    }
+
+    // array literal expression (e.g. [ { name: "Bob", age: 22 }, { name: "Charlie", age: 27 } ])
+    public static class ArrayLiteralExpression extends Expression {
+        private final List<Expression> elements;
+
+        public ArrayLiteralExpression(List<Expression> elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            List<Object> list = new ArrayList<>();
+            for (Expression expr : elements) {
+                list.add(expr.evaluate(context));
+            }
+            return list;
+        }
+    }
+
+    // variable expression (e.g. “user.name” or “user.colors[0]”)
+    public static class VariableExpression extends Expression {
+        private final String name;
+        // set when compiled against a ContextSchema and the path starts at one of its keys
+        private final ContextSchema schema;
+        private final int slot;
+        // getters for the leading properties of the path, resolved from the declared types at compile time
+        private final Method[] getters;
+        // the rest of the path (e.g. map keys or indexes), resolved like any other path
+        private final String[] remainingParts;
+
+        public VariableExpression(String name) {
+            this(name, null, -1, null, null);
+        }
+
+        VariableExpression(String name, ContextSchema schema, int slot, Method[] getters, String[] remainingParts) {
+            this.name = name;
+            this.schema = schema;
+            this.slot = slot;
+            this.getters = getters;
+            this.remainingParts = remainingParts;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            if (schema != null && context.context instanceof SlotContext && ((SlotContext) context.context).schema == schema) {
+                return resolveSlot(context, (SlotContext) context.context, true);
+            }
+            return context.resolve(name);
+        }
+
+        @Override
+        public Object evaluateLazy(RenderContext context) {
+            if (schema != null && context.context instanceof SlotContext && ((SlotContext) context.context).schema == schema) {
+                return resolveSlot(context, (SlotContext) context.context, false);
+            }
+            return context.resolve(name, false);
+        }
+
+        // no hashing: the root value is read from its slot and typed properties through their getters
+        private Object resolveSlot(RenderContext context, SlotContext slots, boolean awaitResult) {
+            Object value = slots.values[slot];
+            for (Method getter : getters) {
+                value = context.unwrap(value);
+                if (value == null) {
+                    return null;
+                }
+                if (!getter.getDeclaringClass().isInstance(value)) {
+                    // the value doesn't have the declared type (e.g. a loop variable of the same name)
+                    return context.resolve(name, awaitResult);
+                }
+                value = context.invokeGetter(value, getter);
+            }
+            for (String part : remainingParts) {
+                value = context.resolvePart(context.unwrap(value), part);
+                if (value == null) {
+                    return null;
+                }
+            }
+            return awaitResult ? context.unwrap(value) : value;
+        }
+    }
+
+    // function–call expression (e.g. {{ upper(name) }})
+    public static class FunctionCallExpression extends Expression {
+        private final String functionName;
+        private final List<Expression> arguments;
+        // the function this call was bound to at compile time (frozen engines only), otherwise looked up per call
+        private final TemplateFunction boundFunction;
+
+        public FunctionCallExpression(String functionName, List<Expression> arguments) {
+            this(functionName, arguments, null);
+        }
+
+        public FunctionCallExpression(String functionName, List<Expression> arguments, TemplateFunction boundFunction) {
+            this.functionName = functionName;
+            this.arguments = arguments;
+            this.boundFunction = boundFunction;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            return context.unwrap(evaluateLazy(context));
+        }
+
+        @Override
+        public Object evaluateLazy(RenderContext context) {
+            TemplateFunction func = function(context);
+            return func.execute(context, arguments(func, context));
+        }
+
+        // a macro call in output position renders its body straight into the output, instead of into a String
+        // that is then copied (once per nesting level for nested macros)
+        @Override
+        public void appendTo(RenderContext context, StringBuilder sb, EscapeMode escapeMode) {
+            TemplateFunction func = function(context);
+            List<Object> args = arguments(func, context);
+            if (func instanceof MacroFunction && ((MacroFunction) func).rendersAs(escapeMode)) {
+                ((MacroFunction) func).render(context, args, sb);
+            } else {
+                appendValue(context.unwrap(func.execute(context, args)), sb, escapeMode);
+            }
+        }
+
+        private TemplateFunction function(RenderContext context) {
+            TemplateFunction func = boundFunction != null ? boundFunction : context.getFunction(functionName);
+            if (func == null) {
+                throw new RuntimeException("Function not found: " + functionName);
+            }
+            return func;
+        }
+
+        private List<Object> arguments(TemplateFunction func, RenderContext context) {
+            List<Object> args = new ArrayList<>();
+            for (Expression argExp : arguments) {
+                args.add(RegisteredFunction.argument(func, argExp, context));
+            }
+            return args;
+        }
+    }
+
+    // binary expression (e.g. a >= 18, foo and bar)
+    public static class BinaryExpression extends Expression {
+        private final Expression left;
+        private final Expression right;
+        private final String operator;
+
+        public BinaryExpression(Expression left, String operator, Expression right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            Object leftVal = left.evaluate(context);
+            // the right side of "or"/"and" is only evaluated when the left side doesn't decide the result
+            switch (operator) {
+                case "or":
+                    return isTrue(leftVal) || isTrue(right.evaluate(context));
+                case "and":
+                    return isTrue(leftVal) && isTrue(right.evaluate(context));
+            }
+            Object rightVal = right.evaluate(context);
+            switch (operator) {
+                case "==":
+                    return (leftVal == null && rightVal == null) || (leftVal != null && leftVal.equals(rightVal));
+                case "!=":
+                    return !((leftVal == null && rightVal == null) || (leftVal != null && leftVal.equals(rightVal)));
+                case ">":
+                    return compare(leftVal, rightVal) > 0;
+                case ">=":
+                    return compare(leftVal, rightVal) >= 0;
+                case "<":
+                    return compare(leftVal, rightVal) < 0;
+                case "<=":
+                    return compare(leftVal, rightVal) <= 0;
+                case "+":
+                    if (leftVal instanceof Number && rightVal instanceof Number) {
+                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
+                            return ((Integer) leftVal) + ((Integer) rightVal);
+                        } else {
+                            return ((Number) leftVal).doubleValue() + ((Number) rightVal).doubleValue();
+                        }
+                    }
+                    return String.valueOf(leftVal) + String.valueOf(rightVal);
+                case "-":
+                    if (leftVal instanceof Number && rightVal instanceof Number) {
+                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
+                            return ((Integer) leftVal) - ((Integer) rightVal);
+                        } else {
+                            return ((Number) leftVal).doubleValue() - ((Number) rightVal).doubleValue();
+                        }
+                    }
+                    throw new RuntimeException(String.format("Cannot subtract non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
+                case "*":
+                    if (leftVal instanceof Number && rightVal instanceof Number) {
+                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
+                            return ((Integer) leftVal) * ((Integer) rightVal);
+                        } else {
+                            return ((Number) leftVal).doubleValue() * ((Number) rightVal).doubleValue();
+                        }
+                    }
+                    throw new RuntimeException(String.format("Cannot multiply non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
+                case "/":
+                    if (leftVal instanceof Number && rightVal instanceof Number) {
+                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
+                            int divisor = (Integer) rightVal;
+                            if (divisor == 0) {
+                                throw new RuntimeException("Division by zero");
+                            }
+                            return ((Integer) leftVal) / divisor;
+                        } else {
+                            double divisor = ((Number) rightVal).doubleValue();
+                            if (divisor == 0.0) {
+                                throw new RuntimeException("Division by zero");
+                            }
+                            return ((Number) leftVal).doubleValue() / divisor;
+                        }
+                    }
+                    throw new RuntimeException(String.format("Cannot divide non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
+                case "%":
+                    if (leftVal instanceof Number && rightVal instanceof Number) {
+                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
+                            return ((Integer) leftVal) % ((Integer) rightVal);
+                        } else {
+                            return ((Number) leftVal).doubleValue() % ((Number) rightVal).doubleValue();
+                        }
+                    }
+                    throw new RuntimeException(String.format("Cannot apply modulo to non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
+                case "**":
+                    if (leftVal instanceof Number && rightVal instanceof Number) {
+                        if (leftVal instanceof Integer && rightVal instanceof Integer) {
+                            int base = (Integer) leftVal;
+                            int exponent = (Integer) rightVal;
+                            // for negative exponents, fall back to double arithmetic
+                            if (exponent < 0) {
+                                return Math.pow(base, exponent);
+                            } else {
+                                int result = 1;
+                                for (int i = 0; i < exponent; i++) {
+                                    result *= base;
+                                }
+                                return result;
+                            }
+                        } else {
+                            return Math.pow(((Number) leftVal).doubleValue(), ((Number) rightVal).doubleValue());
+                        }
+                    }
+                    throw new RuntimeException(String.format("Cannot apply power operator to non-numeric values. Left value: %s right value: %s", leftVal, rightVal));
+                default:
+                    throw new RuntimeException(String.format("Unknown operator: %s", operator));
+            }
+        }
+
+        static boolean isTrue(Object val) {
+            if (val == null) return false;
+            if (val instanceof Boolean) return (Boolean) val;
+            if (val instanceof Number) return ((Number) val).doubleValue() != 0;
+            if (val instanceof String) return !((String) val).isEmpty();
+            return true;
+        }
+
+        private int compare(Object leftVal, Object rightVal) {
+            if (leftVal instanceof Number && rightVal instanceof Number) {
+                // when both are integers, use integer arithmetic; otherwise, use double arithmetic
+                if (leftVal instanceof Integer && rightVal instanceof Integer) {
+                    return ((Integer) leftVal).compareTo((Integer) rightVal);
+                }
+                double diff = ((Number) leftVal).doubleValue() - ((Number) rightVal).doubleValue();
+                return Double.compare(diff, 0);
+            }
+            if (leftVal instanceof Comparable && rightVal instanceof Comparable) {
+                return ((Comparable) leftVal).compareTo(rightVal);
+            }
+
+            throw new RuntimeException(String.format("Cannot compare non-numeric or non-comparable values. Left value: %s right value: %s", leftVal, rightVal));
+        }
+    }
+
+    // a chain of "+" operations (e.g. {{ first + " " + last }}), evaluated left to right like nested BinaryExpressions:
+    // numbers are added for as long as both sides are numbers, and from the first non-number on, everything is
+    // concatenated as text. In output position the text is written straight to the output instead of building
+    // an intermediate String at every "+".
+    public static class ConcatExpression extends Expression {
+        private final List<Expression> operands;
+
+        public ConcatExpression(List<Expression> operands) {
+            this.operands = operands;
+        }
+
+        List<Expression> getOperands() {
+            return operands;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            Object acc = operands.get(0).evaluate(context);
+            int i = 1;
+            for (; i < operands.size(); i++) {
+                Object value = operands.get(i).evaluate(context);
+                if (!(acc instanceof Number && value instanceof Number)) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(acc).append(value);
+                    for (i++; i < operands.size(); i++) {
+                        sb.append(operands.get(i).evaluate(context));
+                    }
+                    return sb.toString();
+                }
+                acc = add((Number) acc, (Number) value);
+            }
+            return acc;
+        }
+
+        @Override
+        public void appendTo(RenderContext context, StringBuilder sb, EscapeMode escapeMode) {
+            Object acc = operands.get(0).evaluate(context);
+            int i = 1;
+            for (; i < operands.size(); i++) {
+                Object value = operands.get(i).evaluate(context);
+                if (!(acc instanceof Number && value instanceof Number)) {
+                    appendText(acc, sb, escapeMode);
+                    appendText(value, sb, escapeMode);
+                    for (i++; i < operands.size(); i++) {
+                        appendText(operands.get(i).evaluate(context), sb, escapeMode);
+                    }
+                    return;
+                }
+                acc = add((Number) acc, (Number) value);
+            }
+            appendValue(acc, sb, escapeMode);
+        }
+
+        // operands are written as appendValue writes them, so SafeStrings stay unescaped where they are safe. As in
+        // evaluate, null renders as "null".
+        private static void appendText(Object value, StringBuilder sb, EscapeMode escapeMode) {
+            if (value == null) {
+                escapeMode.escape("null", sb);
+            } else {
+                appendValue(value, sb, escapeMode);
+            }
+        }
+
+        private static Object add(Number left, Number right) {
+            if (left instanceof Integer && right instanceof Integer) {
+                return left.intValue() + right.intValue();
+            }
+            return left.doubleValue() + right.doubleValue();
+        }
+    }
+
+    // inline conditional (e.g. {{ "in stock" if item.stock > 0 else "sold out" }}). Only the chosen branch is evaluated;
+    // without an else branch, a false condition yields null.
+    public static class ConditionalExpression extends Expression {
+        private final Expression condition;
+        private final Expression whenTrue;
+        private final Expression whenFalse;
+
+        public ConditionalExpression(Expression whenTrue, Expression condition, Expression whenFalse) {
+            this.whenTrue = whenTrue;
+            this.condition = condition;
+            this.whenFalse = whenFalse;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            if (BinaryExpression.isTrue(condition.evaluate(context))) {
+                return whenTrue.evaluate(context);
+            }
+            return whenFalse != null ? whenFalse.evaluate(context) : null;
+        }
+
+        @Override
+        public Object evaluateLazy(RenderContext context) {
+            if (BinaryExpression.isTrue(condition.evaluate(context))) {
+                return whenTrue.evaluateLazy(context);
+            }
+            return whenFalse != null ? whenFalse.evaluateLazy(context) : null;
+        }
+    }
+
+    // unary expression (e.g. "not foo" or "-x").
+    public static class UnaryExpression extends Expression {
+        private final String operator;
+        private final Expression operand;
+
+        public UnaryExpression(String operator, Expression operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            Object val = operand.evaluate(context);
+            switch (operator) {
+                case "not":
+                    return !isTrue(val);
+                case "-":
+                    if (val instanceof Number) {
+                        return -((Number) val).doubleValue();
+                    }
+                    throw new RuntimeException(String.format("Cannot negate non-numeric value. Value: %s", val));
+                default:
+                    throw new RuntimeException(String.format("Unknown unary operator: %s", operator));
+            }
+        }
+
+        private boolean isTrue(Object val) {
+            if (val == null) return false;
+            if (val instanceof Boolean) return (Boolean) val;
+            if (val instanceof Number) return ((Number) val).doubleValue() != 0;
+            if (val instanceof String) return !((String) val).isEmpty();
+            return true;
+        }
+    }
+
+    // expression that applies one or more filters to a base expression (e.g. {{ foo | replace("foo", "bar") | capitalize }})
+    public static class FilteredExpression extends Expression {
+        private final Expression base;
+        private final List<Filter> filters;
+
+        public FilteredExpression(Expression base, List<Filter> filters) {
+            this.base = base;
+            this.filters = filters;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            return applyFilters(base.evaluate(context), context);
+        }
+
+        // an AppendingFilter at the end of the chain writes its result straight to the output
+        @Override
+        public void appendTo(RenderContext context, StringBuilder sb, EscapeMode escapeMode) {
+            Filter last = filters.get(filters.size() - 1);
+            TemplateFunction func = function(last, context);
+            TemplateFunction target = func instanceof RegisteredFunction && !((RegisteredFunction) func).isMemoized()
+                    ? ((RegisteredFunction) func).getDelegate() : func;
+            if (!(target instanceof AppendingFilter)) {
+                appendValue(evaluate(context), sb, escapeMode);
+                return;
+            }
+            Object value = applyFilters(base.evaluate(context), context, filters.size() - 1);
+            List<Object> args = new ArrayList<>();
+            for (Expression argExp : last.arguments) {
+                args.add(RegisteredFunction.argument(func, argExp, context));
+            }
+            if (escapeMode == EscapeMode.NONE) {
+                ((AppendingFilter) target).appendTo(value, args, sb);
+            } else {
+                StringBuilder out = new StringBuilder();
+                ((AppendingFilter) target).appendTo(value, args, out);
+                escapeMode.escape(out, sb);
+            }
+        }
+
+        Object applyFilters(Object value, RenderContext context) {
+            return applyFilters(value, context, filters.size());
+        }
+
+        // applies the first count filters
+        private Object applyFilters(Object value, RenderContext context, int count) {
+            for (int i = 0; i < count; i++) {
+                Filter filter = filters.get(i);
+                TemplateFunction func = function(filter, context);
+                List<Object> args = new ArrayList<>();
+                // The current value is passed as the first argument.
+                args.add(value);
+                for (Expression argExp : filter.arguments) {
+                    args.add(RegisteredFunction.argument(func, argExp, context));
+                }
+                value = context.unwrap(func.execute(context, args));
+            }
+            return value;
+        }
+
+        private static TemplateFunction function(Filter filter, RenderContext context) {
+            TemplateFunction func = filter.boundFunction != null ? filter.boundFunction : context.getFilter(filter.filterName);
+            if (func == null) {
+                throw new RuntimeException("Filter not found: " + filter.filterName);
+            }
+            return func;
+        }
+    }
+
+    // a chain of text filters with constant arguments, run as one pipeline (see TextFilter). Values that are not
+    // text (e.g. null or numbers) go through the regular, unfused filter calls.
+    public static class FusedFilterExpression extends Expression {
+        // at most this much scratch buffer capacity is kept per thread between renders
+        private static final int MAX_RETAINED_SCRATCH = 16 * 1024;
+        private static final ThreadLocal<StringBuilder[]> SCRATCH = ThreadLocal.withInitial(() -> new StringBuilder[]{new StringBuilder(), new StringBuilder()});
+
+        private final FilteredExpression unfused;
+        private final TextFilter[] stages;
+        private final List<Object>[] stageArgs;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        FusedFilterExpression(FilteredExpression unfused, List<TextFilter> stages, List<List<Object>> stageArgs) {
+            this.unfused = unfused;
+            this.stages = stages.toArray(new TextFilter[0]);
+            this.stageArgs = stageArgs.toArray(new List[0]);
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            Object value = unfused.base.evaluate(context);
+            if (!(value instanceof CharSequence)) {
+                return unfused.applyFilters(value, context);
+            }
+            StringBuilder out = new StringBuilder();
+            run((CharSequence) value, out);
+            return out.toString();
+        }
+
+        @Override
+        public void appendTo(RenderContext context, StringBuilder sb, EscapeMode escapeMode) {
+            Object value = unfused.base.evaluate(context);
+            if (!(value instanceof CharSequence)) {
+                appendValue(unfused.applyFilters(value, context), sb, escapeMode);
+            } else if (escapeMode == EscapeMode.NONE) {
+                run((CharSequence) value, sb);
+            } else {
+                StringBuilder out = new StringBuilder();
+                run((CharSequence) value, out);
+                escapeMode.escape(out, sb);
+            }
+        }
+
+        // stages alternate between two per-thread scratch buffers; the last stage writes to out
+        private void run(CharSequence input, StringBuilder out) {
+            StringBuilder[] scratch = SCRATCH.get();
+            CharSequence current = input;
+            for (int i = 0; i < stages.length; i++) {
+                StringBuilder target = out;
+                if (i < stages.length - 1) {
+                    target = scratch[i & 1];
+                    target.setLength(0);
+                }
+                stages[i].apply(current, stageArgs[i], target);
+                current = target;
+            }
+            for (int i = 0; i < scratch.length; i++) {
+                if (scratch[i].capacity() > MAX_RETAINED_SCRATCH) {
+                    scratch[i] = new StringBuilder();
+                }
+            }
+        }
+    }
+
+    public static class Filter {
+        public final String filterName;
+        public final List<Expression> arguments;
+        // bound at compile time when the engine is frozen
+        public final TemplateFunction boundFunction;
+
+        public Filter(String filterName, List<Expression> arguments) {
+            this(filterName, arguments, null);
+        }
+
+        public Filter(String filterName, List<Expression> arguments, TemplateFunction boundFunction) {
+            this.filterName = filterName;
+            this.arguments = arguments;
+            this.boundFunction = boundFunction;
+        }
+    }
+
+    // TemplateFunction implementation for macros.
+    // When executed, the macro renders its body using a new local context with its parameters set.
+    public static class MacroFunction implements TemplateFunction {
+        private final List<String> parameters;
+        private final List<Node> body;
+        // (optionally) we can capture the definition context if needed.
+        private final RenderContext definitionContext;
+        // macro output that is already escaped is returned as a SafeString for this mode, so that it isn't escaped
+        // twice where it is written with the same mode (and is escaped again where it is written with another)
+        private final EscapeMode outputMode;
+
+        public MacroFunction(List<String> parameters, List<Node> body, RenderContext definitionContext) {
+            this(parameters, body, definitionContext, EscapeMode.NONE);
+        }
+
+        public MacroFunction(List<String> parameters, List<Node> body, RenderContext definitionContext, EscapeMode outputMode) {
+            this.parameters = parameters;
+            this.body = body;
+            this.definitionContext = definitionContext;
+            this.outputMode = outputMode;
+        }
+
+        @Override
+        public Object execute(RenderContext context, List<Object> args) {
+            StringBuilder sb = new StringBuilder();
+            RenderBudget budget = context.state.budget;
+            if (budget == null) {
+                render(context, args, sb);
+            } else {
+                budget.beginNested(sb);
+                try {
+                    render(context, args, sb);
+                } finally {
+                    budget.endNested();
+                }
+            }
+            return outputMode != EscapeMode.NONE ? new SafeString(sb.toString(), outputMode) : sb.toString();
+        }
+
+        // renders the body into the given output
+        void render(RenderContext context, List<Object> args, StringBuilder sb) {
+            // the local context reads through to the caller's variables (and macros), while its own writes stay local
+            Map<String, Object> localVars = new ScopedMap(context.context);
+            // bind macro parameters
+            for (int i = 0; i < parameters.size(); i++) {
+                Object argVal = i < args.size() ? args.get(i) : null;
+                localVars.put(parameters.get(i), argVal);
+            }
+            RenderContext localContext = new RenderContext(localVars, context);
+            RenderBudget budget = context.state.budget;
+            if (budget == null) {
+                for (Node node : body) {
+                    node.render(localContext, sb);
+                }
+                return;
+            }
+            budget.enterMacro(sb);
+            try {
+                for (Node node : body) {
+                    node.render(localContext, sb);
+                }
+            } finally {
+                budget.exitMacro();
+            }
+        }
+
+        // whether the body's output can be written as is where the result would be appended with escapeMode
+        boolean rendersAs(EscapeMode escapeMode) {
+            return escapeMode == outputMode || escapeMode == EscapeMode.NONE;
+        }
+    }
+
+    /**
+     * A map layered over a parent map: reads fall through to the parent, writes and removals only affect this layer.
+     * Gives a macro body its own variables without copying the caller's context on every call.
+     */
+    static final class ScopedMap extends AbstractMap<String, Object> {
+        // marks a parent entry removed in this layer
+        private static final Object REMOVED = new Object();
+
+        private final Map<String, Object> parent;
+        private final Map<String, Object> local = new HashMap<>();
+
+        ScopedMap(Map<String, Object> parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public Object get(Object key) {
+            Object value = local.get(key);
+            if (value != null) {
+                return value == REMOVED ? null : value;
+            }
+            return local.containsKey(key) ? null : parent.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Object value = local.get(key);
+            if (value != null) {
+                return value != REMOVED;
+            }
+            return local.containsKey(key) || parent.containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            Object previous = get(key);
+            local.put(key, value);
+            return previous;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            Object previous = get(key);
+            if (parent.containsKey(key)) {
+                local.put((String) key, REMOVED);
+            } else {
+                local.remove(key);
+            }
+            return previous;
+        }
+
+        // a read-only copy of the merged entries
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            Map<String, Object> entries = new HashMap<>(parent);
+            for (Entry<String, Object> entry : local.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    entries.remove(entry.getKey());
+                } else {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return Collections.unmodifiableMap(entries).entrySet();
+        }
+    }
+
+    // the context of a RenderSession: records the top-level keys read and written while a node renders
+    static final class DependencyTracker extends AbstractMap<String, Object> {
+        // the previous value of a key that did not exist before it was written
+        private static final Object ABSENT = new Object();
+
+        private final Map<String, Object> context;
+        private Set<String> reads;
+        // written key -> its value before the first write
+        private Map<String, Object> writes;
+        // set when the whole context was iterated, i.e. the node depends on every key
+        boolean readAll;
+
+        DependencyTracker(Map<String, Object> context) {
+            this.context = context;
+        }
+
+        void record(Set<String> reads, Map<String, Object> writes) {
+            this.reads = reads;
+            this.writes = writes;
+        }
+
+        // the written keys whose value differs from the one before the node rendered. Loops restore their variables,
+        // so e.g. "loop" is not a change.
+        Set<String> changedKeys(Map<String, Object> writes) {
+            Set<String> changed = new HashSet<>();
+            for (Entry<String, Object> write : writes.entrySet()) {
+                Object current = context.containsKey(write.getKey()) ? context.get(write.getKey()) : ABSENT;
+                if (!Objects.equals(current, write.getValue())) {
+                    changed.add(write.getKey());
+                }
+            }
+            return changed;
+        }
+
+        private void write(Object key) {
+            if (writes != null && key instanceof String && !writes.containsKey(key)) {
+                writes.put((String) key, context.containsKey(key) ? context.get(key) : ABSENT);
+            }
+        }
+
+        private void read(Object key) {
+            if (reads != null && key instanceof String) {
+                reads.add((String) key);
+            }
+        }
+
+        @Override
+        public Object get(Object key) {
+            read(key);
+            return context.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            read(key);
+            return context.containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            write(key);
+            return context.put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            write(key);
+            return context.remove(key);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            if (reads != null) {
+                readAll = true;
+            }
+            return context.entrySet();
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // Render profiling
+    // --------------------------------------------------------------------------------
+
+    /**
+     * Collects per-node timings of templates compiled with CompileOptions.profiler(...).
+     * Every node, function call and filter stage of such a template is wrapped in an instrumented node that
+     * records invocation count, time and characters appended into a call tree, so that time spent inside
+     * e.g. a loop body or a macro is attributed to the loop or the macro call.
+     * A profiler may be shared by several templates and threads; reset() it only between renders.
+     */
+    public static class RenderProfiler {
+        private final Frame root = new Frame(null, null);
+        private final ThreadLocal<Frame> current = ThreadLocal.withInitial(() -> root);
+
+        Frame enter(ProfileSite site) {
+            Frame frame = current.get().child(site);
+            current.set(frame);
+            return frame;
+        }
+
+        void exit(Frame frame, long nanos, long chars) {
+            frame.calls.increment();
+            frame.nanos.add(nanos);
+            frame.chars.add(chars);
+            current.set(frame.parent);
+        }
+
+        public void reset() {
+            root.children.clear();
+        }
+
+        // one entry per template location, sorted by self time (most expensive first)
+        public List<Entry> entries() {
+            Map<ProfileSite, Entry> entries = new LinkedHashMap<>();
+            aggregate(root, entries, Collections.newSetFromMap(new IdentityHashMap<>()));
+            List<Entry> result = new ArrayList<>(entries.values());
+            result.sort((a, b) -> Long.compare(b.selfNanos, a.selfNanos));
+            return result;
+        }
+
+        private void aggregate(Frame frame, Map<ProfileSite, Entry> entries, Set<ProfileSite> onStack) {
+            for (Frame child : frame.children.values()) {
+                Entry entry = entries.computeIfAbsent(child.site, Entry::new);
+                entry.calls += child.calls.sum();
+                entry.selfNanos += child.selfNanos();
+                // recursive calls (e.g. a macro calling itself) are already part of the outermost call's totals
+                boolean recursive = !onStack.add(child.site);
+                if (!recursive) {
+                    entry.totalNanos += child.nanos.sum();
+                    entry.chars += child.chars.sum();
+                }
+                aggregate(child, entries, onStack);
+                if (!recursive) {
+                    onStack.remove(child.site);
+                }
+            }
+        }
+
+        public String formatTable() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%10s %10s %10s %10s  %-10s %-10s %s%n", "self ms", "total ms", "calls", "chars", "kind", "location", "source"));
+            for (Entry entry : entries()) {
+                sb.append(String.format(Locale.ROOT, "%10.3f %10.3f %10d %10d  %-10s %-10s %s%n",
+                        entry.selfNanos / 1e6, entry.totalNanos / 1e6, entry.calls, entry.chars,
+                        entry.getKind(), entry.getLine() + ":" + entry.getColumn(), entry.getSource()));
+            }
+            return sb.toString();
+        }
+
+        // collapsed stack format ("frame;frame;frame selfNanos" per line) as consumed by flamegraph.pl and speedscope
+        public String toCollapsedStacks() {
+            StringBuilder sb = new StringBuilder();
+            collapse(root, "", sb);
+            return sb.toString();
+        }
+
+        private void collapse(Frame frame, String prefix, StringBuilder sb) {
+            for (Frame child : frame.children.values()) {
+                String stack = prefix.isEmpty() ? child.site.frameName() : prefix + ";" + child.site.frameName();
+                long self = child.selfNanos();
+                if (self > 0) {
+                    sb.append(stack).append(' ').append(self).append('\n');
+                }
+                collapse(child, stack, sb);
+            }
+        }
+
+        // aggregated numbers for one template location
+        public static class Entry {
+            private final ProfileSite site;
+            private long calls;
+            private long totalNanos;
+            private long selfNanos;
+            private long chars;
+
+            private Entry(ProfileSite site) {
+                this.site = site;
+            }
+
+            public String getKind() {
+                return site.kind;
+            }
+
+            public int getLine() {
+                return site.line;
+            }
+
+            public int getColumn() {
+                return site.column;
+            }
+
+            public String getSource() {
+                return site.source;
+            }
+
+            public long getCalls() {
+                return calls;
+            }
+
+            public long getTotalNanos() {
+                return totalNanos;
+            }
+
+            public long getSelfNanos() {
+                return selfNanos;
+            }
+
+            // characters appended to the output, including those of nested nodes
+            public long getChars() {
+                return chars;
+            }
+        }
+
+        // a node of the call tree: one per distinct path of template locations
+        static final class Frame {
+            final ProfileSite site;
+            final Frame parent;
+            final ConcurrentHashMap<ProfileSite, Frame> children = new ConcurrentHashMap<>();
+            final LongAdder calls = new LongAdder();
+            final LongAdder nanos = new LongAdder();
+            final LongAdder chars = new LongAdder();
+
+            Frame(ProfileSite site, Frame parent) {
+                this.site = site;
+                this.parent = parent;
+            }
+
+            Frame child(ProfileSite site) {
+                Frame frame = children.get(site);
+                return frame != null ? frame : children.computeIfAbsent(site, s -> new Frame(s, this));
+            }
+
+            long selfNanos() {
+                long self = nanos.sum();
+                for (Frame child : children.values()) {
+                    self -= child.nanos.sum();
+                }
+                return Math.max(self, 0);
+            }
+        }
+    }
+
+    // a template location that is profiled. Compared by identity: every instrumented node has its own site.
+    static final class ProfileSite {
+        final String kind;
+        final int line;
+        final int column;
+        final String source;
+
+        ProfileSite(String kind, int line, int column, String source) {
+            this.kind = kind;
+            this.line = line;
+            this.column = column;
+            this.source = source;
+        }
+
+        String frameName() {
+            return (kind + "@" + line + ":" + column + " " + source).replace(';', ',');
+        }
+    }
+
+    static final class ProfilingNode extends Node {
+        private final Node delegate;
+        private final ProfileSite site;
+        private final RenderProfiler profiler;
+
+        ProfilingNode(Node delegate, ProfileSite site, RenderProfiler profiler) {
+            this.delegate = delegate;
+            this.site = site;
+            this.profiler = profiler;
+        }
+
+        @Override
+        public void render(RenderContext context, StringBuilder sb) {
+            RenderProfiler.Frame frame = profiler.enter(site);
+            int startLength = sb.length();
+            long start = System.nanoTime();
+            try {
+                delegate.render(context, sb);
+            } finally {
+                profiler.exit(frame, System.nanoTime() - start, sb.length() - startLength);
+            }
+        }
+    }
+
+    static final class ProfilingExpression extends Expression {
+        private final Expression delegate;
+        private final ProfileSite site;
+        private final RenderProfiler profiler;
+
+        ProfilingExpression(Expression delegate, ProfileSite site, RenderProfiler profiler) {
+            this.delegate = delegate;
+            this.site = site;
+            this.profiler = profiler;
+        }
+
+        @Override
+        public Object evaluate(RenderContext context) {
+            RenderProfiler.Frame frame = profiler.enter(site);
+            long start = System.nanoTime();
+            try {
+                return delegate.evaluate(context);
+            } finally {
+                profiler.exit(frame, System.nanoTime() - start, 0);
+            }
+        }
+
+        @Override
+        public Object evaluateLazy(RenderContext context) {
+            RenderProfiler.Frame frame = profiler.enter(site);
+            long start = System.nanoTime();
+            try {
+                return delegate.evaluateLazy(context);
+            } finally {
+                profiler.exit(frame, System.nanoTime() - start, 0);
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // Metrics
+    // --------------------------------------------------------------------------------
+
+    // the attributes and operations exposed over JMX. See Blueprint.registerMetricsMBean.
+    public interface MetricsMXBean {
+        long getCompileCount();
+
+        long getCompileErrorCount();
+
+        double getCompileTimeMillisTotal();
+
+        long getRenderCount();
+
+        long getRenderErrorCount();
+
+        double getRenderLatencyMeanMicros();
+
+        double getRenderLatencyP50Micros();
+
+        double getRenderLatencyP90Micros();
+
+        double getRenderLatencyP99Micros();
+
+        double getRenderLatencyP999Micros();
+
+        double getRenderLatencyMaxMicros();
+
+        double getOutputCharsMean();
+
+        long getOutputCharsP50();
+
+        long getOutputCharsP99();
+
+        long getGetterCacheEntries();
+
+        int getLiveTemplateCount();
+
+        String[] getTemplateNames();
+
+        long getTemplateRenderCount(String templateName);
+
+        long getTemplateRenderErrorCount(String templateName);
+
+        double getTemplateRenderLatencyMicros(String templateName, double percentile);
+    }
+
+    /**
+     * Engine-wide counters and histograms. All updates go to striped counters (LongAdder), so concurrent renders
+     * do not contend with each other. Read them either over JMX or as a consistent-enough copy via snapshot().
+     */
+    public static class EngineMetrics implements MetricsMXBean {
+        // unnamed templates (including those compiled by Blueprint.render(String, Map)) are reported under this name
+        public static final String UNNAMED_TEMPLATE = "(unnamed)";
+
+        final LongAdder compiles = new LongAdder();
+        final LongAdder compileErrors = new LongAdder();
+        final LongAdder compileNanos = new LongAdder();
+        // render counters and histograms are kept per template only; engine-wide numbers are summed up when read
+        private final ConcurrentHashMap<String, TemplateMetrics> templates = new ConcurrentHashMap<>();
+        // templates compiled while metrics were enabled, for the getter cache gauge. Weak, so templates can still be collected.
+        private final Map<Template, Boolean> liveTemplates = Collections.synchronizedMap(new WeakHashMap<>());
+
+        TemplateMetrics template(String name) {
+            String key = name != null ? name : UNNAMED_TEMPLATE;
+            TemplateMetrics metrics = templates.get(key);
+            return metrics != null ? metrics : templates.computeIfAbsent(key, TemplateMetrics::new);
+        }
+
+        void compiled(Template template, long nanos) {
+            compiles.increment();
+            compileNanos.add(nanos);
+            liveTemplates.put(template, Boolean.TRUE);
+        }
+
+        void rendered(TemplateMetrics template, long nanos, long chars) {
+            template.latency.record(nanos);
+            template.outputChars.record(chars);
+        }
+
+        void renderFailed(TemplateMetrics template) {
+            template.errors.increment();
+        }
+
+        public Snapshot snapshot() {
+            Map<String, TemplateMetrics.Snapshot> templateSnapshots = new TreeMap<>();
+            long renders = 0;
+            long renderErrors = 0;
+            Histogram.Snapshot renderLatency = Histogram.Snapshot.EMPTY;
+            Histogram.Snapshot outputChars = Histogram.Snapshot.EMPTY;
+            for (TemplateMetrics template : templates.values()) {
+                TemplateMetrics.Snapshot snapshot = template.snapshot();
+                templateSnapshots.put(template.name, snapshot);
+                renders += snapshot.getRenderCount();
+                renderErrors += snapshot.getRenderErrorCount();
+                renderLatency = renderLatency.merge(snapshot.getRenderLatency());
+                outputChars = outputChars.merge(snapshot.getOutputChars());
+            }
+            return new Snapshot(compiles.sum(), compileErrors.sum(), compileNanos.sum(), renders, renderErrors,
+                    renderLatency, outputChars, getGetterCacheEntries(), getLiveTemplateCount(),
+                    Collections.unmodifiableMap(templateSnapshots));
+        }
+
+        private Histogram.Snapshot renderLatency() {
+            Histogram.Snapshot merged = Histogram.Snapshot.EMPTY;
+            for (TemplateMetrics template : templates.values()) {
+                merged = merged.merge(template.latency.snapshot());
+            }
+            return merged;
+        }
+
+        private Histogram.Snapshot outputChars() {
+            Histogram.Snapshot merged = Histogram.Snapshot.EMPTY;
+            for (TemplateMetrics template : templates.values()) {
+                merged = merged.merge(template.outputChars.snapshot());
+            }
+            return merged;
+        }
+
+        @Override
+        public long getCompileCount() {
+            return compiles.sum();
+        }
+
+        @Override
+        public long getCompileErrorCount() {
+            return compileErrors.sum();
+        }
+
+        @Override
+        public double getCompileTimeMillisTotal() {
+            return compileNanos.sum() / 1e6;
+        }
+
+        @Override
+        public long getRenderCount() {
+            long renders = 0;
+            for (TemplateMetrics template : templates.values()) {
+                renders += template.latency.count();
+            }
+            return renders;
+        }
+
+        @Override
+        public long getRenderErrorCount() {
+            long errors = 0;
+            for (TemplateMetrics template : templates.values()) {
+                errors += template.errors.sum();
+            }
+            return errors;
+        }
+
+        @Override
+        public double getRenderLatencyMeanMicros() {
+            return renderLatency().getMean() / 1e3;
+        }
+
+        @Override
+        public double getRenderLatencyP50Micros() {
+            return renderLatency().getValueAtPercentile(50) / 1e3;
+        }
+
+        @Override
+        public double getRenderLatencyP90Micros() {
+            return renderLatency().getValueAtPercentile(90) / 1e3;
+        }
+
+        @Override
+        public double getRenderLatencyP99Micros() {
+            return renderLatency().getValueAtPercentile(99) / 1e3;
+        }
+
+        @Override
+        public double getRenderLatencyP999Micros() {
+            return renderLatency().getValueAtPercentile(99.9) / 1e3;
+        }
+
+        @Override
+        public double getRenderLatencyMaxMicros() {
+            return renderLatency().getMax() / 1e3;
+        }
+
+        @Override
+        public double getOutputCharsMean() {
+            return outputChars().getMean();
+        }
+
+        @Override
+        public long getOutputCharsP50() {
+            return outputChars().getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getOutputCharsP99() {
+            return outputChars().getValueAtPercentile(99);
+        }
+
+        @Override
+        public long getGetterCacheEntries() {
+            long entries = 0;
+            synchronized (liveTemplates) {
+                for (Template template : liveTemplates.keySet()) {
+                    entries += template.getterCacheSize();
+                }
+            }
+            return entries;
+        }
+
+        @Override
+        public int getLiveTemplateCount() {
+            return liveTemplates.size();
+        }
+
+        @Override
+        public String[] getTemplateNames() {
+            return new TreeSet<>(templates.keySet()).toArray(new String[0]);
+        }
+
+        @Override
+        public long getTemplateRenderCount(String templateName) {
+            TemplateMetrics template = templates.get(templateName);
+            return template != null ? template.latency.count() : 0;
+        }
+
+        @Override
+        public long getTemplateRenderErrorCount(String templateName) {
+            TemplateMetrics template = templates.get(templateName);
+            return template != null ? template.errors.sum() : 0;
+        }
+
+        @Override
+        public double getTemplateRenderLatencyMicros(String templateName, double percentile) {
+            TemplateMetrics template = templates.get(templateName);
+            return template != null ? template.latency.snapshot().getValueAtPercentile(percentile) / 1e3 : 0;
+        }
+
+        // point-in-time copy of the engine metrics
+        public static class Snapshot {
+            private final long compileCount;
+            private final long compileErrorCount;
+            private final long compileNanos;
+            private final long renderCount;
+            private final long renderErrorCount;
+            private final Histogram.Snapshot renderLatency;
+            private final Histogram.Snapshot outputChars;
+            private final long getterCacheEntries;
+            private final int liveTemplateCount;
+            private final Map<String, TemplateMetrics.Snapshot> templates;
+
+            private Snapshot(long compileCount, long compileErrorCount, long compileNanos, long renderCount, long renderErrorCount,
+                             Histogram.Snapshot renderLatency, Histogram.Snapshot outputChars, long getterCacheEntries,
+                             int liveTemplateCount, Map<String, TemplateMetrics.Snapshot> templates) {
+                this.compileCount = compileCount;
+                this.compileErrorCount = compileErrorCount;
+                this.compileNanos = compileNanos;
+                this.renderCount = renderCount;
+                this.renderErrorCount = renderErrorCount;
+                this.renderLatency = renderLatency;
+                this.outputChars = outputChars;
+                this.getterCacheEntries = getterCacheEntries;
+                this.liveTemplateCount = liveTemplateCount;
+                this.templates = templates;
+            }
+
+            public long getCompileCount() {
+                return compileCount;
+            }
+
+            public long getCompileErrorCount() {
+                return compileErrorCount;
+            }
+
+            public long getCompileNanos() {
+                return compileNanos;
+            }
+
+            public long getRenderCount() {
+                return renderCount;
+            }
+
+            public long getRenderErrorCount() {
+                return renderErrorCount;
+            }
+
+            // render latency in nanoseconds
+            public Histogram.Snapshot getRenderLatency() {
+                return renderLatency;
+            }
+
+            public Histogram.Snapshot getOutputChars() {
+                return outputChars;
+            }
+
+            public long getGetterCacheEntries() {
+                return getterCacheEntries;
+            }
+
+            public int getLiveTemplateCount() {
+                return liveTemplateCount;
+            }
+
+            public Map<String, TemplateMetrics.Snapshot> getTemplates() {
+                return templates;
+            }
+
+            @Override
+            public String toString() {
+                return "compiles=" + compileCount + ", compileErrors=" + compileErrorCount + ", renders=" + renderCount
+                        + ", renderErrors=" + renderErrorCount + ", renderLatencyNanos={" + renderLatency + "}"
+                        + ", outputChars={" + outputChars + "}, getterCacheEntries=" + getterCacheEntries;
+            }
+        }
+    }
+
+    // render metrics of the templates compiled under one name
+    public static class TemplateMetrics {
+        private final String name;
+        // successful renders are counted by the latency histogram
+        final LongAdder errors = new LongAdder();
+        final Histogram latency = new Histogram();
+        final Histogram outputChars = new Histogram();
+
+        TemplateMetrics(String name) {
+            this.name = name;
+        }
+
+        public Snapshot snapshot() {
+            Histogram.Snapshot latencySnapshot = latency.snapshot();
+            return new Snapshot(latencySnapshot.getCount(), errors.sum(), latencySnapshot, outputChars.snapshot());
+        }
+
+        public static class Snapshot {
+            private final long renderCount;
+            private final long renderErrorCount;
+            private final Histogram.Snapshot renderLatency;
+            private final Histogram.Snapshot outputChars;
+
+            private Snapshot(long renderCount, long renderErrorCount, Histogram.Snapshot renderLatency, Histogram.Snapshot outputChars) {
+                this.renderCount = renderCount;
+                this.renderErrorCount = renderErrorCount;
+                this.renderLatency = renderLatency;
+                this.outputChars = outputChars;
+            }
+
+            public long getRenderCount() {
+                return renderCount;
+            }
+
+            public long getRenderErrorCount() {
+                return renderErrorCount;
+            }
+
+            public Histogram.Snapshot getRenderLatency() {
+                return renderLatency;
+            }
+
+            public Histogram.Snapshot getOutputChars() {
+                return outputChars;
+            }
+        }
+    }
+
+    /**
+     * A lock-free histogram of non-negative long values (e.g. latencies in nanoseconds) with log-linear buckets:
+     * every power of two is split into 8 equal buckets, so a recorded value is reported with at most 12.5% error,
+     * over the full long range, in 488 buckets. The counters of each power of two are allocated the first time a
+     * value falls into it, so a histogram only holds counters for the ranges it has seen.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        // SUB_BUCKETS counters per power of two, null until a value falls into that power of two
+        private final AtomicReferenceArray<LongAdder[]> groups = new AtomicReferenceArray<>(BUCKETS / SUB_BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int bucket = bucketOf(value);
+            group(bucket >>> SUB_BUCKET_BITS)[bucket & (SUB_BUCKETS - 1)].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        private LongAdder[] group(int index) {
+            LongAdder[] group = groups.get(index);
+            if (group == null) {
+                LongAdder[] created = new LongAdder[SUB_BUCKETS];
+                for (int i = 0; i < SUB_BUCKETS; i++) {
+                    created[i] = new LongAdder();
+                }
+                group = groups.compareAndSet(index, null, created) ? created : groups.get(index);
+            }
+            return group;
+        }
+
+        public long count() {
+            long total = 0;
+            for (int g = 0; g < groups.length(); g++) {
+                LongAdder[] group = groups.get(g);
+                if (group != null) {
+                    for (LongAdder count : group) {
+                        total += count.sum();
+                    }
+                }
+            }
+            return total;
+        }
+
+        public void reset() {
+            for (int g = 0; g < groups.length(); g++) {
+                LongAdder[] group = groups.get(g);
+                if (group != null) {
+                    for (LongAdder count : group) {
+                        count.reset();
+                    }
+                }
+            }
+            sum.reset();
+            max.reset();
+        }
+
+        public Snapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for (int g = 0; g < groups.length(); g++) {
+                LongAdder[] group = groups.get(g);
+                if (group != null) {
+                    for (int i = 0; i < SUB_BUCKETS; i++) {
+                        copy[g * SUB_BUCKETS + i] = group[i].sum();
+                        total += copy[g * SUB_BUCKETS + i];
+                    }
+                }
+            }
+            return new Snapshot(copy, total, sum.sum(), max.get());
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        // largest value that falls into the given bucket
+        static long highestValueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        public static class Snapshot {
+            static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0, 0, 0);
+
+            private final long[] counts;
+            private final long count;
+            private final long sum;
+            private final long max;
+
+            private Snapshot(long[] counts, long count, long sum, long max) {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            public long getCount() {
+                return count;
+            }
+
+            // the combined distribution of both snapshots
+            public Snapshot merge(Snapshot other) {
+                long[] merged = new long[BUCKETS];
+                for (int i = 0; i < BUCKETS; i++) {
+                    merged[i] = counts[i] + other.counts[i];
+                }
+                return new Snapshot(merged, count + other.count, sum + other.sum, Math.max(max, other.max));
+            }
+
+            public double getMean() {
+                return count == 0 ? 0 : (double) sum / count;
+            }
+
+            public long getMax() {
+                return max;
+            }
+
+            // value at or below which the given percentage (0-100) of the recorded values fall. 0 when empty.
+            public long getValueAtPercentile(double percentile) {
+                if (count == 0) {
+                    return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        return Math.min(highestValueOf(i), max);
+                    }
+                }
+                return max;
+            }
+
+            @Override
+            public String toString() {
+                return String.format(Locale.ROOT, "count=%d, mean=%.1f, p50=%d, p90=%d, p99=%d, p99.9=%d, max=%d", count, getMean(),
+                        getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99), getValueAtPercentile(99.9), max);
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // Context schemas
+    // --------------------------------------------------------------------------------
+
+    /**
+     * Declares the top-level keys of a render context, optionally with their Java types. Templates compiled with
+     * CompileOptions.schema(...) read these keys from fixed slots of a SlotContext, and follow properties of typed keys
+     * through getters resolved at compile time, so variable access needs no hashing or getter cache lookups.
+     *
+     *   ContextSchema schema = ContextSchema.builder().key("order", Order.class).key("customer", Customer.class).build();
+     *   Template template = engine.compile(source, new CompileOptions().schema(schema));
+     *   template.render(schema.newContext().set("order", order).set("customer", customer));
+     */
+    public static final class ContextSchema {
+        private final String[] keys;
+        private final Class<?>[] types;
+        private final Map<String, Integer> slots = new HashMap<>();
+        // for schemas of a class: the getters that fill each slot from an instance
+        private final Method[] sourceGetters;
+
+        private ContextSchema(List<String> keys, List<Class<?>> types, Method[] sourceGetters) {
+            this.keys = keys.toArray(new String[0]);
+            this.types = types.toArray(new Class<?>[0]);
+            this.sourceGetters = sourceGetters;
+            for (int i = 0; i < this.keys.length; i++) {
+                if (slots.put(this.keys[i], i) != null) {
+                    throw new IllegalArgumentException("Duplicate context schema key: " + this.keys[i]);
+                }
+            }
+        }
+
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        // a map shape with untyped keys
+        public static ContextSchema ofKeys(String... keys) {
+            Builder builder = builder();
+            for (String key : keys) {
+                builder.key(key);
+            }
+            return builder.build();
+        }
+
+        // one typed key per public getter of the class (e.g. getOrder() -> "order"). Fill a context with contextOf(instance).
+        public static ContextSchema ofClass(Class<?> cls) {
+            List<String> keys = new ArrayList<>();
+            List<Class<?>> types = new ArrayList<>();
+            List<Method> getters = new ArrayList<>();
+            for (Method method : cls.getMethods()) {
+                String property = propertyOf(method);
+                if (property != null) {
+                    keys.add(property);
+                    types.add(method.getReturnType());
+                    getters.add(method);
+                }
+            }
+            return new ContextSchema(keys, types, getters.toArray(new Method[0]));
+        }
+
+        private static String propertyOf(Method method) {
+            if (method.getParameterCount() != 0 || method.getDeclaringClass() == Object.class || Modifier.isStatic(method.getModifiers())) {
+                return null;
+            }
+            String name = method.getName();
+            int prefix = name.startsWith("get") ? 3 : (name.startsWith("is") && method.getReturnType() == boolean.class ? 2 : 0);
+            if (prefix == 0 || name.length() == prefix) {
+                return null;
+            }
+            return Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+        }
+
+        // the getter the engine would call for a property of the given type, if it can be known at compile time
+        static Method getterOf(Class<?> type, String property) {
+            if (type == null || type == Object.class || type.isInterface() || Map.class.isAssignableFrom(type)
+                    || !Modifier.isPublic(type.getModifiers()) || property.isEmpty() || property.indexOf('[') != -1) {
+                return null;
+            }
+            String suffix = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+            for (String getterName : new String[]{"get" + suffix, "is" + suffix}) {
+                try {
+                    return type.getMethod(getterName);
+                } catch (NoSuchMethodException e) {
+                    // try the next naming style
+                }
+            }
+            return null;
+        }
+
+        // slot index of a key, or -1 when the key is not part of the schema
+        public int slotOf(String key) {
+            Integer slot = slots.get(key);
+            return slot != null ? slot : -1;
+        }
+
+        public Class<?> typeOf(int slot) {
+            return types[slot];
+        }
+
+        public List<String> getKeys() {
+            return Collections.unmodifiableList(Arrays.asList(keys));
+        }
+
+        public SlotContext newContext() {
+            return new SlotContext(this);
+        }
+
+        // a context holding the property values of the given instance (schemas created with ofClass only)
+        public SlotContext contextOf(Object source) {
+            if (sourceGetters == null) {
+                throw new IllegalStateException("Context schema was not created from a class");
+            }
+            SlotContext context = new SlotContext(this);
+            for (int i = 0; i < sourceGetters.length; i++) {
+                try {
+                    context.values[i] = sourceGetters[i].invoke(source);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    throw new RuntimeException("Failed to read context property: " + keys[i], e);
+                }
+            }
+            return context;
+        }
+
+        public static final class Builder {
+            private final List<String> keys = new ArrayList<>();
+            private final List<Class<?>> types = new ArrayList<>();
+
+            public Builder key(String key) {
+                return key(key, null);
+            }
+
+            // a key whose values are of the given type; properties of it are compiled to direct getter calls
+            public Builder key(String key, Class<?> type) {
+                keys.add(key);
+                types.add(type);
+                return this;
+            }
+
+            public ContextSchema build() {
+                return new ContextSchema(keys, types, null);
+            }
+        }
+    }
+
+    /**
+     * A render context backed by an array with one slot per schema key. Keys outside the schema (e.g. set by the
+     * template itself) go to an overflow map. A null slot counts as an absent key.
+     */
+    public static final class SlotContext extends AbstractMap<String, Object> {
+        final ContextSchema schema;
+        final Object[] values;
+        private Map<String, Object> overflow;
+
+        SlotContext(ContextSchema schema) {
+            this.schema = schema;
+            this.values = new Object[schema.keys.length];
+        }
+
+        public SlotContext set(String key, Object value) {
+            put(key, value);
+            return this;
+        }
+
+        // set by slot index (see ContextSchema.slotOf), e.g. from generated code
+        public SlotContext set(int slot, Object value) {
+            values[slot] = value;
+            return this;
+        }
+
+        public Object get(int slot) {
+            return values[slot];
+        }
+
+        @Override
+        public Object get(Object key) {
+            Integer slot = schema.slots.get(key);
+            if (slot != null) {
+                return values[slot];
+            }
+            return overflow != null ? overflow.get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Integer slot = schema.slots.get(key);
+            if (slot != null) {
+                return values[slot] != null;
+            }
+            return overflow != null && overflow.containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            Integer slot = schema.slots.get(key);
+            if (slot != null) {
+                Object previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            if (overflow == null) {
+                overflow = new HashMap<>();
+            }
+            return overflow.put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            Integer slot = schema.slots.get(key);
+            if (slot != null) {
+                Object previous = values[slot];
+                values[slot] = null;
+                return previous;
+            }
+            return overflow != null ? overflow.remove(key) : null;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(values, null);
+            overflow = null;
+        }
+
+        // a read-only copy of the current entries
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            Map<String, Object> entries = new LinkedHashMap<>();
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    entries.put(schema.keys[i], values[i]);
+                }
+            }
+            if (overflow != null) {
+                entries.putAll(overflow);
+            }
+            return Collections.unmodifiableMap(entries).entrySet();
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // Output escaping
+    // --------------------------------------------------------------------------------
+
+    /**
+     * Escaping applied to {{ }} output. Chosen per engine (setDefaultEscapeMode), per template (CompileOptions)
+     * or per block ({% autoescape "mode" %}). Escapers scan the text using lookup tables and append straight
+     * into the output buffer; text that needs no escaping is appended as is, without allocating.
+     */
+    public enum EscapeMode {
+        NONE {
+            @Override
+            public void escape(CharSequence text, StringBuilder out) {
+                out.append(text);
+            }
+        },
+        // element content and quoted attribute values
+        HTML {
+            @Override
+            public void escape(CharSequence text, StringBuilder out) {
+                EscapeTables.escape(text, out, EscapeTables.HTML, false);
+            }
+        },
+        // attribute values, including unquoted ones: everything but alphanumerics and ",.-_" is encoded
+        HTML_ATTR {
+            @Override
+            public void escape(CharSequence text, StringBuilder out) {
+                EscapeTables.escape(text, out, EscapeTables.HTML_ATTR, false);
+            }
+        },
+        // content of a single- or double-quoted JavaScript string literal, also safe inside <script> blocks
+        JS_STRING {
+            @Override
+            public void escape(CharSequence text, StringBuilder out) {
+                EscapeTables.escape(text, out, EscapeTables.JS_STRING, true);
+            }
+        },
+        // content of a JSON string value
+        JSON {
+            @Override
+            public void escape(CharSequence text, StringBuilder out) {
+                EscapeTables.escape(text, out, EscapeTables.JSON, true);
+            }
+        },
+        // a URL component (path segment or query parameter): percent-encodes everything but unreserved characters
+        URL {
+            @Override
+            public void escape(CharSequence text, StringBuilder out) {
+                EscapeTables.percentEncode(text, out);
+            }
+        };
+
+        public abstract void escape(CharSequence text, StringBuilder out);
+
+        // names as used by the autoescape tag: html, html_attr, js, json, url, none (plus true/false)
+        public static EscapeMode fromName(String name) {
+            switch (name.toLowerCase(Locale.ROOT)) {
+                case "html":
+                case "true":
+                    return HTML;
+                case "html_attr":
+                    return HTML_ATTR;
+                case "js":
+                case "js_string":
+                    return JS_STRING;
+                case "json":
+                    return JSON;
+                case "url":
+                    return URL;
+                case "none":
+                case "false":
+                    return NONE;
+                default:
+                    throw new IllegalArgumentException("Unknown escape mode: " + name);
+            }
+        }
+    }
+
+    // marks text that is already safe for the output (e.g. pre-rendered markup), so it is not escaped again
+    public static final class SafeString implements CharSequence {
+        private final String value;
+        // the only mode the text is safe for, or null if it is safe for every mode
+        private final EscapeMode escapedFor;
+
+        public SafeString(String value) {
+            this(value, null);
+        }
+
+        // text escaped for one mode, e.g. the output of an html-escaped macro. Written with another mode, it is escaped again.
+        public SafeString(String value, EscapeMode escapedFor) {
+            this.value = value;
+            this.escapedFor = escapedFor;
+        }
+
+        // whether the text can be written as is where values are escaped with the given mode
+        public boolean isSafeFor(EscapeMode escapeMode) {
+            return escapedFor == null || escapeMode == escapedFor || escapeMode == EscapeMode.NONE;
+        }
+
+        @Override
+        public int length() {
+            return value.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return value.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return value.subSequence(start, end);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SafeString && value.equals(((SafeString) o).value) && escapedFor == ((SafeString) o).escapedFor;
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    /**
+     * Text assembled from pieces that are only copied when the rope is written to the output. Functions and filters
+     * that build their result from several strings can return a Rope instead of concatenating:
+     *   return Blueprint.Rope.of(first, " ", last);
+     * SafeString pieces are written unescaped, all other pieces are escaped like any other value. The rope is
+     * flattened into a String only if it is used as a String (e.g. charAt, toString, or as an argument to +).
+     */
+    public static final class Rope implements CharSequence {
+        private final List<CharSequence> pieces = new ArrayList<>();
+        private int length;
+        private String flattened;
+
+        public static Rope of(CharSequence... pieces) {
+            Rope rope = new Rope();
+            for (CharSequence piece : pieces) {
+                rope.append(piece);
+            }
+            return rope;
+        }
+
+        // null pieces are skipped
+        public Rope append(CharSequence piece) {
+            if (piece != null && piece.length() > 0) {
+                pieces.add(piece);
+                length += piece.length();
+                flattened = null;
+            }
+            return this;
+        }
+
+        public void appendTo(StringBuilder sb, EscapeMode escapeMode) {
+            for (CharSequence piece : pieces) {
+                if (piece instanceof Rope) {
+                    ((Rope) piece).appendTo(sb, escapeMode);
+                } else if (piece instanceof SafeString && ((SafeString) piece).isSafeFor(escapeMode)) {
+                    sb.append(piece);
+                } else {
+                    escapeMode.escape(piece, sb);
+                }
+            }
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return toString().charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            if (flattened == null) {
+                StringBuilder sb = new StringBuilder(length);
+                appendTo(sb, EscapeMode.NONE);
+                flattened = sb.toString();
+            }
+            return flattened;
+        }
+    }
+
+    /**
+     * Appends a rendered value to the output, escaping it for the given mode. null renders as nothing,
+     * SafeStrings are not escaped for the modes they are safe for, and numbers and booleans never need escaping in any mode.
+     */
+    public static void appendValue(Object value, StringBuilder sb, EscapeMode escapeMode) {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof String) {
+            escapeMode.escape((String) value, sb);
+        } else if (value instanceof SafeString) {
+            if (((SafeString) value).isSafeFor(escapeMode)) {
+                sb.append(value.toString());
+            } else {
+                escapeMode.escape(value.toString(), sb);
+            }
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value.toString());
+        } else if (value instanceof Rope) {
+            ((Rope) value).appendTo(sb, escapeMode);
+        } else if (value instanceof CharSequence) {
+            escapeMode.escape((CharSequence) value, sb);
+        } else {
+            escapeMode.escape(value.toString(), sb);
+        }
+    }
+
+    // replacement tables for the ASCII range. A null entry means the character is copied as is.
+    private static final class EscapeTables {
+        static final String[] HTML = new String[128];
+        static final String[] HTML_ATTR = new String[128];
+        static final String[] JS_STRING = new String[128];
+        static final String[] JSON = new String[128];
+        private static final boolean[] URL_UNRESERVED = new boolean[128];
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+        private static final char LINE_SEPARATOR = 0x2028;
+        private static final char PARAGRAPH_SEPARATOR = 0x2029;
+
+        static {
+            HTML['&'] = "&amp;";
+            HTML['<'] = "&lt;";
+            HTML['>'] = "&gt;";
+            HTML['"'] = "&quot;";
+            HTML['\''] = "&#39;";
+
+            for (char c = 0; c < 128; c++) {
+                if (!Character.isLetterOrDigit(c) && c != ',' && c != '.' && c != '-' && c != '_') {
+                    HTML_ATTR[c] = HTML[c] != null ? HTML[c] : "&#x" + Integer.toHexString(c).toUpperCase(Locale.ROOT) + ";";
+                }
+            }
+
+            for (char c = 0; c < 0x20; c++) {
+                JSON[c] = unicodeEscape(c);
+            }
+            JSON['"'] = "\\\"";
+            JSON['\\'] = "\\\\";
+            JSON['\n'] = "\\n";
+            JSON['\r'] = "\\r";
+            JSON['\t'] = "\\t";
+            JSON['\b'] = "\\b";
+            JSON['\f'] = "\\f";
+            JSON['<'] = unicodeEscape('<');
+            JSON['>'] = unicodeEscape('>');
+            JSON['&'] = unicodeEscape('&');
+
+            System.arraycopy(JSON, 0, JS_STRING, 0, 128);
+            JS_STRING['\''] = "\\'";
+            JS_STRING['/'] = "\\/";
+            JS_STRING['='] = unicodeEscape('=');
+            JS_STRING['`'] = unicodeEscape('`');
+
+            for (char c = 0; c < 128; c++) {
+                URL_UNRESERVED[c] = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                        || c == '-' || c == '_' || c == '.' || c == '~';
+            }
+        }
+
+        private static String unicodeEscape(char c) {
+            return String.format("\\u%04X", (int) c);
+        }
+
+        static void escape(CharSequence text, StringBuilder out, String[] table, boolean escapeLineSeparators) {
+            int length = text.length();
+            int last = 0;
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                String replacement;
+                if (c < 128) {
+                    replacement = table[c];
+                    if (replacement == null) {
+                        continue;
+                    }
+                } else if (escapeLineSeparators && (c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR)) {
+                    // valid in JSON, but line terminators in JavaScript source
+                    replacement = c == LINE_SEPARATOR ? "\\u2028" : "\\u2029";
+                } else {
+                    continue;
+                }
+                out.append(text, last, i).append(replacement);
+                last = i + 1;
+            }
+            if (last == 0) {
+                out.append(text);
+            } else {
+                out.append(text, last, length);
+            }
+        }
+
+        static void percentEncode(CharSequence text, StringBuilder out) {
+            int length = text.length();
+            int last = 0;
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c < 128 && URL_UNRESERVED[c]) {
+                    continue;
+                }
+                out.append(text, last, i);
+                int codePoint = c;
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, text.charAt(++i));
+                }
+                appendUtf8PercentEncoded(codePoint, out);
+                last = i + 1;
+            }
+            if (last == 0) {
+                out.append(text);
+            } else {
+                out.append(text, last, length);
+            }
+        }
+
+        private static void appendUtf8PercentEncoded(int codePoint, StringBuilder out) {
+            if (Character.isSurrogate((char) codePoint) && codePoint <= 0xFFFF) {
+                codePoint = 0xFFFD; // lone surrogate: encode the replacement character, like String.getBytes does
+            }
+            if (codePoint < 0x80) {
+                appendPercentByte(codePoint, out);
+            } else if (codePoint < 0x800) {
+                appendPercentByte(0xC0 | (codePoint >> 6), out);
+                appendPercentByte(0x80 | (codePoint & 0x3F), out);
+            } else if (codePoint < 0x10000) {
+                appendPercentByte(0xE0 | (codePoint >> 12), out);
+                appendPercentByte(0x80 | ((codePoint >> 6) & 0x3F), out);
+                appendPercentByte(0x80 | (codePoint & 0x3F), out);
+            } else {
+                appendPercentByte(0xF0 | (codePoint >> 18), out);
+                appendPercentByte(0x80 | ((codePoint >> 12) & 0x3F), out);
+                appendPercentByte(0x80 | ((codePoint >> 6) & 0x3F), out);
+                appendPercentByte(0x80 | (codePoint & 0x3F), out);
+            }
+        }
+
+        private static void appendPercentByte(int b, StringBuilder out) {
+            out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // Fragment cache
+    // --------------------------------------------------------------------------------
+
+    /**
+     * SPI for the store backing {% cache %} blocks. Implementations must be thread-safe, as the same
+     * engine is typically used by many rendering threads at once.
+     */
+    public interface FragmentCache {
+        // returns the cached fragment, or null if absent or expired
+        String get(String key);
+
+        // ttlMillis <= 0 means the fragment never expires (it may still be evicted)
+        void put(String key, String fragment, long ttlMillis);
+
+        void invalidate(String key);
+
+        void invalidateAll();
+
+        FragmentCacheStats stats();
+    }
+
+    // point-in-time statistics of a FragmentCache
+    public static class FragmentCacheStats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long size;
+
+        public FragmentCacheStats(long hits, long misses, long evictions, long size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        // entries dropped because of the size bound or expiry
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "FragmentCacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + "}";
+        }
+    }
+
+    /**
+     * In-memory FragmentCache with LRU and TTL eviction.
+     * Entries are spread over a fixed number of independently locked LRU segments so that concurrent renders
+     * rarely contend on the same lock. Eviction is LRU per segment, which approximates a global LRU.
+     */
+    public static class LocalFragmentCache implements FragmentCache {
+        public static final int DEFAULT_MAX_ENTRIES = 10_000;
+        private static final int SEGMENTS = 16;
+
+        private final Segment[] segments = new Segment[SEGMENTS];
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        public LocalFragmentCache(int maxEntries) {
+            if (maxEntries <= 0) {
+                throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+            }
+            // round up, so that the total capacity is never below maxEntries
+            int perSegment = (maxEntries + SEGMENTS - 1) / SEGMENTS;
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment(perSegment);
+            }
+        }
+
+        private Segment segmentFor(String key) {
+            int h = key.hashCode();
+            h ^= (h >>> 16);
+            return segments[h & (SEGMENTS - 1)];
+        }
+
+        @Override
+        public String get(String key) {
+            Segment segment = segmentFor(key);
+            String value;
+            synchronized (segment) {
+                CachedFragment entry = segment.get(key);
+                if (entry != null && entry.isExpired(System.nanoTime())) {
+                    segment.remove(key);
+                    evictions.increment();
+                    entry = null;
+                }
+                value = entry != null ? entry.value : null;
+            }
+            if (value != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+            }
+            return value;
+        }
+
+        @Override
+        public void put(String key, String fragment, long ttlMillis) {
+            long expiresAt = ttlMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis) : 0;
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                segment.put(key, new CachedFragment(fragment, expiresAt));
+            }
+        }
+
+        @Override
+        public void invalidate(String key) {
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                segment.remove(key);
+            }
+        }
+
+        @Override
+        public void invalidateAll() {
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+        }
+
+        @Override
+        public FragmentCacheStats stats() {
+            long size = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    size += segment.size();
+                }
+            }
+            return new FragmentCacheStats(hits.sum(), misses.sum(), evictions.sum(), size);
+        }
+
+        private static class CachedFragment {
+            private final String value;
+            private final long expiresAtNanos;
+
+            CachedFragment(String value, long expiresAtNanos) {
+                this.value = value;
+                this.expiresAtNanos = expiresAtNanos;
+            }
+
+            boolean isExpired(long now) {
+                return expiresAtNanos != 0 && now - expiresAtNanos >= 0;
+            }
+        }
+
+        // access-ordered map: iteration order is least- to most-recently used
+        private class Segment extends LinkedHashMap<String, CachedFragment> {
+            private static final long serialVersionUID = 1L;
+
+            private final int maxEntries;
+
+            Segment(int maxEntries) {
+                super(16, 0.75f, true);
+                this.maxEntries = maxEntries;
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedFragment> eldest) {
+                if (size() > maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    // Static text pool and heap estimates
+    // --------------------------------------------------------------------------------
+
+    /**
+     * Stores each distinct static text segment (the text between tags) once, for all templates of an engine: a header
+     * or footer that recurs in thousands of templates takes the memory of one copy. Segments are held weakly, so text
+     * that no compiled template uses anymore is released with the templates. Pooling only costs time at compile time.
+     */
+    public static final class TextPool {
+        private final Map<String, WeakReference<String>> segments = new WeakHashMap<>();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder savedChars = new LongAdder();
+
+        String intern(String text) {
+            if (text.isEmpty()) {
+                return text;
+            }
+            synchronized (segments) {
+                WeakReference<String> reference = segments.get(text);
+                String pooled = reference != null ? reference.get() : null;
+                if (pooled != null) {
+                    hits.increment();
+                    savedChars.add(text.length());
+                    return pooled;
                 }
-                double diff = ((Number) leftVal).doubleValue() - ((Number) rightVal).doubleValue();
-                return Double.compare(diff, 0);
+                segments.put(text, new WeakReference<>(text));
+                return text;
             }
-            if (leftVal instanceof Comparable && rightVal instanceof Comparable) {
-                return ((Comparable) leftVal).compareTo(rightVal);
+        }
+
+        boolean contains(String text) {
+            synchronized (segments) {
+                WeakReference<String> reference = segments.get(text);
+                return reference != null && reference.get() == text;
             }
+        }
 
-            throw new RuntimeException(String.format("Cannot compare non-numeric or non-comparable values. Left value: %s right value: %s", leftVal, rightVal));
+        // distinct segments currently in use
+        public int size() {
+            synchronized (segments) {
+                return segments.size();
+            }
         }
-    }
 
-    // unary expression (e.g. "not foo" or "-x").
-    public static class UnaryExpression extends Expression {
-        private final String operator;
-        private final Expression operand;
+        // segments that were found in the pool instead of being stored again
+        public long getHits() {
+            return hits.sum();
+        }
 
-        public UnaryExpression(String operator, Expression operand) {
-            this.operator = operator;
-            this.operand = operand;
+        public long getSavedChars() {
+            return savedChars.sum();
         }
 
-        @Override
-        public Object evaluate(RenderContext context) {
-            Object val = operand.evaluate(context);
-            switch (operator) {
-                case "not":
-                    return !isTrue(val);
-                case "-":
-                    if (val instanceof Number) {
-                        return -((Number) val).doubleValue();
+        // estimated bytes of the pooled text and the pool's own entries
+        public long estimateRetainedHeap() {
+            long bytes = 0;
+            synchronized (segments) {
+                for (String text : segments.keySet()) {
+                    if (text != null) {
+                        bytes += HeapEstimator.stringSize(text) + HeapEstimator.POOL_ENTRY_SIZE;
                     }
-                    throw new RuntimeException(String.format("Cannot negate non-numeric value. Value: %s", val));
-                default:
-                    throw new RuntimeException(String.format("Unknown unary operator: %s", operator));
+                }
             }
-        }
-
-        private boolean isTrue(Object val) {
-            if (val == null) return false;
-            if (val instanceof Boolean) return (Boolean) val;
-            if (val instanceof Number) return ((Number) val).doubleValue() != 0;
-            if (val instanceof String) return !((String) val).isEmpty();
-            return true;
+            return bytes;
         }
     }
 
-    // expression that applies one or more filters to a base expression (e.g. {{ foo | replace("foo", "bar") | capitalize }})
-    public static class FilteredExpression extends Expression {
-        private final Expression base;
-        private final List<Filter> filters;
+    // walks an object graph and adds up estimated object sizes (12-byte headers, 4-byte references, 8-byte alignment)
+    static final class HeapEstimator {
+        private static final int HEADER = 12;
+        private static final int REFERENCE = 4;
+        private static final int ARRAY_HEADER = 16;
+        // WeakHashMap entry plus the WeakReference to the text
+        static final int POOL_ENTRY_SIZE = 80;
+        // Java 9+ stores Latin-1 strings with one byte per character
+        private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version").startsWith("1.");
+        // shallow size and reference fields per class
+        private static final Map<Class<?>, Layout> LAYOUTS = new ConcurrentHashMap<>();
+
+        private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Set<Object> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final TextPool textPool;
+        private final Deque<Object> pending = new ArrayDeque<>();
+        private long total;
+
+        private HeapEstimator(Blueprint engine) {
+            this.textPool = engine.textPool;
+            Registry registry = engine.registry;
+            for (Map<String, TemplateFunction> functions : Arrays.asList(registry.functions, registry.filters)) {
+                for (TemplateFunction function : functions.values()) {
+                    shared.add(function);
+                    if (function instanceof RegisteredFunction) {
+                        shared.add(((RegisteredFunction) function).getDelegate());
+                    }
+                }
+            }
+        }
 
-        public FilteredExpression(Expression base, List<Filter> filters) {
-            this.base = base;
-            this.filters = filters;
+        static long estimate(Template template, Blueprint engine) {
+            HeapEstimator estimator = new HeapEstimator(engine);
+            estimator.pending.push(template);
+            while (!estimator.pending.isEmpty()) {
+                estimator.visit(estimator.pending.pop());
+            }
+            return estimator.total;
         }
 
-        @Override
-        public Object evaluate(RenderContext context) {
-            Object value = base.evaluate(context);
-            for (Filter filter : filters) {
-                TemplateFunction func = context.getFilter(filter.filterName);
-                if (func == null) {
-                    throw new RuntimeException("Filter not found: " + filter.filterName);
+        private void visit(Object object) {
+            if (!visited.add(object) || isShared(object)) {
+                return;
+            }
+            Class<?> type = object.getClass();
+            if (object instanceof String) {
+                total += stringSize((String) object);
+            } else if (type.isArray()) {
+                visitArray(object, type.getComponentType());
+            } else if (type.getName().startsWith("java.") && object instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) object;
+                // the map object, its table and one entry per mapping
+                total += align(HEADER + 6 * REFERENCE) + align(ARRAY_HEADER + REFERENCE * tableSize(map.size())) + 32L * map.size();
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    push(entry.getKey());
+                    push(entry.getValue());
                 }
-                List<Object> args = new ArrayList<>();
-                // The current value is passed as the first argument.
-                args.add(value);
-                for (Expression argExp : filter.arguments) {
-                    args.add(argExp.evaluate(context));
+            } else if (type.getName().startsWith("java.") && object instanceof Collection) {
+                Collection<?> collection = (Collection<?>) object;
+                total += align(HEADER + 4 * REFERENCE) + (collection.size() > 1 ? align(ARRAY_HEADER + REFERENCE * collection.size()) : 0);
+                for (Object element : collection) {
+                    push(element);
+                }
+            } else {
+                Layout layout = LAYOUTS.computeIfAbsent(type, Layout::new);
+                total += layout.size;
+                // JDK internals are counted shallow; their fields can't be read on Java 9+ without opening modules
+                if (!type.getName().startsWith("java.")) {
+                    for (Field field : layout.references) {
+                        try {
+                            push(field.get(object));
+                        } catch (IllegalAccessException | RuntimeException e) {
+                            // not readable: counted shallow
+                        }
+                    }
                 }
-                value = func.execute(context, args);
             }
-            return value;
         }
-    }
 
-    public static class Filter {
-        public final String filterName;
-        public final List<Expression> arguments;
+        private boolean isShared(Object object) {
+            return shared.contains(object) || object instanceof Blueprint || object instanceof TemplateMetrics
+                    || object instanceof ContextSchema || object instanceof RenderProfiler || object instanceof Class
+                    || object instanceof Method || object instanceof Enum || object instanceof ThreadLocal
+                    || (object instanceof String && textPool.contains((String) object));
+        }
 
-        public Filter(String filterName, List<Expression> arguments) {
-            this.filterName = filterName;
-            this.arguments = arguments;
+        private void visitArray(Object array, Class<?> componentType) {
+            int length = Array.getLength(array);
+            if (!componentType.isPrimitive()) {
+                total += align(ARRAY_HEADER + (long) REFERENCE * length);
+                for (Object element : (Object[]) array) {
+                    push(element);
+                }
+                return;
+            }
+            total += align(ARRAY_HEADER + (long) primitiveSize(componentType) * length);
         }
-    }
 
-    // TemplateFunction implementation for macros.
-    // When executed, the macro renders its body using a new local context with its parameters set.
-    public static class MacroFunction implements TemplateFunction {
-        private final List<String> parameters;
-        private final List<Node> body;
-        // (optionally) we can capture the definition context if needed.
-        private final RenderContext definitionContext;
+        private void push(Object object) {
+            if (object != null && !visited.contains(object)) {
+                pending.push(object);
+            }
+        }
 
-        public MacroFunction(List<String> parameters, List<Node> body, RenderContext definitionContext) {
-            this.parameters = parameters;
-            this.body = body;
-            this.definitionContext = definitionContext;
+        static long stringSize(String text) {
+            boolean latin1 = COMPACT_STRINGS;
+            for (int i = 0; latin1 && i < text.length(); i++) {
+                latin1 = text.charAt(i) < 256;
+            }
+            return align(HEADER + REFERENCE + 8) + align(ARRAY_HEADER + (long) text.length() * (latin1 ? 1 : 2));
         }
 
-        @Override
-        public Object execute(RenderContext context, List<Object> args) {
-            // create a new local context that starts as a copy of the caller's context
-            Map<String, Object> localVars = new HashMap<>(context.context);
-            // bind macro parameters
-            for (int i = 0; i < parameters.size(); i++) {
-                Object argVal = i < args.size() ? args.get(i) : null;
-                localVars.put(parameters.get(i), argVal);
+        private static int tableSize(int size) {
+            int capacity = 16;
+            while (capacity * 3 / 4 < size) {
+                capacity <<= 1;
             }
-            RenderContext localContext = new RenderContext(localVars, context.engine, context.getterCache);
-            // optionally, propagate macro definitions from the caller
-            localContext.macros.putAll(context.macros);
-            StringBuilder sb = new StringBuilder();
-            for (Node node : body) {
-                node.render(localContext, sb);
+            return capacity;
+        }
+
+        private static int primitiveSize(Class<?> type) {
+            if (type == long.class || type == double.class) {
+                return 8;
+            }
+            if (type == int.class || type == float.class) {
+                return 4;
+            }
+            if (type == short.class || type == char.class) {
+                return 2;
+            }
+            return 1;
+        }
+
+        private static long align(long size) {
+            return (size + 7) & ~7L;
+        }
+
+        private static final class Layout {
+            final long size;
+            final List<Field> references = new ArrayList<>();
+
+            Layout(Class<?> type) {
+                long fields = 0;
+                for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        if (Modifier.isStatic(field.getModifiers())) {
+                            continue;
+                        }
+                        if (field.getType().isPrimitive()) {
+                            fields += primitiveSize(field.getType());
+                        } else {
+                            fields += REFERENCE;
+                            if (!c.getName().startsWith("java.")) {
+                                try {
+                                    field.setAccessible(true);
+                                    references.add(field);
+                                } catch (RuntimeException e) {
+                                    // inaccessible: not followed
+                                }
+                            }
+                        }
+                    }
+                }
+                this.size = align(HEADER + fields);
             }
-            return sb.toString();
         }
     }
 
@@ -771,6 +5324,8 @@ public class Blueprint {
      * - Set assignments: {% set variable = expression %}
      * - Raw blocks: {% raw %} ... {% endraw %}
      * - Macro definitions: {% macro name(params) %} ... {% endmacro %}
+     * - Fragment caching: {% cache keyExpression ttlSeconds %} ... {% endcache %}
+     * - Auto-escaping blocks: {% autoescape mode %} ... {% endautoescape %}
      *
      * This parser supports numbers, quoted strings, variable names (with dot and
      * bracket notation), function calls, filters (using the pipe | operator), logical/arithmetic expressions,
@@ -781,12 +5336,60 @@ public class Blueprint {
         private final int length;
         private int pos;
         private final Blueprint engine;
+        // macros shadow engine functions at render time, so calls to these names are never folded
+        private final Set<String> macroNames;
+        // escaping for {{ }} nodes at the current position; changed by autoescape blocks
+        private EscapeMode escapeMode;
+        // when set, nodes, calls and filter stages are wrapped in profiling nodes
+        private final RenderProfiler profiler;
+        // start of the node being parsed; used as the source position of the expressions within it
+        private int nodeStart;
+        // when set, variables rooted at schema keys are compiled to slot reads
+        private final ContextSchema schema;
+        private final String templateName;
+        // key prefixes of the {% cache %} blocks by escape mode. One instance each, as the engine holds them weakly.
+        private final Map<EscapeMode, String> fragmentNamespaces = new EnumMap<>(EscapeMode.class);
+        private long templateId;
 
         public Parser(String input, Blueprint engine) {
+            this(input, engine, new CompileOptions());
+        }
+
+        public Parser(String input, Blueprint engine, CompileOptions options) {
             this.input = input;
             this.engine = engine;
             this.length = input.length();
             this.pos = 0;
+            this.macroNames = scanMacroNames(input);
+            this.escapeMode = options.getEscapeMode() != null ? options.getEscapeMode() : engine.getDefaultEscapeMode();
+            this.profiler = options.getProfiler();
+            this.schema = options.getSchema();
+            this.templateName = options.getName();
+        }
+
+        private String fragmentNamespace() {
+            String namespace = fragmentNamespaces.get(escapeMode);
+            if (namespace == null) {
+                if (templateId == 0) {
+                    templateId = engine.nextTemplateId();
+                }
+                namespace = engine.fragmentNamespace(templateName, templateId, escapeMode);
+                fragmentNamespaces.put(escapeMode, namespace);
+            }
+            return namespace;
+        }
+
+        private static final java.util.regex.Pattern MACRO_NAME_PATTERN = java.util.regex.Pattern.compile("\\{%\\s*macro\\s+(\\w+)");
+
+        private static final java.util.regex.Pattern FOR_TAG_PATTERN = java.util.regex.Pattern.compile("(\\w+)\\s*(?:,\\s*(\\w+)\\s*)?\\s+in\\s+(.+)", java.util.regex.Pattern.DOTALL);
+
+        private static Set<String> scanMacroNames(String input) {
+            Set<String> names = new HashSet<>();
+            java.util.regex.Matcher matcher = MACRO_NAME_PATTERN.matcher(input);
+            while (matcher.find()) {
+                names.add(matcher.group(1));
+            }
+            return names;
         }
 
         /**
@@ -798,8 +5401,10 @@ public class Blueprint {
         public List<Node> parseNodes(Set<String> stopTags) {
             List<Node> nodes = new ArrayList<>();
             while (pos < length) {
+                int start = pos;
+                nodeStart = start;
                 if (peek("{{")) {
-                    nodes.add(parseVariable());
+                    nodes.add(profile(parseVariable(), start));
                 } else if (peek("{%")) {
                     // look ahead to check if this tag is a stop–tag
                     int tagEnd = input.indexOf("%}", pos);
@@ -813,14 +5418,72 @@ public class Blueprint {
                         // do not consume the stop tag; break out of this block
                         break;
                     }
-                    nodes.add(parseTag());
+                    nodes.add(profile(parseTag(), start));
                 } else {
-                    nodes.add(parseText());
+                    nodes.add(profile(parseText(), start));
                 }
             }
             return nodes;
         }
 
+        // --- profiling instrumentation (only when compiled with a profiler) ---
+
+        private Node profile(Node node, int start) {
+            if (profiler == null) {
+                return node;
+            }
+            String source = input.substring(start, pos);
+            String kind;
+            if (source.startsWith("{{")) {
+                kind = "output";
+            } else if (source.startsWith("{%")) {
+                // block tags span up to their end tag; label them by the opening tag only
+                int openEnd = source.indexOf("%}");
+                source = source.substring(0, openEnd + 2);
+                kind = source.substring(2, openEnd).trim().split("\\s+", 2)[0];
+            } else {
+                kind = "text";
+                source = source.length() + " chars";
+            }
+            return new ProfilingNode(node, site(kind, start, source), profiler);
+        }
+
+        private Expression profile(Expression expr, String kind, String source) {
+            if (profiler == null || isConstant(expr)) {
+                return expr;
+            }
+            return new ProfilingExpression(expr, site(kind, nodeStart, source), profiler);
+        }
+
+        private ProfileSite site(String kind, int offset, String source) {
+            int line = 1;
+            int lineStart = 0;
+            for (int i = 0; i < offset; i++) {
+                if (input.charAt(i) == '\n') {
+                    line++;
+                    lineStart = i + 1;
+                }
+            }
+            String label = source.replaceAll("\\s+", " ").trim();
+            if (label.length() > 60) {
+                label = label.substring(0, 57) + "...";
+            }
+            return new ProfileSite(kind, line, offset - lineStart + 1, label);
+        }
+
+        // with a profiler, a filter chain becomes one nested expression per stage so every filter is timed on its own
+        private Expression profileFilters(Expression expr) {
+            if (profiler == null || !(expr instanceof FilteredExpression)) {
+                return expr;
+            }
+            FilteredExpression filtered = (FilteredExpression) expr;
+            Expression result = filtered.base;
+            for (Filter filter : filtered.filters) {
+                result = profile(new FilteredExpression(result, Collections.singletonList(filter)), "filter", "| " + filter.filterName);
+            }
+            return result;
+        }
+
         private boolean peek(String s) {
             return input.startsWith(s, pos);
         }
@@ -832,7 +5495,7 @@ public class Blueprint {
                 pos++;
             }
             String text = input.substring(start, pos);
-            return new TextNode(text);
+            return new TextNode(engine.pooledText(text));
         }
 
         // parse a variable node. Assumes that pos is at "{{"
@@ -847,7 +5510,7 @@ public class Blueprint {
             String exprStr = input.substring(pos, end).trim();
             pos = end + 2; // skip "}}" characters
             Expression expr = parseExpression(exprStr);
-            return new VariableNode(expr);
+            return new VariableNode(expr, escapeMode);
         }
 
         // parse a tag node. Assumes that pos is at "{%".
@@ -878,16 +5541,17 @@ public class Blueprint {
                 if (parts.length < 2) {
                     throw error("For tag missing arguments. Expected format: 'for item in list'");
                 }
-                // expected format: "for item in list"
-                String[] tokens = parts[1].split("\\s+");
-                if (tokens.length != 3 || !"in".equals(tokens[1])) {
-                    throw error("Invalid for tag syntax. Expected format: 'for item in list'");
+                // expected format: "for item in list" or "for key, value in map"
+                java.util.regex.Matcher forMatcher = FOR_TAG_PATTERN.matcher(parts[1]);
+                if (!forMatcher.matches()) {
+                    throw error("Invalid for tag syntax. Expected format: 'for item in list' or 'for key, value in map'");
                 }
-                String loopVar = tokens[0];
-                Expression listExpr = parseExpression(tokens[2]);
+                String loopVar = forMatcher.group(1);
+                String valueVar = forMatcher.group(2);
+                Expression listExpr = parseExpression(forMatcher.group(3).trim());
                 List<Node> bodyNodes = parseNodes(Collections.singleton("endfor"));
                 expectTag("endfor");
-                return new ForNode(loopVar, listExpr, bodyNodes);
+                return new ForNode(loopVar, valueVar, listExpr, bodyNodes);
             } else if ("set".equals(tagName)) {
                 if (parts.length < 2) {
                     throw error("Set tag missing arguments. Expected format: 'set var = expression'");
@@ -909,7 +5573,7 @@ public class Blueprint {
                 }
                 String rawContent = input.substring(pos, endRawIndex);
                 pos = endRawIndex + "{% endraw %}".length();
-                return new TextNode(rawContent);
+                return new TextNode(engine.pooledText(rawContent));
             } else if ("macro".equals(tagName)) {
                 if (parts.length < 2) {
                     throw error("Macro tag missing arguments. Expected format: 'macro macroName(param1, param2, ...)'");
@@ -931,8 +5595,43 @@ public class Blueprint {
                 }
                 List<Node> bodyNodes = parseNodes(Collections.singleton("endmacro"));
                 expectTag("endmacro");
-                return new MacroNode(macroName, parameters, bodyNodes);
-            } else if ("else".equals(tagName) || "endif".equals(tagName) || "endfor".equals(tagName) || "endmacro".equals(tagName)) {
+                return new MacroNode(macroName, parameters, bodyNodes, escapeMode);
+            } else if ("cache".equals(tagName)) {
+                if (parts.length < 2) {
+                    throw error("Cache tag missing arguments. Expected format: 'cache keyExpression [ttlSeconds]'");
+                }
+                // expected format: "cache keyExpression [ttlSeconds]"
+                List<Expression> cacheArgs = parseExpressionSequence(parts[1]);
+                if (cacheArgs.size() > 2) {
+                    throw error("Invalid cache tag syntax. Expected format: 'cache keyExpression [ttlSeconds]'");
+                }
+                Expression ttlExpr = cacheArgs.size() > 1 ? cacheArgs.get(1) : null;
+                List<Node> bodyNodes = parseNodes(Collections.singleton("endcache"));
+                expectTag("endcache");
+                return new CacheNode(cacheArgs.get(0), ttlExpr, bodyNodes, fragmentNamespace());
+            } else if ("autoescape".equals(tagName)) {
+                if (parts.length < 2) {
+                    throw error("Autoescape tag missing arguments. Expected format: 'autoescape mode' (html, html_attr, js, json, url or none)");
+                }
+                // expected format: "autoescape mode", the mode optionally quoted
+                String modeName = parts[1].trim().replaceAll("^[\"']|[\"']$", "");
+                EscapeMode blockMode;
+                try {
+                    blockMode = EscapeMode.fromName(modeName);
+                } catch (IllegalArgumentException e) {
+                    throw error(e.getMessage());
+                }
+                EscapeMode outerMode = escapeMode;
+                escapeMode = blockMode;
+                List<Node> bodyNodes;
+                try {
+                    bodyNodes = parseNodes(Collections.singleton("endautoescape"));
+                } finally {
+                    escapeMode = outerMode;
+                }
+                expectTag("endautoescape");
+                return new AutoEscapeNode(blockMode, bodyNodes);
+            } else if ("else".equals(tagName) || "endif".equals(tagName) || "endfor".equals(tagName) || "endmacro".equals(tagName) || "endcache".equals(tagName) || "endautoescape".equals(tagName)) {
                 throw error("Unexpected tag: " + tagName);
             } else {
                 throw error("Unknown tag: " + tagName);
@@ -1030,17 +5729,242 @@ public class Blueprint {
                                 filterArgs.add(parseExpression(token));
                             }
                         }
-                        filterList.add(new Filter(filterName, filterArgs));
+                        filterList.add(new Filter(filterName, filterArgs, bindFilter(filterName, filterArgs)));
                     } else {
-                        filterList.add(new Filter(filterPart, Collections.emptyList()));
+                        filterList.add(new Filter(filterPart, Collections.emptyList(), bindFilter(filterPart, Collections.emptyList())));
                     }
                 }
-                return new FilteredExpression(base, filterList);
+                Expression filtered = foldFilters(base, filterList);
+                return profiler != null ? profileFilters(filtered) : fuseFilters(filtered);
             } else {
                 return base;
             }
         }
 
+        // --- variables bound to a context schema ---
+
+        private Expression variable(String path) {
+            if (schema == null) {
+                return new VariableExpression(path);
+            }
+            String[] parts = path.split("\\.");
+            String root = parts[0];
+            String rootIndexes = null;
+            int bracket = root.indexOf('[');
+            if (bracket != -1) {
+                rootIndexes = root.substring(bracket);
+                root = root.substring(0, bracket);
+            }
+            int slot = schema.slotOf(root);
+            if (slot == -1) {
+                return new VariableExpression(path);
+            }
+            // follow the declared types through getters for as long as they are known
+            List<Method> getters = new ArrayList<>();
+            int typed = 1;
+            if (rootIndexes == null) {
+                Class<?> type = schema.typeOf(slot);
+                for (; typed < parts.length; typed++) {
+                    Method getter = ContextSchema.getterOf(type, parts[typed]);
+                    if (getter == null) {
+                        break;
+                    }
+                    getters.add(getter);
+                    type = getter.getReturnType();
+                }
+            }
+            List<String> remaining = new ArrayList<>();
+            if (rootIndexes != null) {
+                remaining.add(rootIndexes);
+            }
+            remaining.addAll(Arrays.asList(parts).subList(typed, parts.length));
+            return new VariableExpression(path, schema, slot, getters.toArray(new Method[0]), remaining.toArray(new String[0]));
+        }
+
+        // --- compile-time folding of constant sub-expressions and pure calls ---
+
+        private boolean isConstant(Expression expr) {
+            return expr instanceof LiteralExpression;
+        }
+
+        private boolean allConstant(List<Expression> exprs) {
+            for (Expression expr : exprs) {
+                if (!isConstant(expr)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isPure(TemplateFunction func) {
+            return func instanceof RegisteredFunction && ((RegisteredFunction) func).isPure();
+        }
+
+        // functions are handed an empty context when evaluated at compile time
+        private RenderContext compileTimeContext() {
+            return new RenderContext(new HashMap<>(), engine, new ConcurrentHashMap<>());
+        }
+
+        private Expression foldCall(String functionName, List<Expression> args) {
+            TemplateFunction func = engine.getFunction(functionName);
+            if (!macroNames.contains(functionName) && isPure(func) && allConstant(args)) {
+                List<Object> argValues = new ArrayList<>();
+                for (Expression arg : args) {
+                    argValues.add(arg.evaluate(null));
+                }
+                try {
+                    return new LiteralExpression(func.execute(compileTimeContext(), argValues));
+                } catch (RuntimeException e) {
+                    // leave the call in place; the error surfaces when (and if) the call is actually rendered
+                }
+            }
+            // a frozen registry cannot change anymore, so calls that no macro can shadow are bound right away
+            TemplateFunction bound = engine.isFrozen() && !macroNames.contains(functionName) ? func : null;
+            return profile(new FunctionCallExpression(functionName, args, bound), "call", functionName + "()");
+        }
+
+        // filters resolve to engine filters/functions before macros, so with a frozen registry they can be bound right away.
+        // A pure CompilableFilter with constant arguments is bound to its compiled form, with the filter registered at
+        // compile time (as for folding)
+        private TemplateFunction bindFilter(String filterName, List<Expression> arguments) {
+            TemplateFunction func = engine.getFilter(filterName);
+            if (isPure(func) && ((RegisteredFunction) func).getDelegate() instanceof CompilableFilter && allConstant(arguments)) {
+                List<Object> args = new ArrayList<>();
+                for (Expression argExp : arguments) {
+                    args.add(argExp.evaluate(null));
+                }
+                try {
+                    TemplateFunction compiled = ((CompilableFilter) ((RegisteredFunction) func).getDelegate()).compile(args);
+                    if (compiled != null) {
+                        return compiled;
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. an invalid pattern: the error surfaces when (and if) the filter is actually rendered
+                }
+            }
+            return engine.isFrozen() ? func : null;
+        }
+
+        // filters resolve to engine-registered filters/functions before macros, so no macro check is needed here
+        private Expression foldFilters(Expression base, List<Filter> filterList) {
+            if (!isConstant(base)) {
+                return new FilteredExpression(base, filterList);
+            }
+            Object value = base.evaluate(null);
+            int folded = 0;
+            for (Filter filter : filterList) {
+                TemplateFunction func = engine.getFilter(filter.filterName);
+                if (!isPure(func) || !allConstant(filter.arguments)) {
+                    break;
+                }
+                List<Object> args = new ArrayList<>();
+                args.add(value);
+                for (Expression argExp : filter.arguments) {
+                    args.add(argExp.evaluate(null));
+                }
+                try {
+                    value = func.execute(compileTimeContext(), args);
+                } catch (RuntimeException e) {
+                    break;
+                }
+                folded++;
+            }
+            if (folded == 0) {
+                return new FilteredExpression(base, filterList);
+            }
+            if (folded == filterList.size()) {
+                return new LiteralExpression(value);
+            }
+            return new FilteredExpression(new LiteralExpression(value), filterList.subList(folded, filterList.size()));
+        }
+
+        // a chain of pure text filters with constant arguments runs as one pipeline. The stages call the filter
+        // delegates directly, so as with bindFilter this only happens once the registry is frozen, and memoized
+        // filters (whose memo table and saved-call counter sit in RegisteredFunction) are left unfused.
+        private Expression fuseFilters(Expression expr) {
+            if (!(expr instanceof FilteredExpression) || !engine.isFrozen()) {
+                return expr;
+            }
+            FilteredExpression filtered = (FilteredExpression) expr;
+            List<TextFilter> stages = new ArrayList<>();
+            List<List<Object>> stageArgs = new ArrayList<>();
+            for (Filter filter : filtered.filters) {
+                TemplateFunction func = engine.getFilter(filter.filterName);
+                if (!isPure(func) || ((RegisteredFunction) func).isMemoized()
+                        || !(((RegisteredFunction) func).getDelegate() instanceof TextFilter) || !allConstant(filter.arguments)) {
+                    return expr;
+                }
+                List<Object> args = new ArrayList<>();
+                for (Expression argExp : filter.arguments) {
+                    args.add(argExp.evaluate(null));
+                }
+                stages.add((TextFilter) ((RegisteredFunction) func).getDelegate());
+                stageArgs.add(Collections.unmodifiableList(args));
+            }
+            return new FusedFilterExpression(filtered, stages, stageArgs);
+        }
+
+        // operators are pure, so operations on constants are evaluated right away
+        private Expression foldBinary(Expression left, String operator, Expression right) {
+            if (operator.equals("+") && !(isConstant(left) && isConstant(right))) {
+                return foldConcat(left, right);
+            }
+            BinaryExpression expr = new BinaryExpression(left, operator, right);
+            // a constant left side that decides "or"/"and" makes the right side dead code
+            if (isConstant(left) && (operator.equals("or") || operator.equals("and"))
+                    && BinaryExpression.isTrue(left.evaluate(null)) == operator.equals("or")) {
+                return new LiteralExpression(operator.equals("or"));
+            }
+            if (isConstant(left) && isConstant(right)) {
+                try {
+                    return new LiteralExpression(expr.evaluate(null));
+                } catch (RuntimeException e) {
+                    // e.g. division by zero: keep the runtime error behaviour
+                }
+            }
+            return expr;
+        }
+
+        // "+" chains become one ConcatExpression. Adjacent string constants are merged: once a string has been
+        // added, everything after it is concatenated as text anyway.
+        private Expression foldConcat(Expression left, Expression right) {
+            List<Expression> operands = new ArrayList<>();
+            if (left instanceof ConcatExpression) {
+                operands.addAll(((ConcatExpression) left).getOperands());
+            } else {
+                operands.add(left);
+            }
+            Expression last = operands.get(operands.size() - 1);
+            if (isConstant(right) && isConstant(last) && last.evaluate(null) instanceof String && operands.size() > 1) {
+                operands.set(operands.size() - 1, new LiteralExpression(last.evaluate(null) + String.valueOf(right.evaluate(null))));
+            } else {
+                operands.add(right);
+            }
+            return new ConcatExpression(operands);
+        }
+
+        private Expression foldConditional(Expression whenTrue, Expression condition, Expression whenFalse) {
+            if (isConstant(condition)) {
+                if (BinaryExpression.isTrue(condition.evaluate(null))) {
+                    return whenTrue;
+                }
+                return whenFalse != null ? whenFalse : new LiteralExpression(null);
+            }
+            return new ConditionalExpression(whenTrue, condition, whenFalse);
+        }
+
+        private Expression foldUnary(String operator, Expression operand) {
+            UnaryExpression expr = new UnaryExpression(operator, operand);
+            if (isConstant(operand)) {
+                try {
+                    return new LiteralExpression(expr.evaluate(null));
+                } catch (RuntimeException e) {
+                    // keep the runtime error behaviour
+                }
+            }
+            return expr;
+        }
+
         // parse a logical/arithmetic expression (with support for "or", "and", "not", comparisons, etc.)
         // using a recursive descent parser.
         private Expression parseLogicalExpression(String expr) {
@@ -1053,6 +5977,19 @@ public class Blueprint {
             return result;
         }
 
+        // parse whitespace separated expressions (e.g. the "key ttl" arguments of a cache tag).
+        // Operands that themselves contain spaces around operators are fine: "a + b 60" yields [a + b, 60].
+        private List<Expression> parseExpressionSequence(String exprs) {
+            ExpressionParser parser = new ExpressionParser(exprs);
+            List<Expression> result = new ArrayList<>();
+            parser.skipWhitespace();
+            while (!parser.isEnd()) {
+                result.add(parser.parseExpression());
+                parser.skipWhitespace();
+            }
+            return result;
+        }
+
         // a simple recursive descent parser for expressions
         private class ExpressionParser {
             private final String input;
@@ -1063,8 +6000,17 @@ public class Blueprint {
                 this.pos = 0;
             }
 
+            // conditional: orExpr ('if' orExpr ('else' expression)?)?
             public Expression parseExpression() {
-                return parseOr();
+                Expression expr = parseOr();
+                skipWhitespace();
+                if (!matchKeyword("if")) {
+                    return expr;
+                }
+                Expression condition = parseOr();
+                skipWhitespace();
+                Expression otherwise = matchKeyword("else") ? parseExpression() : null;
+                return foldConditional(expr, condition, otherwise);
             }
 
             // or-expression: andExpr ('or' andExpr)*
@@ -1074,7 +6020,7 @@ public class Blueprint {
                     skipWhitespace();
                     if (matchKeyword("or")) {
                         Expression right = parseAnd();
-                        expr = new BinaryExpression(expr, "or", right);
+                        expr = foldBinary(expr, "or", right);
                     } else {
                         break;
                     }
@@ -1089,7 +6035,7 @@ public class Blueprint {
                     skipWhitespace();
                     if (matchKeyword("and")) {
                         Expression right = parseEquality();
-                        expr = new BinaryExpression(expr, "and", right);
+                        expr = foldBinary(expr, "and", right);
                     } else {
                         break;
                     }
@@ -1104,10 +6050,10 @@ public class Blueprint {
                     skipWhitespace();
                     if (match("==")) {
                         Expression right = parseRelational();
-                        expr = new BinaryExpression(expr, "==", right);
+                        expr = foldBinary(expr, "==", right);
                     } else if (match("!=")) {
                         Expression right = parseRelational();
-                        expr = new BinaryExpression(expr, "!=", right);
+                        expr = foldBinary(expr, "!=", right);
                     } else {
                         break;
                     }
@@ -1122,16 +6068,16 @@ public class Blueprint {
                     skipWhitespace();
                     if (match(">=")) {
                         Expression right = parseAdditive();
-                        expr = new BinaryExpression(expr, ">=", right);
+                        expr = foldBinary(expr, ">=", right);
                     } else if (match("<=")) {
                         Expression right = parseAdditive();
-                        expr = new BinaryExpression(expr, "<=", right);
+                        expr = foldBinary(expr, "<=", right);
                     } else if (match(">")) {
                         Expression right = parseAdditive();
-                        expr = new BinaryExpression(expr, ">", right);
+                        expr = foldBinary(expr, ">", right);
                     } else if (match("<")) {
                         Expression right = parseAdditive();
-                        expr = new BinaryExpression(expr, "<", right);
+                        expr = foldBinary(expr, "<", right);
                     } else {
                         break;
                     }
@@ -1146,10 +6092,10 @@ public class Blueprint {
                     skipWhitespace();
                     if (match("+")) {
                         Expression right = parseMultiplicative();
-                        expr = new BinaryExpression(expr, "+", right);
+                        expr = foldBinary(expr, "+", right);
                     } else if (match("-")) {
                         Expression right = parseMultiplicative();
-                        expr = new BinaryExpression(expr, "-", right);
+                        expr = foldBinary(expr, "-", right);
                     } else {
                         break;
                     }
@@ -1164,13 +6110,13 @@ public class Blueprint {
                     skipWhitespace();
                     if (match("*")) {
                         Expression right = parsePower();
-                        expr = new BinaryExpression(expr, "*", right);
+                        expr = foldBinary(expr, "*", right);
                     } else if (match("/")) {
                         Expression right = parsePower();
-                        expr = new BinaryExpression(expr, "/", right);
+                        expr = foldBinary(expr, "/", right);
                     } else if (match("%")) {
                         Expression right = parsePower();
-                        expr = new BinaryExpression(expr, "%", right);
+                        expr = foldBinary(expr, "%", right);
                     } else {
                         break;
                     }
@@ -1185,7 +6131,7 @@ public class Blueprint {
                 skipWhitespace();
                 if (match("**")) {
                     Expression right = parsePower();
-                    expr = new BinaryExpression(expr, "**", right);
+                    expr = foldBinary(expr, "**", right);
                 }
                 return expr;
             }
@@ -1195,10 +6141,10 @@ public class Blueprint {
                 skipWhitespace();
                 if (matchKeyword("not")) {
                     Expression operand = parseUnary();
-                    return new UnaryExpression("not", operand);
+                    return foldUnary("not", operand);
                 } else if (match("-")) {
                     Expression operand = parseUnary();
-                    return new UnaryExpression("-", operand);
+                    return foldUnary("-", operand);
                 } else {
                     return parsePrimary();
                 }
@@ -1250,7 +6196,7 @@ public class Blueprint {
                             throw error("Expected ')' in function call");
                         }
                     }
-                    return new FunctionCallExpression(ident, args);
+                    return foldCall(ident, args);
                 } else {
                     // variable expression. To support bracket based indexing "user.colors[0]" we handle any dot or bracket parts
                     StringBuilder varBuilder = new StringBuilder(ident);
@@ -1279,7 +6225,7 @@ public class Blueprint {
                             break;
                         }
                     }
-                    return new VariableExpression(varBuilder.toString());
+                    return variable(varBuilder.toString());
                 }
             }
 
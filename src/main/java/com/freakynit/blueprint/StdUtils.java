@@ -1,15 +1,91 @@
 package com.freakynit.blueprint;
 
 import java.lang.reflect.Array;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
 
 public class StdUtils {
     public void registerAll(Blueprint engine) {
         new Functions().registerAll(engine);
         new Filters().registerAll(engine);
+        new Formatting().registerAll(engine);
     }
 
+    // deterministic functions and filters are registered as pure, so calls with constant arguments are folded at compile time
+    private static Blueprint.FunctionOptions pure() {
+        return new Blueprint.FunctionOptions().pure();
+    }
+
+    // locales whose case mappings differ from the ASCII ones (e.g. the dotted and dotless i in Turkish)
+    private static final Set<String> SPECIAL_CASING_LANGUAGES = new HashSet<>(Arrays.asList("tr", "az", "lt"));
+
+    // upper/lower case in the default locale, copying ASCII text without creating an intermediate String
+    private static void appendCased(CharSequence input, StringBuilder out, boolean upper) {
+        if (!SPECIAL_CASING_LANGUAGES.contains(Locale.getDefault().getLanguage()) && isAscii(input)) {
+            for (int i = 0; i < input.length(); i++) {
+                char c = input.charAt(i);
+                if (upper ? (c >= 'a' && c <= 'z') : (c >= 'A' && c <= 'Z')) {
+                    c ^= 0x20;
+                }
+                out.append(c);
+            }
+            return;
+        }
+        String text = input.toString();
+        out.append(upper ? text.toUpperCase() : text.toLowerCase());
+    }
+
+    private static boolean isAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 128) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // compiled regular expressions by source, shared by the regex filters
+    private static final int MAX_CACHED_PATTERNS = 256;
+    private static final Map<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
+
+    static Pattern pattern(String regex) {
+        Pattern pattern = PATTERNS.get(regex);
+        if (pattern == null) {
+            if (PATTERNS.size() >= MAX_CACHED_PATTERNS) {
+                PATTERNS.clear();
+            }
+            pattern = Pattern.compile(regex);
+            PATTERNS.put(regex, pattern);
+        }
+        return pattern;
+    }
+
+    // the elements of any collection shape: Iterables, Iterators, Streams and object or primitive arrays.
+    // null for anything else, including Maps (which the collection filters treat as single values)
+    private static Iterator<?> elements(Object value) {
+        return value instanceof Map ? null : Blueprint.iteratorOf(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final Comparator<Object> NATURAL_OR_TEXT_ORDER = (a, b) -> {
+        if (a instanceof Comparable && b instanceof Comparable) {
+            return ((Comparable) a).compareTo(b);
+        }
+        return a.toString().compareTo(b.toString()); // Fallback to string comparison
+    };
+
     public static class Functions {
         public void registerAll(Blueprint engine) {
             registerLower("lower", engine);
@@ -23,84 +99,104 @@ public class StdUtils {
         }
 
         public void registerLower(String name, Blueprint engine) {
-            engine.registerFunction(name, (context, argsList) -> {
-                if (argsList.isEmpty() || argsList.get(0) == null) {
-                    return "";
-                }
-                return argsList.get(0).toString().toLowerCase();
-            });
+            engine.registerFunction(name, (Blueprint.TextFilter) (input, args, out) -> appendCased(input, out, false), pure());
         }
 
         public void registerUpper(String name, Blueprint engine) {
-            engine.registerFunction(name, (context, argsList) -> {
-                if (argsList.isEmpty() || argsList.get(0) == null) {
-                    return "";
-                }
-                return argsList.get(0).toString().toUpperCase();
-            });
+            engine.registerFunction(name, (Blueprint.TextFilter) (input, args, out) -> appendCased(input, out, true), pure());
         }
 
+        // sizes are read directly where the shape knows its size; other iterables (e.g. a Set view, an Iterator
+        // or a Stream) are counted without being copied. Iterators and Streams are used up by counting.
         public void registerLength(String name, Blueprint engine) {
             engine.registerFunction(name, (context, argsList) -> {
                 if (argsList.isEmpty() || argsList.get(0) == null) {
                     return 0;
                 }
                 Object value = argsList.get(0);
-                if (value instanceof String) {
-                    return ((String) value).length();
+                if (value instanceof CharSequence) {
+                    return ((CharSequence) value).length();
                 } else if (value instanceof Collection) {
                     return ((Collection<?>) value).size();
+                } else if (value instanceof Map) {
+                    return ((Map<?, ?>) value).size();
                 } else if (value.getClass().isArray()) {
                     return Array.getLength(value);
                 }
-                return 0;
-            });
+                Iterator<?> items = elements(value);
+                if (items == null) {
+                    return 0;
+                }
+                int count = 0;
+                for (; items.hasNext(); items.next()) {
+                    count++;
+                }
+                return count;
+            }, pure());
         }
 
+        // {{ tags | join(", ") }} writes the elements straight to the output. null elements are skipped, delimiter included.
         public void registerJoin(String name, Blueprint engine) {
-            engine.registerFilter(name, (context, argsList) -> {
-                if (argsList.isEmpty() || argsList.get(0) == null) {
-                    return "";
+            engine.registerFilter(name, (Blueprint.AppendingFilter) (input, args, out) -> {
+                if (input == null) {
+                    return;
                 }
-                String delimiter = argsList.size() > 1 ? argsList.get(1).toString() : "";
-                Object collection = argsList.get(0);
-                List<String> items = new ArrayList<>();
-                if (collection instanceof Iterable) {
-                    for (Object item : (Iterable<?>) collection) {
-                        items.add(item.toString());
+                String delimiter = args.size() > 0 ? args.get(0).toString() : "";
+                if (input instanceof int[]) {
+                    int[] ints = (int[]) input;
+                    for (int i = 0; i < ints.length; i++) {
+                        (i > 0 ? out.append(delimiter) : out).append(ints[i]);
                     }
-                } else if (collection.getClass().isArray()) {
-                    int len = Array.getLength(collection);
-                    for (int i = 0; i < len; i++) {
-                        Object item = Array.get(collection, i);
-                        items.add(item.toString());
+                    return;
+                }
+                Iterator<?> items = elements(input);
+                if (items == null) {
+                    out.append(input);
+                    return;
+                }
+                boolean first = true;
+                while (items.hasNext()) {
+                    Object item = items.next();
+                    if (item == null) {
+                        continue;
                     }
-                } else {
-                    return collection.toString();
+                    if (!first) {
+                        out.append(delimiter);
+                    }
+                    // numbers are formatted straight into the output
+                    if (item instanceof CharSequence) {
+                        out.append((CharSequence) item);
+                    } else if (item instanceof Integer) {
+                        out.append(((Integer) item).intValue());
+                    } else if (item instanceof Long) {
+                        out.append(((Long) item).longValue());
+                    } else {
+                        out.append(item.toString());
+                    }
+                    first = false;
                 }
-                return String.join(delimiter, items);
-            });
+            }, pure());
         }
 
+        // the fallback is only evaluated when it is used: default(user.nickname, expensiveLookup(user))
         public void registerDefault(String name, Blueprint engine) {
             engine.registerFunction(name, (context, argsList) -> {
+                Object value = context.unwrap(argsList.get(0));
                 if (argsList.size() < 2) {
-                    return argsList.get(0);
+                    return value;
                 }
-                Object value = argsList.get(0);
-                Object defaultValue = argsList.get(1);
                 if (value == null || (value instanceof String && ((String) value).isEmpty())) {
-                    return defaultValue;
+                    return context.unwrap(argsList.get(1));
                 }
                 return value;
-            });
+            }, pure().lazyArguments());
         }
 
         public void registerRandomInt(String name, Blueprint engine) {
             engine.registerFunction(name, (context, argsList) -> {
                 int min = argsList.size() > 0 ? ((Number) argsList.get(0)).intValue() : 0;
                 int max = argsList.size() > 1 ? ((Number) argsList.get(1)).intValue() : 100;
-                return new Random().nextInt(max - min + 1) + min;
+                return ThreadLocalRandom.current().nextInt(max - min + 1) + min;
             });
         }
 
@@ -132,13 +228,17 @@ public class StdUtils {
                 }
 
                 return number;
-            });
+            }, pure());
         }
 
+        // now(pattern) takes SimpleDateFormat patterns, as it always has (the letters differ from java.time's, e.g. u, Y
+        // and S). The default pattern means the same in both, so it is formatted with a shared DateTimeFormatter.
         public void registerNowISO601(String name, Blueprint engine) {
             engine.registerFunction(name, (context, argsList) -> {
-                String format = argsList.size() > 0 ? argsList.get(0).toString() : "yyyy-MM-dd'T'HH:mm:ss'Z'";
-                return new SimpleDateFormat(format).format(new Date());
+                if (argsList.isEmpty()) {
+                    return Formatting.dateFormatter("yyyy-MM-dd'T'HH:mm:ss'Z'", null).format(ZonedDateTime.now());
+                }
+                return Formatting.simpleDateFormat(argsList.get(0).toString()).get().format(new Date());
             });
         }
     }
@@ -151,21 +251,21 @@ public class StdUtils {
             registerSort("sort", engine);
             registerUnique("unique", engine);
             registerRound("round", engine);
+            registerSafe("safe", engine);
+            registerEscape("escape", engine);
+            registerRegexReplace("regex_replace", engine);
+            registerSplit("split", engine);
         }
 
         public void registerTruncate(String name, Blueprint engine) {
-            engine.registerFilter(name, (context, argsList) -> {
-                if (argsList.isEmpty() || argsList.get(0) == null) {
-                    return "";
-                }
-                String input = argsList.get(0).toString();
-                int length = argsList.size() > 1 ? ((Number) argsList.get(1)).intValue() : 50;
-                String suffix = argsList.size() > 2 ? argsList.get(2).toString() : "...";
+            engine.registerFilter(name, (Blueprint.TextFilter) (input, args, out) -> {
+                int length = args.size() > 0 ? ((Number) args.get(0)).intValue() : 50;
                 if (input.length() <= length) {
-                    return input;
+                    out.append(input);
+                    return;
                 }
-                return input.substring(0, length) + suffix;
-            });
+                out.append(input, 0, length).append(args.size() > 1 ? args.get(1).toString() : "...");
+            }, pure());
         }
 
         public void registerReverse(String name, Blueprint engine) {
@@ -195,30 +295,46 @@ public class StdUtils {
                 }
 
                 return value;
-            });
+            }, pure());
         }
 
         public void registerReplace(String name, Blueprint engine) {
-            engine.registerFilter(name, (context, argsList) -> {
-                if (argsList.size() < 3) {
-                    return argsList.get(0);
+            engine.registerFilter(name, (Blueprint.TextFilter) (input, args, out) -> {
+                if (args.size() < 2) {
+                    out.append(input);
+                    return;
                 }
-                String input = argsList.get(0).toString();
-                String target = argsList.get(1).toString();
-                String replacement = argsList.get(2).toString();
-                return input.replace(target, replacement);
-            });
+                String target = args.get(0).toString();
+                String replacement = args.get(1).toString();
+                if (target.isEmpty()) {
+                    out.append(input.toString().replace(target, replacement));
+                    return;
+                }
+                // copy the text between matches straight from the input
+                String text = input instanceof String ? (String) input : null;
+                StringBuilder builder = input instanceof StringBuilder ? (StringBuilder) input : null;
+                if (text == null && builder == null) {
+                    text = input.toString();
+                }
+                int from = 0;
+                int match = text != null ? text.indexOf(target) : builder.indexOf(target);
+                while (match != -1) {
+                    out.append(input, from, match).append(replacement);
+                    from = match + target.length();
+                    match = text != null ? text.indexOf(target, from) : builder.indexOf(target, from);
+                }
+                out.append(input, from, input.length());
+            }, pure());
             // A filter "capitalize": capitalizes the first character.
-            engine.registerFilter("capitalize", (context, argsList) -> {
-                if (argsList.isEmpty() || argsList.get(0) == null) {
-                    return "";
+            engine.registerFilter("capitalize", (Blueprint.TextFilter) (input, args, out) -> {
+                if (input.length() == 0) {
+                    return;
                 }
-                String s = argsList.get(0).toString();
-                if (s.isEmpty()) return s;
-                return s.substring(0, 1).toUpperCase() + s.substring(1);
-            });
+                out.append(String.valueOf(input.charAt(0)).toUpperCase()).append(input, 1, input.length());
+            }, pure());
         }
 
+        // returns a sorted copy: arrays of the same (primitive or object) type, a List for every other collection shape
         public void registerSort(String name, Blueprint engine) {
             engine.registerFilter(name, (context, argsList) -> {
                 if (argsList.isEmpty() || argsList.get(0) == null) {
@@ -226,43 +342,120 @@ public class StdUtils {
                 }
 
                 Object value = argsList.get(0);
-
-                Comparator<Object> comparator = (a, b) -> {
-                    if (a instanceof Comparable && b instanceof Comparable) {
-                        return ((Comparable) a).compareTo(b);
-                    }
-                    return a.toString().compareTo(b.toString()); // Fallback to string comparison
-                };
-
-                if (value instanceof List<?>) {
-                    List<?> list = (List<?>) value;
-                    List<Object> sorted = new ArrayList<>(list);
-                    sorted.sort(comparator);
+                if (value instanceof Object[]) {
+                    Object[] sorted = ((Object[]) value).clone();
+                    Arrays.sort(sorted, NATURAL_OR_TEXT_ORDER);
+                    return sorted;
+                } else if (value instanceof int[]) {
+                    int[] sorted = ((int[]) value).clone();
+                    Arrays.sort(sorted);
+                    return sorted;
+                } else if (value instanceof long[]) {
+                    long[] sorted = ((long[]) value).clone();
+                    Arrays.sort(sorted);
+                    return sorted;
+                } else if (value instanceof double[]) {
+                    double[] sorted = ((double[]) value).clone();
+                    Arrays.sort(sorted);
                     return sorted;
-                } else if (value.getClass().isArray()) {
-                    Object[] array = (Object[]) value;
-                    Object[] sortedArray = Arrays.copyOf(array, array.length);
-                    Arrays.sort(sortedArray, comparator);
-                    return sortedArray;
                 }
 
-                return value;
-            });
+                List<Object> sorted;
+                if (value instanceof Collection) {
+                    sorted = new ArrayList<>((Collection<?>) value);
+                } else {
+                    Iterator<?> items = elements(value);
+                    if (items == null) {
+                        return value;
+                    }
+                    sorted = new ArrayList<>();
+                    items.forEachRemaining(sorted::add);
+                }
+                sorted.sort(NATURAL_OR_TEXT_ORDER);
+                return sorted;
+            }, pure());
         }
 
+        // keeps the first occurrence of every element: arrays of the same type for object, int, long and double
+        // arrays, a List for every other collection shape. Primitive arrays are deduplicated without boxing.
         public void registerUnique(String name, Blueprint engine) {
             engine.registerFilter(name, (context, argsList) -> {
                 if (argsList.isEmpty() || argsList.get(0) == null) {
                     return "";
                 }
                 Object value = argsList.get(0);
-                if (value instanceof List) {
-                    return new ArrayList<>(new LinkedHashSet<>((List<?>) value));
-                } else if (value.getClass().isArray()) {
-                    return Arrays.stream((Object[]) value).distinct().toArray();
+                if (value instanceof int[]) {
+                    return unique((int[]) value);
+                } else if (value instanceof long[]) {
+                    return unique((long[]) value);
+                } else if (value instanceof double[]) {
+                    return unique((double[]) value);
                 }
-                return value;
-            });
+                Iterator<?> items = elements(value);
+                if (items == null) {
+                    return value;
+                }
+                Set<Object> seen = new HashSet<>();
+                List<Object> unique = new ArrayList<>();
+                while (items.hasNext()) {
+                    Object item = items.next();
+                    if (seen.add(item)) {
+                        unique.add(item);
+                    }
+                }
+                return value instanceof Object[] ? unique.toArray() : unique;
+            }, pure());
+        }
+
+        // each value is looked up in a sorted copy. Equal values find the same slot there, which records whether
+        // the value was already kept.
+        private static int[] unique(int[] values) {
+            int[] sorted = values.clone();
+            Arrays.sort(sorted);
+            boolean[] kept = new boolean[sorted.length];
+            int[] unique = new int[values.length];
+            int count = 0;
+            for (int value : values) {
+                int slot = Arrays.binarySearch(sorted, value);
+                if (!kept[slot]) {
+                    kept[slot] = true;
+                    unique[count++] = value;
+                }
+            }
+            return Arrays.copyOf(unique, count);
+        }
+
+        private static long[] unique(long[] values) {
+            long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            boolean[] kept = new boolean[sorted.length];
+            long[] unique = new long[values.length];
+            int count = 0;
+            for (long value : values) {
+                int slot = Arrays.binarySearch(sorted, value);
+                if (!kept[slot]) {
+                    kept[slot] = true;
+                    unique[count++] = value;
+                }
+            }
+            return Arrays.copyOf(unique, count);
+        }
+
+        // doubles compare as Double.equals does (NaN equals NaN, 0.0 and -0.0 differ), like the boxed values would
+        private static double[] unique(double[] values) {
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            boolean[] kept = new boolean[sorted.length];
+            double[] unique = new double[values.length];
+            int count = 0;
+            for (double value : values) {
+                int slot = Arrays.binarySearch(sorted, value);
+                if (!kept[slot]) {
+                    kept[slot] = true;
+                    unique[count++] = value;
+                }
+            }
+            return Arrays.copyOf(unique, count);
         }
 
         public void registerRound(String name, Blueprint engine) {
@@ -274,7 +467,244 @@ public class StdUtils {
                 int precision = argsList.size() > 1 ? ((Number) argsList.get(1)).intValue() : 0;
                 double factor = Math.pow(10, precision);
                 return Math.round(num * factor) / factor;
-            });
+            }, pure());
+        }
+
+        // {{ phone | regex_replace("[^0-9]", "") }}. The replacement may refer to groups ($1).
+        public void registerRegexReplace(String name, Blueprint engine) {
+            engine.registerFilter(name, (Blueprint.TextFilter) (input, args, out) -> {
+                if (args.size() < 2) {
+                    out.append(input);
+                    return;
+                }
+                out.append(pattern(args.get(0).toString()).matcher(input).replaceAll(args.get(1).toString()));
+            }, pure());
+        }
+
+        // {% for tag in tags | split(",\\s*") %}. Splits text around matches of a regular expression into a list.
+        public void registerSplit(String name, Blueprint engine) {
+            engine.registerFilter(name, (context, argsList) -> {
+                if (argsList.isEmpty() || argsList.get(0) == null) {
+                    return Collections.emptyList();
+                }
+                String input = argsList.get(0).toString();
+                if (argsList.size() < 2) {
+                    return Collections.singletonList(input);
+                }
+                return Arrays.asList(pattern(argsList.get(1).toString()).split(input));
+            }, pure());
+        }
+
+        // marks the value as already escaped, so auto-escaping leaves it alone
+        public void registerSafe(String name, Blueprint engine) {
+            engine.registerFilter(name, (context, argsList) -> {
+                if (argsList.isEmpty() || argsList.get(0) == null) {
+                    return "";
+                }
+                Object value = argsList.get(0);
+                return value instanceof Blueprint.SafeString ? value : new Blueprint.SafeString(value.toString());
+            }, pure());
+        }
+
+        // escapes explicitly, html by default: {{ value | escape }} or {{ value | escape("url") }}
+        public void registerEscape(String name, Blueprint engine) {
+            engine.registerFilter(name, (context, argsList) -> {
+                if (argsList.isEmpty() || argsList.get(0) == null) {
+                    return "";
+                }
+                Object value = argsList.get(0);
+                if (value instanceof Blueprint.SafeString) {
+                    return value;
+                }
+                Blueprint.EscapeMode mode = argsList.size() > 1 ? Blueprint.EscapeMode.fromName(argsList.get(1).toString()) : Blueprint.EscapeMode.HTML;
+                StringBuilder sb = new StringBuilder();
+                Blueprint.appendValue(value, sb, mode);
+                return new Blueprint.SafeString(sb.toString());
+            }, pure());
+        }
+    }
+
+    /**
+     * Locale-aware date and number formatting:
+     *   {{ invoice.date | date("dd MMM yyyy") }}         LocalDate/LocalDateTime/ZonedDateTime/Instant/Date/epoch millis
+     *   {{ invoice.date | date }}                        without a pattern, ISO 8601 for the value's type (e.g. 2024-03-05)
+     *   {{ invoice.date | date("d. MMMM yyyy", "de-DE") }}
+     *   {{ item.weight | number("#,##0.00") }}           DecimalFormat patterns; without a pattern, the locale's default
+     *   {{ invoice.total | currency("EUR", "de-DE") }}   ISO 4217 code; without a locale, the default locale's format
+     * Locales are language tags. Formatters are cached by pattern and locale, and when the arguments are constants, a
+     * call site is bound to its formatter when the template is compiled. Date formatters are immutable; number formats
+     * (which are not thread-safe) are kept per thread.
+     */
+    public static class Formatting {
+        private static final int MAX_CACHED_FORMATS = 256;
+        private static final Map<String, DateTimeFormatter> DATE_FORMATTERS = new ConcurrentHashMap<>();
+        private static final Map<String, ThreadLocal<NumberFormat>> NUMBER_FORMATS = new ConcurrentHashMap<>();
+        private static final Map<String, ThreadLocal<SimpleDateFormat>> SIMPLE_DATE_FORMATS = new ConcurrentHashMap<>();
+
+        public void registerAll(Blueprint engine) {
+            registerDate("date", engine);
+            registerNumber("number", engine);
+            registerCurrency("currency", engine);
+        }
+
+        public void registerDate(String name, Blueprint engine) {
+            engine.registerFilter(name, new Blueprint.CompilableFilter() {
+                @Override
+                public Object execute(Blueprint.RenderContext context, List<Object> args) {
+                    return formatDate(args.isEmpty() ? null : args.get(0), dateFormatter(pattern(args), locale(args, 2)));
+                }
+
+                @Override
+                public Blueprint.TemplateFunction compile(List<Object> args) {
+                    DateTimeFormatter formatter = dateFormatter(args.size() > 0 ? args.get(0).toString() : null, args.size() > 1 ? args.get(1).toString() : null);
+                    return (context, callArgs) -> formatDate(callArgs.isEmpty() ? null : callArgs.get(0), formatter);
+                }
+            }, pure());
+        }
+
+        public void registerNumber(String name, Blueprint engine) {
+            engine.registerFilter(name, new Blueprint.CompilableFilter() {
+                @Override
+                public Object execute(Blueprint.RenderContext context, List<Object> args) {
+                    return formatNumber(args.isEmpty() ? null : args.get(0), numberFormat(pattern(args), locale(args, 2), null));
+                }
+
+                @Override
+                public Blueprint.TemplateFunction compile(List<Object> args) {
+                    ThreadLocal<NumberFormat> format = numberFormat(args.size() > 0 ? args.get(0).toString() : null, args.size() > 1 ? args.get(1).toString() : null, null);
+                    return (context, callArgs) -> formatNumber(callArgs.isEmpty() ? null : callArgs.get(0), format);
+                }
+            }, pure());
+        }
+
+        public void registerCurrency(String name, Blueprint engine) {
+            engine.registerFilter(name, new Blueprint.CompilableFilter() {
+                @Override
+                public Object execute(Blueprint.RenderContext context, List<Object> args) {
+                    return formatNumber(args.isEmpty() ? null : args.get(0), numberFormat(null, locale(args, 2), pattern(args)));
+                }
+
+                @Override
+                public Blueprint.TemplateFunction compile(List<Object> args) {
+                    ThreadLocal<NumberFormat> format = numberFormat(null, args.size() > 1 ? args.get(1).toString() : null, args.size() > 0 ? args.get(0).toString() : null);
+                    return (context, callArgs) -> formatNumber(callArgs.isEmpty() ? null : callArgs.get(0), format);
+                }
+            }, pure());
+        }
+
+        // the first argument after the input
+        private static String pattern(List<Object> args) {
+            return args.size() > 1 && args.get(1) != null ? args.get(1).toString() : null;
+        }
+
+        private static String locale(List<Object> args, int index) {
+            return args.size() > index && args.get(index) != null ? args.get(index).toString() : null;
+        }
+
+        // formatter null: the ISO format that fits the fields of the value
+        private static Object formatDate(Object value, DateTimeFormatter formatter) {
+            if (value == null) {
+                return "";
+            }
+            TemporalAccessor temporal;
+            if (value instanceof Instant) {
+                temporal = ((Instant) value).atZone(ZoneId.systemDefault());
+            } else if (value instanceof TemporalAccessor) {
+                temporal = (TemporalAccessor) value;
+            } else if (value instanceof Date) {
+                temporal = ((Date) value).toInstant().atZone(ZoneId.systemDefault());
+            } else if (value instanceof Number) {
+                temporal = Instant.ofEpochMilli(((Number) value).longValue()).atZone(ZoneId.systemDefault());
+            } else {
+                return value.toString();
+            }
+            if (formatter == null) {
+                formatter = isoFormatter(temporal);
+                if (formatter == null) {
+                    return value.toString();
+                }
+            }
+            return formatter.format(temporal);
+        }
+
+        // ISO_DATE_TIME, ISO_DATE or ISO_TIME (each with the offset or zone, if the value has one), or null for values
+        // that are neither a date nor a time (e.g. a YearMonth)
+        private static DateTimeFormatter isoFormatter(TemporalAccessor temporal) {
+            boolean date = temporal.isSupported(ChronoField.EPOCH_DAY);
+            boolean time = temporal.isSupported(ChronoField.NANO_OF_DAY);
+            if (date && time) {
+                return DateTimeFormatter.ISO_DATE_TIME;
+            } else if (date) {
+                return DateTimeFormatter.ISO_DATE;
+            } else if (time) {
+                return DateTimeFormatter.ISO_TIME;
+            }
+            return null;
+        }
+
+        private static Object formatNumber(Object value, ThreadLocal<NumberFormat> format) {
+            if (value == null) {
+                return "";
+            }
+            if (!(value instanceof Number)) {
+                return value.toString();
+            }
+            return format.get().format(value);
+        }
+
+        // pattern null: null, i.e. an ISO format chosen by formatDate from the value
+        static DateTimeFormatter dateFormatter(String pattern, String locale) {
+            if (pattern == null) {
+                return null;
+            }
+            String key = pattern + '|' + locale;
+            DateTimeFormatter formatter = DATE_FORMATTERS.get(key);
+            if (formatter == null) {
+                formatter = DateTimeFormatter.ofPattern(pattern, locale == null ? Locale.getDefault() : Locale.forLanguageTag(locale));
+                if (DATE_FORMATTERS.size() >= MAX_CACHED_FORMATS) {
+                    DATE_FORMATTERS.clear();
+                }
+                DATE_FORMATTERS.put(key, formatter);
+            }
+            return formatter;
+        }
+
+        // SimpleDateFormat is not thread-safe, so each thread gets its own copy
+        static ThreadLocal<SimpleDateFormat> simpleDateFormat(String pattern) {
+            ThreadLocal<SimpleDateFormat> format = SIMPLE_DATE_FORMATS.get(pattern);
+            if (format == null) {
+                SimpleDateFormat prototype = new SimpleDateFormat(pattern);
+                format = ThreadLocal.withInitial(() -> (SimpleDateFormat) prototype.clone());
+                if (SIMPLE_DATE_FORMATS.size() >= MAX_CACHED_FORMATS) {
+                    SIMPLE_DATE_FORMATS.clear();
+                }
+                SIMPLE_DATE_FORMATS.put(pattern, format);
+            }
+            return format;
+        }
+
+        // a DecimalFormat pattern, or a currency code (ISO 4217) for currency formatting; neither: the locale's number format
+        static ThreadLocal<NumberFormat> numberFormat(String pattern, String locale, String currency) {
+            String key = pattern + '|' + locale + '|' + currency;
+            ThreadLocal<NumberFormat> format = NUMBER_FORMATS.get(key);
+            if (format == null) {
+                Locale resolved = locale == null ? Locale.getDefault() : Locale.forLanguageTag(locale);
+                NumberFormat prototype;
+                if (currency != null) {
+                    prototype = NumberFormat.getCurrencyInstance(resolved);
+                    prototype.setCurrency(Currency.getInstance(currency));
+                } else if (pattern != null) {
+                    prototype = new DecimalFormat(pattern, DecimalFormatSymbols.getInstance(resolved));
+                } else {
+                    prototype = NumberFormat.getNumberInstance(resolved);
+                }
+                format = ThreadLocal.withInitial(() -> (NumberFormat) prototype.clone());
+                if (NUMBER_FORMATS.size() >= MAX_CACHED_FORMATS) {
+                    NUMBER_FORMATS.clear();
+                }
+                NUMBER_FORMATS.put(key, format);
+            }
+            return format;
         }
     }
 }
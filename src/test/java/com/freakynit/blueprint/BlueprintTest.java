@@ -4,6 +4,17 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -264,4 +275,1111 @@ public class BlueprintTest {
         Exception exception = assertThrows(RuntimeException.class, () -> engine.render(template, new HashMap<>()));
         assertTrue(exception.getMessage().contains("Function not found"));
     }
+
+    @Test
+    public void testFragmentCacheServesCachedOutput() {
+        Blueprint cachingEngine = new Blueprint();
+        Blueprint.Template template = cachingEngine.compile("{% cache 'greeting-' + id %}Hello, {{ name }}!{% endcache %}");
+        Map<String, Object> context = new HashMap<>();
+        context.put("id", 1);
+        context.put("name", "Alice");
+        assertEquals("Hello, Alice!", template.render(context));
+
+        // same key: body is not rendered again
+        context.put("name", "Bob");
+        assertEquals("Hello, Alice!", template.render(context));
+
+        // different key: rendered and cached separately
+        context.put("id", 2);
+        assertEquals("Hello, Bob!", template.render(context));
+
+        Blueprint.FragmentCacheStats stats = cachingEngine.getFragmentCache().stats();
+        assertEquals(1, stats.getHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(2, stats.getSize());
+
+        cachingEngine.invalidateFragment("greeting-1");
+        context.put("id", 1);
+        assertEquals("Hello, Bob!", template.render(context));
+    }
+
+    @Test
+    public void testFragmentCacheKeysAreScopedPerTemplate() {
+        Blueprint cachingEngine = new Blueprint();
+        Blueprint.Template raw = cachingEngine.compile("{% cache \"nav\" 60 %}A{{ u }}{% endcache %}");
+        Blueprint.Template escaped = cachingEngine.compile("{% cache \"nav\" 60 %}B{{ u }}{% endcache %}",
+                new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.HTML));
+        Map<String, Object> context = new HashMap<>();
+        context.put("u", "<x>");
+        assertEquals("A<x>", raw.render(context));
+        assertEquals("B&lt;x&gt;", escaped.render(context));
+
+        context.put("u", "changed");
+        assertEquals("A<x>", raw.render(context));
+        assertEquals("B&lt;x&gt;", escaped.render(context));
+        // the key is invalidated in every template that uses it
+        cachingEngine.invalidateFragment("nav");
+        assertEquals("Achanged", raw.render(context));
+        assertEquals("Bchanged", escaped.render(context));
+    }
+
+    @Test
+    public void testFragmentCacheTtlExpiry() throws InterruptedException {
+        Blueprint cachingEngine = new Blueprint();
+        Blueprint.Template template = cachingEngine.compile("{% cache 'k' 0.05 %}{{ value }}{% endcache %}");
+        Map<String, Object> context = new HashMap<>();
+        context.put("value", "first");
+        assertEquals("first", template.render(context));
+
+        context.put("value", "second");
+        assertEquals("first", template.render(context));
+
+        Thread.sleep(120);
+        assertEquals("second", template.render(context));
+    }
+
+    @Test
+    public void testLocalFragmentCacheLruEviction() {
+        Blueprint.LocalFragmentCache cache = new Blueprint.LocalFragmentCache(16);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key-" + i, "value-" + i, 0);
+        }
+        Blueprint.FragmentCacheStats stats = cache.stats();
+        assertTrue(stats.getSize() <= 16);
+        assertEquals(1000 - stats.getSize(), stats.getEvictions());
+        assertEquals("value-999", cache.get("key-999"));
+        assertNull(cache.get("key-0"));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.stats().getSize());
+    }
+
+    @Test
+    public void testPureFunctionFoldedAtCompileTime() {
+        Blueprint pureEngine = new Blueprint();
+        int[] calls = new int[1];
+        pureEngine.registerFunction("twice", (context, args) -> {
+            calls[0]++;
+            return ((Number) args.get(0)).intValue() * 2;
+        }, new Blueprint.FunctionOptions().pure());
+
+        Blueprint.Template template = pureEngine.compile("{{ twice(20 + 1) }} {{ twice(x) }}");
+        assertEquals(1, calls[0]);
+
+        Map<String, Object> context = new HashMap<>();
+        context.put("x", 5);
+        assertEquals("42 10", template.render(context));
+        assertEquals("42 10", template.render(context));
+        // only the call with a non-constant argument runs at render time
+        assertEquals(3, calls[0]);
+    }
+
+    @Test
+    public void testPureFunctionNotFoldedWhenShadowedByMacro() {
+        Blueprint pureEngine = new Blueprint();
+        pureEngine.registerFunction("greet", (context, args) -> "function", new Blueprint.FunctionOptions().pure());
+        String output = pureEngine.render("{% macro greet() %}macro{% endmacro %}{{ greet() }}", new HashMap<>());
+        assertEquals("macro", output);
+    }
+
+    @Test
+    public void testMemoizedFunctionWithinRender() {
+        Blueprint memoEngine = new Blueprint();
+        int[] calls = new int[1];
+        memoEngine.registerFunction("slowSquare", (context, args) -> {
+            calls[0]++;
+            int n = ((Number) args.get(0)).intValue();
+            return n * n;
+        }, new Blueprint.FunctionOptions().memoized());
+
+        Blueprint.Template template = memoEngine.compile("{% for i in items %}{{ slowSquare(n) }},{% endfor %}");
+        Map<String, Object> context = new HashMap<>();
+        context.put("items", Arrays.asList(1, 2, 3, 4));
+        context.put("n", 3);
+
+        assertEquals("9,9,9,9,", template.render(context));
+        assertEquals(1, calls[0]);
+        assertEquals(3, memoEngine.getFunctionSavedCalls("slowSquare"));
+
+        // the memo table does not outlive the render
+        context.put("n", 4);
+        assertEquals("16,16,16,16,", template.render(context));
+        assertEquals(2, calls[0]);
+        assertEquals(6, memoEngine.getFunctionSavedCalls("slowSquare"));
+    }
+
+    @Test
+    public void testPureFilterChainFolded() {
+        Blueprint pureEngine = new Blueprint();
+        new StdUtils().registerAll(pureEngine);
+        Blueprint.Template template = pureEngine.compile("{{ 'please review' | replace('please', 'kindly') | capitalize }}");
+        assertEquals("Kindly review", template.render(new HashMap<>()));
+    }
+
+    private static List<Map<String, Object>> numberedContexts(int count) {
+        List<Map<String, Object>> contexts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> context = new HashMap<>();
+            context.put("n", i);
+            contexts.add(context);
+        }
+        return contexts;
+    }
+
+    @Test
+    public void testOrderedBatchRendering() {
+        Blueprint.Template template = engine.compile("#{{ n }}{% if n % 2 == 0 %} even{% endif %}");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<String> outputs = new ArrayList<>();
+            long rendered = template.renderBatch(numberedContexts(5000), pool, true, (index, context, output) -> {
+                assertEquals(outputs.size(), index);
+                assertEquals(context.get("n"), (int) index);
+                outputs.add(output);
+            });
+            assertEquals(5000, rendered);
+            assertEquals("#0 even", outputs.get(0));
+            assertEquals("#4999", outputs.get(4999));
+
+            // outputs past the retained buffer size are still rendered whole, and later small ones stay intact
+            Blueprint.Template padded = engine.compile("#{{ n }}{% if n % 100 == 0 %}{{ pad }}{% endif %}");
+            String pad = String.join("", Collections.nCopies(20000, "x"));
+            List<Map<String, Object>> contexts = numberedContexts(1000);
+            contexts.forEach(context -> context.put("pad", pad));
+            List<String> paddedOutputs = new ArrayList<>();
+            padded.renderBatch(contexts, pool, true, (index, context, output) -> paddedOutputs.add(output));
+            assertEquals("#0" + pad, paddedOutputs.get(0));
+            assertEquals("#1", paddedOutputs.get(1));
+            assertEquals("#900" + pad, paddedOutputs.get(900));
+            assertEquals("#999", paddedOutputs.get(999));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnorderedBatchRendering() {
+        Blueprint.Template template = engine.compile("#{{ n }}");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Map<Long, String> outputs = new ConcurrentHashMap<>();
+            long rendered = template.renderBatch(numberedContexts(3000).spliterator(), pool, false,
+                    (index, context, output) -> outputs.put(index, output));
+            assertEquals(3000, rendered);
+            assertEquals(3000, outputs.size());
+            for (long i = 0; i < 3000; i++) {
+                assertEquals("#" + i, outputs.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncRenderSplicesPendingOutputValues() throws Exception {
+        Blueprint asyncEngine = new Blueprint();
+        CompletableFuture<String> remote = new CompletableFuture<>();
+        asyncEngine.registerFunction("fetch", (context, args) -> remote);
+        Blueprint.Template template = asyncEngine.compile("A{{ first }}B{{ fetch() }}C{{ plain }}");
+
+        CompletableFuture<String> first = new CompletableFuture<>();
+        Map<String, Object> context = new HashMap<>();
+        context.put("first", first);
+        context.put("plain", "!");
+        context.put("unused", new CompletableFuture<>()); // never completed, never read
+
+        CompletableFuture<String> result = template.renderAsync(context, Runnable::run);
+        // the whole template was rendered without blocking; only the pending values are missing
+        assertFalse(result.isDone());
+
+        remote.complete("2");
+        assertFalse(result.isDone());
+        first.complete("1");
+        assertEquals("A1B2C!", result.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAsyncRenderAwaitsFuturesInConditions() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<Boolean> flag = new CompletableFuture<>();
+            Map<String, Object> user = new HashMap<>();
+            user.put("name", "Alice");
+            Map<String, Object> context = new HashMap<>();
+            context.put("flag", flag);
+            context.put("user", CompletableFuture.completedFuture(user));
+
+            CompletableFuture<String> result = engine.compile("{% if flag %}Hi {{ user.name }}{% endif %}").renderAsync(context, executor);
+            CompletableFuture.runAsync(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                flag.complete(true);
+            });
+            assertEquals("Hi Alice", result.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncRenderDoesNotCacheFragmentsWithPendingValues() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Blueprint cachingEngine = new Blueprint();
+            Blueprint.Template template = cachingEngine.compile("[{% cache 'k' %}v={{ slow }}{% endcache %}]");
+            CompletableFuture<String> slow = new CompletableFuture<>();
+            Map<String, Object> context = new HashMap<>();
+            context.put("slow", slow);
+
+            CompletableFuture<String> result = template.renderAsync(context, executor);
+            CompletableFuture.runAsync(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                slow.complete("X");
+            });
+            assertEquals("[v=X]", result.get(5, TimeUnit.SECONDS));
+            // the cached fragment includes the value that was pending
+            assertEquals("[v=X]", template.render(new HashMap<>()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncRenderAppliesLimitsToSplicedValues() {
+        Blueprint limitedEngine = new Blueprint();
+        limitedEngine.setRenderLimits(new Blueprint.RenderLimits().maxOutputChars(10));
+        Blueprint.Template template = limitedEngine.compile("[{{ value }}]");
+        Map<String, Object> context = new HashMap<>();
+        CompletableFuture<String> value = new CompletableFuture<>();
+        context.put("value", value);
+        CompletableFuture<String> result = template.renderAsync(context, Runnable::run);
+        value.complete(String.join("", Collections.nCopies(64, "x")));
+        Exception exception = assertThrows(Exception.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof Blueprint.RenderLimitExceededException);
+
+        // a value that is still pending at the deadline fails the render
+        limitedEngine.setRenderLimits(new Blueprint.RenderLimits().timeout(50, TimeUnit.MILLISECONDS));
+        context.put("value", new CompletableFuture<>());
+        exception = assertThrows(Exception.class, () -> template.renderAsync(context, Runnable::run).get(5, TimeUnit.SECONDS));
+        assertEquals(Blueprint.RenderLimitExceededException.Limit.TIME, ((Blueprint.RenderLimitExceededException) exception.getCause()).getLimit());
+    }
+
+    @Test
+    public void testAsyncRenderPropagatesFailures() {
+        CompletableFuture<String> failing = new CompletableFuture<>();
+        failing.completeExceptionally(new IllegalStateException("backend down"));
+        Map<String, Object> context = new HashMap<>();
+        context.put("value", failing);
+
+        CompletableFuture<String> result = engine.compile("{{ value }}").renderAsync(context);
+        Exception exception = assertThrows(Exception.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testSyncRenderAwaitsFutureValues() {
+        Map<String, Object> user = new HashMap<>();
+        user.put("name", "Bob");
+        Map<String, Object> context = new HashMap<>();
+        context.put("user", CompletableFuture.completedFuture(user));
+        assertEquals("Bob", engine.render("{{ user.name }}", context));
+    }
+
+    @Test
+    public void testSupplierValuesComputedOncePerRender() {
+        AtomicInteger calls = new AtomicInteger();
+        Supplier<Map<String, Object>> profile = () -> {
+            calls.incrementAndGet();
+            Map<String, Object> p = new HashMap<>();
+            p.put("name", "Alice");
+            return p;
+        };
+        Map<String, Object> context = new HashMap<>();
+        context.put("profile", profile);
+        context.put("items", Arrays.asList(1, 2, 3));
+
+        Blueprint.Template template = engine.compile(
+                "{% macro who() %}{{ profile.name }}{% endmacro %}{% for i in items %}{{ profile.name }}{{ who() }} {% endfor %}");
+        assertEquals("AliceAlice AliceAlice AliceAlice ", template.render(context));
+        assertEquals(1, calls.get());
+
+        template.render(context);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testLazyValuesOnlyComputedWhenRead() {
+        AtomicInteger calls = new AtomicInteger();
+        Blueprint.LazyValue<String> expensive = Blueprint.LazyValue.of(() -> {
+            calls.incrementAndGet();
+            return "computed";
+        });
+        Map<String, Object> context = new HashMap<>();
+        context.put("expensive", expensive);
+        context.put("show", false);
+
+        Blueprint.Template template = engine.compile("{% if show %}{{ expensive }}{% endif %}");
+        assertEquals("", template.render(context));
+        assertFalse(expensive.isComputed());
+
+        context.put("show", true);
+        assertEquals("computed", template.render(context));
+        assertEquals("computed", template.render(context));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testLoopOverArraysAndPrimitiveArrays() {
+        Blueprint.Template template = engine.compile("{% for x in values %}{{ x }},{% endfor %}");
+        Map<String, Object> context = new HashMap<>();
+
+        context.put("values", new String[]{"a", "b"});
+        assertEquals("a,b,", template.render(context));
+
+        context.put("values", new int[]{1, 2, 3});
+        assertEquals("1,2,3,", template.render(context));
+
+        context.put("values", new double[]{1.5, 2.5});
+        assertEquals("1.5,2.5,", template.render(context));
+
+        context.put("values", new char[]{'x', 'y'});
+        assertEquals("x,y,", template.render(context));
+    }
+
+    @Test
+    public void testLoopOverIteratorsAndStreams() {
+        Blueprint.Template template = engine.compile("{% for x in values %}{{ loop.index }}={{ x }} {% endfor %}");
+        Map<String, Object> context = new HashMap<>();
+
+        context.put("values", Arrays.asList("a", "b").iterator());
+        assertEquals("0=a 1=b ", template.render(context));
+
+        boolean[] closed = new boolean[1];
+        context.put("values", Stream.of("x", "y", "z").onClose(() -> closed[0] = true));
+        assertEquals("0=x 1=y 2=z ", template.render(context));
+        assertTrue(closed[0]);
+
+        context.put("values", IntStream.range(0, 3));
+        assertEquals("0=0 1=1 2=2 ", template.render(context));
+    }
+
+    @Test
+    public void testLoopOverMapEntries() {
+        Map<String, Object> prices = new LinkedHashMap<>();
+        prices.put("apple", 3);
+        prices.put("pear", 5);
+        Map<String, Object> context = new HashMap<>();
+        context.put("prices", prices);
+        context.put("key", "untouched");
+
+        assertEquals("apple=3;pear=5;untouched",
+                engine.render("{% for key, value in prices %}{{ key }}={{ value }};{% endfor %}{{ key }}", context));
+        assertEquals("apple:3 pear:5 ",
+                engine.render("{% for entry in prices %}{{ entry.key }}:{{ entry.value }} {% endfor %}", context));
+        assertNull(context.get("value"));
+    }
+    @Test
+    public void testEscapeModes() {
+        Map<String, Object> context = new HashMap<>();
+        context.put("text", "<a href=\"x\">Tom & 'Jerry'</a>");
+        context.put("price", 12.5);
+
+        Blueprint.Template html = engine.compile("{{ text }} {{ price }}", new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.HTML));
+        assertEquals("&lt;a href=&quot;x&quot;&gt;Tom &amp; &#39;Jerry&#39;&lt;/a&gt; 12.5", html.render(context));
+
+        context.put("script", "It's \"x\"\n</script>");
+        Blueprint.Template js = engine.compile("'{{ script }}'", new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.JS_STRING));
+        assertEquals("'It\\'s \\\"x\\\"\\n\\u003C\\/script\\u003E'", js.render(context));
+        Blueprint.Template json = engine.compile("\"{{ script }}\"", new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.JSON));
+        assertEquals("\"It's \\\"x\\\"\\n\\u003C/script\\u003E\"", json.render(context));
+
+        context.put("q", "a b/ü&");
+        Blueprint.Template url = engine.compile("?q={{ q }}", new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.URL));
+        assertEquals("?q=a%20b%2F%C3%BC%26", url.render(context));
+
+        // unescaped by default
+        assertEquals("<b>", engine.render("{{ '<b>' }}", new HashMap<>()));
+    }
+
+    @Test
+    public void testAutoescapeBlockAndSafeValues() {
+        Blueprint localEngine = new Blueprint();
+        new StdUtils().registerAll(localEngine);
+        Map<String, Object> context = new HashMap<>();
+        context.put("name", "<i>Ann</i>");
+        context.put("markup", new Blueprint.SafeString("<hr>"));
+
+        assertEquals("<i>Ann</i>|&lt;i&gt;Ann&lt;/i&gt;<hr><i>Ann</i>|<i>Ann</i>",
+                localEngine.render("{{ name }}|{% autoescape html %}{{ name }}{{ markup }}{{ name | safe }}{% endautoescape %}|{{ name }}", context));
+        assertEquals("&lt;i&gt;", localEngine.render("{% autoescape html %}{{ '<i>' | escape }}{% endautoescape %}", context));
+
+        // macro output is escaped once, inside the macro body
+        localEngine.setDefaultEscapeMode(Blueprint.EscapeMode.HTML);
+        assertEquals("<p>&lt;i&gt;Ann&lt;/i&gt;</p>",
+                localEngine.render("{% macro para(text) %}<p>{{ text }}</p>{% endmacro %}{{ para(name) }}", context));
+        // ...and escaped again where it is written with another mode, whether called in output position or not
+        String escapedForJs = "\\u003Cp\\u003E\\u0026lt;i\\u0026gt;Ann\\u0026lt;\\/i\\u0026gt;\\u003C\\/p\\u003E";
+        assertEquals(escapedForJs + "|" + escapedForJs,
+                localEngine.render("{% macro para(text) %}<p>{{ text }}</p>{% endmacro %}"
+                        + "{% autoescape \"js\" %}{{ para(name) }}|{% set p = para(name) %}{{ p }}{% endautoescape %}", context));
+
+        assertThrows(RuntimeException.class, () -> localEngine.compile("{% autoescape xml %}{{ name }}{% endautoescape %}"));
+    }
+    @Test
+    public void testRenderProfiler() {
+        Blueprint localEngine = new Blueprint();
+        new StdUtils().registerAll(localEngine);
+        Blueprint.RenderProfiler profiler = new Blueprint.RenderProfiler();
+        Blueprint.Template template = localEngine.compile("Items:\n{% for item in items %}{{ item | upper }},{% endfor %}",
+                new Blueprint.CompileOptions().profiler(profiler));
+        Map<String, Object> context = new HashMap<>();
+        context.put("items", Arrays.asList("a", "b", "c"));
+
+        assertEquals("Items:\nA,B,C,", template.render(context));
+        assertEquals("Items:\nA,B,C,", template.render(context));
+
+        Map<String, Blueprint.RenderProfiler.Entry> byKind = new HashMap<>();
+        for (Blueprint.RenderProfiler.Entry entry : profiler.entries()) {
+            byKind.put(entry.getKind(), entry);
+        }
+        Blueprint.RenderProfiler.Entry loop = byKind.get("for");
+        assertEquals(2, loop.getCalls());
+        assertEquals(2, loop.getLine());
+        assertEquals(1, loop.getColumn());
+        assertEquals("{% for item in items %}", loop.getSource());
+        assertEquals(12, loop.getChars());
+        assertEquals(6, byKind.get("output").getCalls());
+        assertEquals(6, byKind.get("filter").getCalls());
+        assertEquals("| upper", byKind.get("filter").getSource());
+        assertTrue(loop.getTotalNanos() >= byKind.get("output").getTotalNanos());
+
+        assertTrue(profiler.formatTable().contains("{% for item in items %}"));
+        assertTrue(profiler.toCollapsedStacks().contains("for@2:1 {% for item in items %};output@2:24 {{ item | upper }};filter@2:24 | upper "));
+
+        profiler.reset();
+        assertTrue(profiler.entries().isEmpty());
+    }
+    @Test
+    public void testHistogramPercentiles() {
+        Blueprint.Histogram histogram = new Blueprint.Histogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        Blueprint.Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_500, snapshot.getMean(), 0.001);
+        assertEquals(1_000_000, snapshot.getMax());
+        assertEquals(500_000, snapshot.getValueAtPercentile(50), 500_000 * 0.125);
+        assertEquals(990_000, snapshot.getValueAtPercentile(99), 990_000 * 0.125);
+        assertEquals(1_000_000, snapshot.getValueAtPercentile(100));
+        assertEquals(0, new Blueprint.Histogram().snapshot().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testEngineMetrics() throws Exception {
+        Blueprint localEngine = new Blueprint();
+        localEngine.setMetricsEnabled(true);
+        Blueprint.Template greeting = localEngine.compile("Hello {{ user.id }}", new Blueprint.CompileOptions().name("greeting"));
+        Map<String, Object> context = new HashMap<>();
+        context.put("user", new OrderDetails("order-1", 1f, true));
+        greeting.render(context);
+        greeting.render(context);
+        assertThrows(RuntimeException.class, () -> localEngine.compile("{% if %}"));
+        assertThrows(RuntimeException.class, () -> localEngine.render("{{ missing() }}", new HashMap<>()));
+
+        Blueprint.EngineMetrics.Snapshot snapshot = localEngine.getMetrics().snapshot();
+        assertEquals(2, snapshot.getCompileCount());
+        assertEquals(1, snapshot.getCompileErrorCount());
+        assertEquals(2, snapshot.getRenderCount());
+        assertEquals(1, snapshot.getRenderErrorCount());
+        assertEquals(13, snapshot.getOutputChars().getMax());
+        assertEquals(1, snapshot.getGetterCacheEntries());
+        assertEquals(2, snapshot.getTemplates().get("greeting").getRenderCount());
+        assertEquals(1, snapshot.getTemplates().get(Blueprint.EngineMetrics.UNNAMED_TEMPLATE).getRenderErrorCount());
+        // counters are only created for templates that were rendered with metrics enabled
+        localEngine.compile("unused", new Blueprint.CompileOptions().name("never-rendered"));
+        assertFalse(localEngine.getMetrics().snapshot().getTemplates().containsKey("never-rendered"));
+
+        javax.management.ObjectName name = localEngine.registerMetricsMBean("metrics-test");
+        try {
+            javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            assertEquals(2L, server.getAttribute(name, "RenderCount"));
+            assertEquals(2L, server.invoke(name, "getTemplateRenderCount", new Object[]{"greeting"}, new String[]{String.class.getName()}));
+        } finally {
+            localEngine.unregisterMetricsMBean(name);
+        }
+
+        localEngine.setMetricsEnabled(false);
+        greeting.render(context);
+        assertEquals(2, localEngine.getMetrics().getRenderCount());
+    }
+    @Test
+    public void testFrozenRegistry() {
+        Blueprint localEngine = new Blueprint();
+        new StdUtils().registerAll(localEngine);
+        localEngine.registerFunction("greet", (context, args) -> "hi " + args.get(0));
+        Blueprint.Template beforeFreeze = localEngine.compile("{{ greet(name) }} {{ name | upper }}");
+        localEngine.freeze();
+        assertTrue(localEngine.isFrozen());
+
+        Blueprint.Template afterFreeze = localEngine.compile("{{ greet(name) }} {{ name | upper }}"
+                + "{% macro upper(x) %}macro{% endmacro %} {{ upper(name) }}");
+        Map<String, Object> context = new HashMap<>();
+        context.put("name", "ann");
+        assertEquals("hi ann ANN", beforeFreeze.render(context));
+        // filters bind to the engine filter, while the call to upper() stays shadowed by the macro
+        assertEquals("hi ann ANN macro", afterFreeze.render(context));
+
+        assertThrows(IllegalStateException.class, () -> localEngine.registerFunction("late", (c, a) -> null));
+        assertThrows(IllegalStateException.class, () -> localEngine.registerFilter("late", (c, a) -> null));
+    }
+
+    @Test
+    public void testRegistrationWhileRendering() throws Exception {
+        Blueprint localEngine = new Blueprint();
+        localEngine.registerFunction("f0", (context, args) -> "ok");
+        Blueprint.Template template = localEngine.compile("{{ f0() }}");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            java.util.concurrent.Future<?> registrations = executor.submit(() -> {
+                for (int i = 1; i < 2000; i++) {
+                    localEngine.registerFunction("f" + i, (context, args) -> "ok");
+                }
+            });
+            while (!registrations.isDone()) {
+                assertEquals("ok", template.render(new HashMap<>()));
+            }
+            registrations.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertNotNull(localEngine.getFunction("f1999"));
+    }
+
+    @Test
+    public void testContextSchema() {
+        Blueprint.ContextSchema schema = Blueprint.ContextSchema.builder()
+                .key("order", OrderDetails.class)
+                .key("items")
+                .key("title")
+                .build();
+        String source = "{{ title }}: {{ order.id }} {{ order.total }}{% if order.shipped %} shipped{% endif %}"
+                + "{% for order in items %} [{{ order.id }}]{% endfor %} {{ items[0].id }} {{ missing }}";
+        Blueprint.Template typed = engine.compile(source, new Blueprint.CompileOptions().schema(schema));
+        Blueprint.Template untyped = engine.compile(source);
+
+        List<Object> items = new ArrayList<>();
+        items.add(new OrderDetails("order-2", 2f, false));
+        Map<String, Object> item = new HashMap<>();
+        item.put("id", "order-3");
+        items.add(item);
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("title", "Orders");
+        map.put("order", new OrderDetails("order-1", 1.5f, true));
+        map.put("items", items);
+        String expected = untyped.render(new HashMap<>(map));
+        assertEquals("Orders: order-1 1.5 shipped [order-2] [order-3] order-2 ", expected);
+
+        Blueprint.SlotContext slots = schema.newContext()
+                .set("title", "Orders")
+                .set(schema.slotOf("order"), new OrderDetails("order-1", 1.5f, true))
+                .set("items", items);
+        assertEquals(expected, typed.render(slots));
+        // a plain map still works with a schema-compiled template
+        assertEquals(expected, typed.render(new HashMap<>(map)));
+
+        // keys outside the schema go to the overflow map, null slots count as absent
+        slots.clear();
+        slots.put("extra", 1);
+        slots.put("title", "t");
+        assertEquals(-1, schema.slotOf("extra"));
+        assertFalse(slots.containsKey("order"));
+        assertEquals(2, slots.size());
+        assertEquals(1, slots.get("extra"));
+    }
+
+    @Test
+    public void testContextSchemaOfClass() {
+        Blueprint.ContextSchema schema = Blueprint.ContextSchema.ofClass(OrderDetails.class);
+        assertEquals(new HashSet<>(Arrays.asList("id", "total", "shipped")), new HashSet<>(schema.getKeys()));
+        Blueprint.Template template = engine.compile("{{ id }}{% if shipped %} shipped{% endif %}",
+                new Blueprint.CompileOptions().schema(schema));
+        assertEquals("order-1 shipped", template.render(schema.contextOf(new OrderDetails("order-1", 1f, true))));
+        assertThrows(IllegalStateException.class, () -> Blueprint.ContextSchema.ofKeys("a").contextOf(new Object()));
+        assertThrows(IllegalArgumentException.class, () -> Blueprint.ContextSchema.ofKeys("a", "a"));
+    }
+
+    @Test
+    public void testShortCircuitAndConditionalExpressions() {
+        Blueprint localEngine = new Blueprint();
+        new StdUtils().registerAll(localEngine);
+        AtomicInteger calls = new AtomicInteger();
+        localEngine.registerFunction("expensive", (context, args) -> {
+            calls.incrementAndGet();
+            return "computed";
+        });
+        Map<String, Object> context = new HashMap<>();
+        context.put("user", null);
+        context.put("name", "ann");
+        context.put("stock", 0);
+
+        Blueprint.Template guards = localEngine.compile("{% if user and expensive() %}a{% endif %}{% if name or expensive() %}b{% endif %}"
+                + "{{ default(name, expensive()) }} {{ expensive() if user else \"guest\" }}");
+        assertEquals("bann guest", guards.render(context));
+        assertEquals(0, calls.get());
+
+        assertEquals("computed", localEngine.compile("{{ default(user, expensive()) }}").render(context));
+        assertEquals(1, calls.get());
+
+        Blueprint.Template conditional = localEngine.compile("{{ \"in stock\" if stock > 0 else \"sold out\" | upper }}|{{ name if stock }}|"
+                + "{{ 1 if stock > 5 else 2 if stock == 0 else 3 }}|{{ \"yes\" if 1 else expensive() }}");
+        assertEquals("SOLD OUT||2|yes", conditional.render(context));
+        context.put("stock", 3);
+        assertEquals("IN STOCK|ann|3|yes", conditional.render(context));
+        assertEquals(1, calls.get());
+
+        assertThrows(IllegalArgumentException.class, () -> localEngine.registerFunction("both", (c, a) -> null,
+                new Blueprint.FunctionOptions().memoized().lazyArguments()));
+    }
+
+    @Test
+    public void testStreamedConcatenation() {
+        Blueprint localEngine = new Blueprint();
+        localEngine.registerFunction("fullName", (context, args) ->
+                Blueprint.Rope.of(args.get(0).toString(), " ", new Blueprint.SafeString("<b>"), args.get(1).toString(), new Blueprint.SafeString("</b>")));
+        Map<String, Object> context = new HashMap<>();
+        context.put("first", "Tom");
+        context.put("last", "<Jerry>");
+        context.put("n", 2);
+        context.put("x", 1.5);
+        context.put("missing", null);
+
+        String source = "{{ first + \" \" + last }}|{{ n + 1 + \"a\" + n + 1 }}|{{ n + x }}|{{ missing + \"!\" + \"?\" }}"
+                + "{% set label = first + \"-\" + n %}|{{ label }}|{{ fullName(first, last) }}|{{ fullName(first, last) + \".\" }}";
+        assertEquals("Tom <Jerry>|3a21|3.5|null!?|Tom-2|Tom <b><Jerry></b>|Tom <b><Jerry></b>.", localEngine.compile(source).render(context));
+        assertEquals("Tom &lt;Jerry&gt;|3a21|3.5|null!?|Tom-2|Tom <b>&lt;Jerry&gt;</b>|Tom <b>&lt;Jerry&gt;</b>.",
+                localEngine.compile(source, new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.HTML)).render(context));
+        // safe operands (e.g. macro output) stay unescaped in a concatenation, as they do on their own
+        assertEquals("<i>Tom</i>!|<i>Tom</i>", localEngine.compile("{% macro card(v) %}<i>{{ v }}</i>{% endmacro %}{{ card(first) + \"!\" }}|{{ card(first) }}",
+                new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.HTML)).render(context));
+
+        // concatenation used as a value behaves like the nested binary operations it replaces
+        Map<String, Object> values = new HashMap<>();
+        values.put("s", "s");
+        values.put("i", 4);
+        Blueprint.RenderContext renderContext = new Blueprint.RenderContext(values, localEngine, new ConcurrentHashMap<>());
+        Blueprint.Expression i = new Blueprint.VariableExpression("i");
+        Blueprint.Expression str = new Blueprint.VariableExpression("s");
+        Blueprint.Expression nested = new Blueprint.BinaryExpression(new Blueprint.BinaryExpression(i, "+", i), "+", str);
+        Blueprint.Expression chain = new Blueprint.ConcatExpression(Arrays.asList(i, i, str));
+        assertEquals(nested.evaluate(renderContext), chain.evaluate(renderContext));
+        assertEquals("8s", chain.evaluate(renderContext));
+        assertEquals(12, new Blueprint.ConcatExpression(Arrays.asList(i, i, i)).evaluate(renderContext));
+    }
+
+    @Test
+    public void testMacroCallsRenderIntoCallerOutput() {
+        Blueprint localEngine = new Blueprint();
+        new StdUtils().registerAll(localEngine);
+        Map<String, Object> context = new HashMap<>();
+        context.put("name", "<ann>");
+        context.put("item", "outer");
+        context.put("items", Arrays.asList("a", "b"));
+
+        String source = "{% macro bold(x) %}<b>{{ x }}</b>{% endmacro %}"
+                + "{% macro row(label) %}{% set name = 'shadowed' %}{% for item in items %}{{ bold(label + item) }}{% endfor %}{{ name }}{% endmacro %}"
+                + "{{ row(name) }}|{{ name }} {{ item }}|{{ bold(name) | upper }}|{% autoescape html %}{{ bold(name) }}{% endautoescape %}";
+        assertEquals("<b><ann>a</b><b><ann>b</b>shadowed|<ann> outer|<B><ANN></B>|&lt;b&gt;&lt;ann&gt;&lt;/b&gt;",
+                localEngine.compile(source).render(context));
+        assertEquals("<b>&lt;ann&gt;a</b><b>&lt;ann&gt;b</b>shadowed|&lt;ann&gt; outer|&lt;B&gt;&amp;LT;ANN&amp;GT;&lt;/B&gt;|<b>&lt;ann&gt;</b>",
+                localEngine.compile(source, new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.HTML)).render(context));
+        // the caller's context is left as it was
+        assertEquals("<ann>", context.get("name"));
+        assertEquals("outer", context.get("item"));
+        assertFalse(context.containsKey("label"));
+
+        Blueprint.ScopedMap scope = new Blueprint.ScopedMap(context);
+        scope.put("label", "x");
+        scope.remove("item");
+        assertNull(scope.get("item"));
+        assertFalse(scope.containsKey("item"));
+        assertEquals("<ann>", scope.get("name"));
+        assertEquals(3, scope.size());
+        assertEquals("outer", context.get("item"));
+    }
+
+    @Test
+    public void testFusedTextFilters() {
+        Blueprint fused = new Blueprint();
+        new StdUtils().registerAll(fused);
+        // the same filters, hidden behind plain functions so that nothing is fused
+        Blueprint unfused = new Blueprint();
+        for (String name : Arrays.asList("replace", "capitalize", "truncate", "upper", "lower", "regex_replace", "split", "join")) {
+            Blueprint.TemplateFunction filter = fused.getFilter(name);
+            unfused.registerFilter(name, filter::execute);
+        }
+        // on an open registry nothing is fused: a filter registered after compiling is picked up on the next render
+        Blueprint.Template open = fused.compile("{{ name | upper | shout }}");
+        fused.registerFilter("shout", (Blueprint.TextFilter) (input, args, out) -> out.append(input).append('!'),
+                new Blueprint.FunctionOptions().pure());
+        assertEquals("TOM!", open.render(Collections.singletonMap("name", "tom")));
+        fused.registerFilter("upper", (Blueprint.TextFilter) (input, args, out) -> out.append(input),
+                new Blueprint.FunctionOptions().pure());
+        assertEquals("tom!", open.render(Collections.singletonMap("name", "tom")));
+        fused = new Blueprint();
+        new StdUtils().registerAll(fused);
+        fused.freeze();
+        Map<String, Object> context = new HashMap<>();
+        context.put("note", "please review <your> order, please");
+        context.put("number", 12345);
+        context.put("empty", "");
+        context.put("accented", "ärger über öl");
+        context.put("phone", "+1 (555) 010-9999");
+        context.put("tags", "a, b,c");
+
+        String source = "{{ note | replace('please', 'kindly') | capitalize | truncate(20) }}|{{ note | lower | upper | replace('PLEASE', '') }}|"
+                + "{{ number | replace('3', '-') | truncate(3, '') }}|{{ missing | upper }}|{{ empty | capitalize }}|{{ accented | upper }}|"
+                + "{{ note | replace('', '.') | truncate(6) }}|{{ phone | regex_replace('[^0-9]', '') }}|{{ phone | regex_replace('\\\\((\\\\d+)\\\\)', '$1') }}|"
+                + "{{ tags | split(',\\\\s*') | join('/') }}|{% set n = note | capitalize | truncate(6, '') %}{{ n }}";
+        String expected = "Kindly review <your>...| REVIEW <YOUR> ORDER, |12-|||ÄRGER ÜBER ÖL|.p.l.e...|15550109999|+1 555 010-9999|a/b/c|Please";
+        assertEquals(expected, unfused.compile(source).render(context));
+        assertEquals(expected, fused.compile(source).render(context));
+        Blueprint.CompileOptions html = new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.HTML);
+        assertEquals(unfused.compile(source, html).render(context), fused.compile(source, html).render(context));
+        // a chain is fused with the filters registered at compile time
+        assertTrue(fused.compile("{{ note | replace('a', 'b') | upper }}").render(context).startsWith("PLEBSE"));
+    }
+
+    @Test
+    public void testCollectionFiltersOnAnyShape() {
+        Blueprint localEngine = new Blueprint();
+        new StdUtils().registerAll(localEngine);
+        Map<String, Object> context = new HashMap<>();
+        context.put("ints", new int[]{3, 1, 3, 2});
+        context.put("doubles", new double[]{2.5, 1.5, 2.5});
+        context.put("names", Arrays.asList("b", "<a>", "b", null));
+        context.put("set", new TreeSet<>(Arrays.asList("y", "x")));
+        context.put("words", new String[]{"pear", "apple", "pear"});
+
+        Blueprint.Template template = localEngine.compile("{{ ints | sort | join(',') }}|{{ ints | unique | join(',') }}|{{ doubles | sort | join(' ') }}|"
+                + "{{ names | join('+') }}|{{ words | unique | sort | join(',') }}|{{ set | join }}|"
+                + "{{ length(ints) }} {{ length(set) }} {% set u = names | unique %}{{ length(u) }}|{% for n in ints | sort %}{{ n }}{% endfor %}|{{ 42 | join(',') }}");
+        assertEquals("1,2,3,3|3,1,2|1.5 2.5 2.5|b+<a>+b|apple,pear|xy|4 2 3|1233|42", template.render(context));
+        assertArrayEquals(new int[]{3, 1, 3, 2}, (int[]) context.get("ints"));
+        assertEquals("2.5,-0.0,NaN,0.0", localEngine.compile("{{ values | unique | join(',') }}")
+                .render(Collections.singletonMap("values", new double[]{2.5, -0.0, Double.NaN, 2.5, 0.0, Double.NaN, -0.0})));
+        assertEquals("7,5", localEngine.compile("{{ values | unique | join(',') }}")
+                .render(Collections.singletonMap("values", new long[]{7, 7, 5, 7, 5})));
+
+        // as a value (not the last filter in output position) join is built as a string, and escaping applies either way
+        Blueprint.Template escaped = localEngine.compile("{{ names | join(', ') }}|{{ names | join(', ') | upper }}",
+                new Blueprint.CompileOptions().escapeMode(Blueprint.EscapeMode.HTML));
+        assertEquals("b, &lt;a&gt;, b|B, &lt;A&gt;, B", escaped.render(context));
+
+        context.put("stream", Stream.of("q", "p"));
+        assertEquals("p-q", localEngine.compile("{{ stream | sort | join('-') }}").render(context));
+    }
+
+    @Test
+    public void testDateAndNumberFormatting() throws Exception {
+        Blueprint localEngine = new Blueprint();
+        new StdUtils().registerAll(localEngine);
+        Map<String, Object> context = new HashMap<>();
+        context.put("day", java.time.LocalDate.of(2024, 3, 5));
+        context.put("at", java.time.LocalDateTime.of(2024, 3, 5, 14, 30));
+        context.put("total", 1234567.891);
+        context.put("pattern", "yyyy/MM/dd");
+        context.put("locale", "de-DE");
+
+        String source = "{{ day | date('dd MMM yyyy', 'en-US') }}|{{ day | date('d. MMMM yyyy', 'de-DE') }}|{{ at | date('HH:mm') }}|"
+                + "{{ day | date(pattern) }}|{{ missing | date('yyyy') }}|{{ total | number('#,##0.00', 'en-US') }}|"
+                + "{{ total | number('#,##0.0', locale) }}|{{ total | currency('EUR', 'de-DE') }}|{{ total | currency('USD', 'en-US') }}|{{ 'n/a' | number }}";
+        String expected = "05 Mar 2024|5. März 2024|14:30|2024/03/05||1,234,567.89|1.234.567,9|1.234.567,89\u00a0€|$1,234,567.89|n/a";
+        Blueprint.Template template = localEngine.compile(source);
+        assertEquals(expected, template.render(context));
+
+        // without a pattern, the ISO format of the value's type
+        context.put("zoned", java.time.ZonedDateTime.of(2024, 3, 5, 14, 30, 0, 0, java.time.ZoneOffset.ofHours(2)));
+        context.put("time", java.time.LocalTime.of(9, 5));
+        assertEquals("2024-03-05|2024-03-05T14:30:00|2024-03-05T14:30:00+02:00|09:05:00",
+                localEngine.render("{{ day | date }}|{{ at | date }}|{{ zoned | date }}|{{ time | date }}", context));
+        // now(pattern) keeps SimpleDateFormat's pattern letters: "u" is the day of the week (1-7), not the year
+        assertTrue(localEngine.render("{{ now('u') }}", context).matches("[1-7]"));
+
+        // literal patterns are bound at compile time, dynamic ones are resolved per call: the output is the same
+        localEngine.freeze();
+        assertEquals(expected, localEngine.compile(source).render(context));
+
+        // formats are shared between threads
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    String last = null;
+                    for (int n = 0; n < 200; n++) {
+                        last = template.render(new HashMap<>(context));
+                    }
+                    return last;
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRenderLimits() {
+        Blueprint localEngine = new Blueprint();
+        Map<String, Object> context = new HashMap<>();
+        context.put("items", IntStream.range(0, 100).boxed().toArray());
+
+        Blueprint.Template loop = localEngine.compile("{% for i in items %}{% for j in items %}.{% endfor %}{% endfor %}");
+        assertEquals(10000, loop.render(context).length());
+        Blueprint.RenderLimitExceededException e = assertThrows(Blueprint.RenderLimitExceededException.class,
+                () -> loop.render(context, new Blueprint.RenderLimits().maxIterations(5000)));
+        assertEquals(Blueprint.RenderLimitExceededException.Limit.ITERATIONS, e.getLimit());
+        assertEquals(5000, e.getMaxValue());
+        assertEquals(10000, loop.render(context, new Blueprint.RenderLimits().maxIterations(100 + 100 * 100)).length());
+
+        // output is counted from where the render started in a reused buffer
+        StringBuilder sb = new StringBuilder("previous output");
+        e = assertThrows(Blueprint.RenderLimitExceededException.class,
+                () -> loop.render(context, sb, new Blueprint.RenderLimits().maxOutputChars(9999)));
+        assertEquals(Blueprint.RenderLimitExceededException.Limit.OUTPUT_CHARS, e.getLimit());
+        sb.setLength(0);
+        sb.append("previous output");
+        loop.render(context, sb, new Blueprint.RenderLimits().maxOutputChars(10000));
+        // checked at the end of a render as well, not only in loops
+        assertThrows(Blueprint.RenderLimitExceededException.class,
+                () -> localEngine.compile("0123456789").render(context, new Blueprint.RenderLimits().maxOutputChars(9)));
+        // output built into a value counts on top of the output written before it
+        Blueprint.Template assigned = localEngine.compile("{% macro dots() %}{% for i in items %}.{% endfor %}{% endmacro %}"
+                + "{% for i in items %}-{% endfor %}{% set x = dots() %}");
+        assertEquals(100, assigned.render(context, new Blueprint.RenderLimits().maxOutputChars(200)).length());
+        e = assertThrows(Blueprint.RenderLimitExceededException.class,
+                () -> assigned.render(context, new Blueprint.RenderLimits().maxOutputChars(150)));
+        assertEquals(Blueprint.RenderLimitExceededException.Limit.OUTPUT_CHARS, e.getLimit());
+
+        Blueprint.Template recursive = localEngine.compile("{% macro down(n) %}{% if n > 0 %}{{ down(n - 1) }}{% endif %}{{ n }}{% endmacro %}{{ down(depth) }}");
+        context.put("depth", 20);
+        assertEquals("01234567891011121314151617181920", recursive.render(context, new Blueprint.RenderLimits().maxMacroDepth(21)));
+        context.put("depth", 1000000);
+        e = assertThrows(Blueprint.RenderLimitExceededException.class,
+                () -> recursive.render(context, new Blueprint.RenderLimits().maxMacroDepth(50)));
+        assertEquals(Blueprint.RenderLimitExceededException.Limit.MACRO_DEPTH, e.getLimit());
+
+        Map<String, Object> big = new HashMap<>();
+        big.put("items", IntStream.range(0, 100000).boxed().toArray());
+        Blueprint.Template slow = localEngine.compile("{% for i in items %}{% for j in items %}{{ j }}{% endfor %}{% endfor %}");
+        long start = System.nanoTime();
+        e = assertThrows(Blueprint.RenderLimitExceededException.class,
+                () -> slow.render(big, new StringBuilder(), new Blueprint.RenderLimits().timeout(50, TimeUnit.MILLISECONDS)));
+        assertEquals(Blueprint.RenderLimitExceededException.Limit.TIME, e.getLimit());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+
+        // engine-wide limits apply to every render, unless a render passes its own
+        localEngine.setRenderLimits(new Blueprint.RenderLimits().maxIterations(10));
+        assertThrows(Blueprint.RenderLimitExceededException.class, () -> loop.render(context));
+        assertEquals(10000, loop.render(context, new Blueprint.RenderLimits().maxIterations(20000)).length());
+        assertThrows(IllegalArgumentException.class, () -> new Blueprint.RenderLimits().maxIterations(0));
+    }
+
+    @Test
+    public void testIncrementalRenderSession() {
+        Blueprint localEngine = new Blueprint();
+        new StdUtils().registerAll(localEngine);
+        String source = "{% macro badge(v) %}[{{ v }}]{% endmacro %}<h1>{{ title }}</h1>"
+                + "<p>cpu {{ badge(cpu) }}</p>"
+                + "{% set total = orders | length %}"
+                + "<ul>{% for o in orders %}<li>{{ loop.index }}: {{ o }}</li>{% endfor %}</ul>"
+                + "<p>{{ total }} orders</p>"
+                + "{% for h in hosts %}{{ h }} {% endfor %}";
+        Blueprint.Template template = localEngine.compile(source);
+        Map<String, Object> context = new HashMap<>();
+        context.put("title", "Dashboard");
+        context.put("cpu", 42);
+        List<String> orders = new ArrayList<>(Arrays.asList("a", "b"));
+        context.put("orders", orders);
+        context.put("hosts", Arrays.asList("x", "y"));
+
+        Blueprint.RenderSession session = template.session(context);
+        String first = session.render();
+        assertEquals(template.render(new HashMap<>(context)), first);
+        assertEquals(session.getNodeCount(), session.getLastRenderedNodes());
+
+        // nothing changed: only the macro definition is rendered again
+        assertEquals(first, session.render());
+        assertEquals(1, session.getLastRenderedNodes());
+
+        session.set("cpu", 93);
+        String second = session.render();
+        assertEquals(template.render(new HashMap<>(context)), second);
+        assertTrue(second.contains("cpu [93]"));
+        assertEquals(2, session.getLastRenderedNodes()); // the macro definition and {{ badge(cpu) }}
+
+        // a change nested in a value is reported by path. The set of "total" changes, so "{{ total }}" follows.
+        orders.add("c");
+        session.changed("orders[2]");
+        String third = session.render();
+        assertEquals(template.render(new HashMap<>(context)), third);
+        assertTrue(third.contains("<li>2: c</li>") && third.contains("3 orders"));
+        assertFalse(session.render().isEmpty());
+        assertEquals(1, session.getLastRenderedNodes());
+
+        session.invalidate();
+        assertEquals(third, session.render());
+        assertEquals(session.getNodeCount(), session.getLastRenderedNodes());
+
+        // a node that reads and writes the same key renders again every time, like a full render of the same context
+        Blueprint.Template counter = localEngine.compile("{{ n }}{% set n = n + 1 %}");
+        Map<String, Object> counterContext = new HashMap<>();
+        counterContext.put("n", 1);
+        Blueprint.RenderSession counterSession = counter.session(counterContext);
+        StringBuilder outputs = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            outputs.append(counterSession.render());
+        }
+        assertEquals("1234", outputs.toString());
+
+        // limits count the output of the whole render, the kept output of skipped nodes included
+        Blueprint limitedEngine = new Blueprint();
+        limitedEngine.setRenderLimits(new Blueprint.RenderLimits().maxOutputChars(10));
+        Map<String, Object> limitedContext = new HashMap<>();
+        limitedContext.put("a", "hello!");
+        limitedContext.put("items", Arrays.asList(1, 2, 3));
+        assertEquals("hello!", limitedEngine.compile("{{ a }}").session(limitedContext).render());
+        Blueprint.RenderSession limited = limitedEngine.compile("{{ a }}{% for i in items %}.{% endfor %}").session(limitedContext);
+        assertEquals("hello!...", limited.render());
+        limited.set("items", Arrays.asList(1, 2, 3, 4, 5));
+        assertThrows(Blueprint.RenderLimitExceededException.class, limited::render);
+    }
+
+    @Test
+    public void testTemplateAnalysis() {
+        Blueprint localEngine = new Blueprint();
+        new StdUtils().registerAll(localEngine);
+        String source = "{% macro line(item, currency) %}{{ item.name | upper }}: {{ item.price }} {{ currency }}{% endmacro %}"
+                + "Dear {{ customer.name }},"
+                + "{% set c = customer.address %}{{ c.city }}"
+                + "{% for item in order.items | sort %}{{ line(item, order.currency) }}{{ loop.index }}{% endfor %}"
+                + "{% for key, value in order.meta %}{{ key }}={{ value.label }}{% endfor %}"
+                + "{% if order.total > threshold %}{{ truncate(note, limit) }}{% set flag = 1 %}{% endif %}{{ flag }}"
+                + "{{ order.lines[0].sku }}{{ 'x' if vip else discount | default(0) }}{{ now() }}";
+        Blueprint.TemplateAnalysis analysis = localEngine.compile(source).analyze();
+
+        assertEquals(new TreeSet<>(Arrays.asList("customer.name", "customer.address", "customer.address.city", "order.items",
+                "order.items[]", "order.items[].name", "order.items[].price", "order.currency", "order.meta", "order.meta[].label",
+                "order.total", "threshold", "note", "limit", "flag", "order.lines[].sku", "vip", "discount")), analysis.getVariablePaths());
+        assertEquals(new TreeSet<>(Arrays.asList("customer", "order", "threshold", "note", "limit", "flag", "vip", "discount")), analysis.getRootVariables());
+        assertEquals(new TreeSet<>(Arrays.asList("truncate", "now")), analysis.getFunctions());
+        assertEquals(new TreeSet<>(Arrays.asList("upper", "sort", "default")), analysis.getFilters());
+        assertEquals(Collections.singleton("line"), analysis.getMacros());
+
+        // recursive macros are followed once
+        Blueprint.TemplateAnalysis recursive = localEngine.compile(
+                "{% macro tree(node) %}{{ node.label }}{% for child in node.children %}{{ tree(child) }}{% endfor %}{% endmacro %}{{ tree(root) }}").analyze();
+        assertEquals(new TreeSet<>(Arrays.asList("root", "root.label", "root.children", "root.children[]")), recursive.getVariablePaths());
+    }
+
+    @Test
+    public void testFlatExecutionMatchesTree() throws Exception {
+        Blueprint tree = new Blueprint();
+        new StdUtils().registerAll(tree);
+        Blueprint flat = new Blueprint();
+        new StdUtils().registerAll(flat);
+        flat.setExecutionMode(Blueprint.ExecutionMode.FLAT);
+
+        for (String file : Arrays.asList("full.blu", "small.blu")) {
+            String source = com.freakynit.benchmark.SampleTemplateData.loadTemplate(file);
+            Map<String, Object> context = file.equals("full.blu") ? com.freakynit.benchmark.SampleTemplateData.getContextForFullTemplate()
+                    : com.freakynit.benchmark.SampleTemplateData.getContextForSmallTemplate();
+            assertEquals(tree.compile(source).render(new HashMap<>(context)), flat.compile(source).render(new HashMap<>(context)), file);
+        }
+
+        String source = "{% macro item(i) %}<li>{{ i.name }}{% if i.tags %}{% for t in i.tags %}[{{ t }}]{% endfor %}{% endif %}</li>{% endmacro %}"
+                + "{% macro down(n) %}{% if n > 0 %}{{ down(n - 1) }}{% endif %}{{ n }}{% endmacro %}"
+                + "<ul>{% for i in items %}{{ item(i) }}{% if loop.index == 0 %}first{% else %}{% if loop.index == 1 %}second{% else %}rest{% endif %}{% endif %}{% endfor %}</ul>"
+                + "{% if missing %}never{% endif %}{% if none %}{% else %}{% endif %}{% set total = length(items) %}{{ total }}"
+                + "{% autoescape \"html\" %}{{ markup }}{% endautoescape %}{% cache \"k\" %}cached {{ total }}{% endcache %}"
+                + "{% for k, v in pairs %}{{ k }}={{ v }};{% endfor %}{{ down(3) }}{% raw %}{{ raw }}{% endraw %}";
+        Map<String, Object> context = new HashMap<>();
+        Map<String, Object> first = new HashMap<>();
+        first.put("name", "a");
+        first.put("tags", Arrays.asList("x", "y"));
+        Map<String, Object> second = new HashMap<>();
+        second.put("name", "<b>");
+        context.put("items", Arrays.asList(first, second, first));
+        context.put("markup", "<i>");
+        context.put("pairs", new TreeMap<>(Collections.singletonMap("p", 1)));
+        String expected = tree.compile(source).render(new HashMap<>(context));
+        assertEquals("<ul><li>a[x][y]</li>first<li><b></li>second<li>a[x][y]</li>rest</ul>3&lt;i&gt;cached 3p=1;0123{{ raw }}", expected);
+        Blueprint.Template flatTemplate = flat.compile(source);
+        assertEquals(expected, flatTemplate.render(new HashMap<>(context)));
+        assertEquals(expected, flatTemplate.renderAsync(new HashMap<>(context)).get());
+        assertEquals(tree.compile(source).analyze().getVariablePaths(), flatTemplate.analyze().getVariablePaths());
+        assertEquals(tree.compile(source).analyze().getMacros(), flatTemplate.analyze().getMacros());
+
+        Blueprint.RenderSession session = flatTemplate.session(new HashMap<>(context));
+        assertEquals(expected, session.render());
+        session.set("markup", "m");
+        assertEquals(expected.replace("&lt;i&gt;", "m"), session.render());
+        assertTrue(session.getLastRenderedNodes() < session.getNodeCount());
+
+        assertThrows(Blueprint.RenderLimitExceededException.class,
+                () -> flatTemplate.render(new HashMap<>(context), new Blueprint.RenderLimits().maxMacroDepth(2)));
+    }
+
+    @Test
+    public void testTextPoolAndRetainedHeapEstimate() {
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            header.append("<meta name=\"m").append(i).append("\">");
+        }
+        String page = header + "{% for item in items %}<li>{{ item.name | upper }}</li>{% endfor %}<footer>Copyright</footer>";
+        String otherPage = header + "{{ title }}<footer>Copyright</footer>";
+
+        Blueprint pooled = new Blueprint();
+        new StdUtils().registerAll(pooled);
+        Blueprint.Template first = pooled.compile(page);
+        Blueprint.Template second = pooled.compile(otherPage);
+        assertTrue(pooled.getTextPool().getHits() >= 2);
+        assertTrue(pooled.getTextPool().getSavedChars() >= header.length());
+        assertTrue(pooled.getTextPool().estimateRetainedHeap() > header.length());
+
+        Blueprint unpooled = new Blueprint();
+        new StdUtils().registerAll(unpooled);
+        unpooled.setTextPoolEnabled(false);
+        Blueprint.Template firstUnpooled = unpooled.compile(page);
+        assertEquals(0, unpooled.getTextPool().size());
+
+        // pooled text is counted by the pool, not by the templates that share it
+        long pooledEstimate = first.estimateRetainedHeap();
+        long unpooledEstimate = firstUnpooled.estimateRetainedHeap();
+        assertTrue(pooledEstimate > 0);
+        assertTrue(unpooledEstimate - pooledEstimate >= header.length(), pooledEstimate + " vs " + unpooledEstimate);
+        assertTrue(unpooled.compile(page + page).estimateRetainedHeap() > unpooledEstimate);
+
+        Map<String, Object> context = new HashMap<>();
+        context.put("items", Collections.singletonList(Collections.singletonMap("name", "a")));
+        context.put("title", "t");
+        assertEquals(firstUnpooled.render(context), first.render(context));
+        assertTrue(second.render(context).startsWith(header.toString()));
+
+        String full = com.freakynit.benchmark.SampleTemplateData.loadTemplate("full.blu");
+        Blueprint flat = new Blueprint();
+        new StdUtils().registerAll(flat);
+        flat.setTextPoolEnabled(false);
+        flat.setExecutionMode(Blueprint.ExecutionMode.FLAT);
+        assertTrue(flat.compile(full).estimateRetainedHeap() < unpooled.compile(full).estimateRetainedHeap());
+    }
 }